@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -132,7 +133,10 @@ public class Bot {
 			}
 		}
 
+		botConfig.setMergeUsers(mergeUsers);
 		BotListener botListener = new BotListener(botConfig);
+		//Make sure messages waiting to be saved aren't lost when the bot is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(botListener::close, "Markov shutdown"));
 
 		JDA api = new JDABuilder(AccountType.BOT).setToken(botConfig.getToken()).buildAsync();
 		api.addEventListener(botListener);
@@ -144,7 +148,7 @@ public class Bot {
 		private String homeID;
 		private String targetChannelID;
 		//TODO add ignored channels
-		//TODO add users to merge
+		private final Map<String, String> mergeUsers = new HashMap<>();
 
 		public Config(String token) {
 			if (token == null || token.isEmpty()) throw new IllegalArgumentException("Invalid bot token (null or empty)");
@@ -197,5 +201,15 @@ public class Bot {
 			this.targetChannelID = targetChannelID;
 		}
 		public String getTargetChannelID() { return targetChannelID; }
+
+		/**
+		 * Sets which users should have their markov data merged, replacing any set before
+		 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+		 */
+		public void setMergeUsers(Map<String, String> mergeUsers) {
+			this.mergeUsers.clear();
+			if (mergeUsers != null) this.mergeUsers.putAll(mergeUsers);
+		}
+		public Map<String, String> getMergeUsers() { return Collections.unmodifiableMap(mergeUsers); }
 	}
 }
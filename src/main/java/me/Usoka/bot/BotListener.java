@@ -2,6 +2,7 @@ package me.Usoka.bot;
 
 import com.sun.istack.internal.NotNull;
 import me.Usoka.markov.Core;
+import me.Usoka.markov.MessageOrder;
 
 import me.Usoka.markov.exceptions.IllegalWordException;
 import me.Usoka.markov.exceptions.InvalidUserException;
@@ -75,6 +76,36 @@ public class BotListener extends ListenerAdapter {
 	 */
 	private static final int BATCH_SIZE = 200;
 
+	/**
+	 * Most sentences that can be asked for in a single quote command ({@value})
+	 */
+	private static final int MAX_QUOTE_COUNT = 10;
+
+	/**
+	 * Maximum amount of characters that can be sent in one message ({@value})
+	 */
+	private static final int MESSAGE_MAX_LENGTH = 2000;
+
+	/**
+	 * Pattern for the optional chain order at the start of a quote or speak command (eg. <code>order=2</code>)
+	 */
+	private static final Pattern ORDER_PATTERN = Pattern.compile("^order=(\\d)(?:\\s+|$)");
+
+	/**
+	 * Pattern for the optional page and sort order at the start of a context command (eg. <code>page=2 sort=newest</code>)
+	 */
+	private static final Pattern CONTEXT_OPTION_PATTERN = Pattern.compile("^(?:page=(\\d{1,4})|sort=(oldest|newest|random))(?:\\s+|$)");
+
+	/**
+	 * How many messages are shown on each page of a context command ({@value})
+	 */
+	private static final int CONTEXT_PAGE_SIZE = 10;
+
+	/**
+	 * Longest each message can be shown as in a context command ({@value}), so a full page fits in one message
+	 */
+	private static final int CONTEXT_LINE_MAX_LENGTH = 180;
+
 	private final Bot.Config botConfig;
 	private Core markovCore;
 
@@ -90,6 +121,7 @@ public class BotListener extends ListenerAdapter {
 		markovCore = new Core(
 				RESOURCES_PATH +"sourceData.db",
 				RESOURCES_PATH +"markovData.db");
+		markovCore.setMergeUsers(getMergeUsers());
 	}
 
 	/**
@@ -131,6 +163,79 @@ public class BotListener extends ListenerAdapter {
 
 		System.out.println("Startup complete");
 		botRunning = true;
+
+		//Make sure the next start up can open the models straight from the snapshot
+		if (!markovCore.isSnapshotCurrent()) saveModelSnapshot();
+	}
+
+	/**
+	 * Sends a page of the messages a word has been said in, with the page and sort order optionally given before
+	 * the word (eg. <code>page=2 sort=newest word</code>)
+	 * @param channel channel to send the page to
+	 * @param content everything following the command
+	 */
+	private void sendContext(MessageChannel channel, String content) {
+		int page = 1;
+		MessageOrder order = MessageOrder.OLDEST;
+
+		Matcher optionMatcher = CONTEXT_OPTION_PATTERN.matcher(content);
+		while (optionMatcher.find()) {
+			if (optionMatcher.group(1) != null) page = Integer.parseInt(optionMatcher.group(1));
+			else order = MessageOrder.valueOf(optionMatcher.group(2).toUpperCase());
+			content = content.substring(optionMatcher.end());
+			optionMatcher = CONTEXT_OPTION_PATTERN.matcher(content);
+		}
+		if (content.equals("")) return;
+		if (page < 1) {
+			channel.sendMessage("Page must be at least 1").queue();
+			return;
+		}
+
+		List<String> contexts;
+		try {
+			//Ask for one more than fits on the page, to know if there's another page after it
+			contexts = markovCore.getContextOf(content, order, (page - 1) * CONTEXT_PAGE_SIZE, CONTEXT_PAGE_SIZE + 1);
+		} catch (IOException e) {
+			channel.sendMessage("Failed to read source").queue();
+			e.printStackTrace();
+			return;
+		}
+
+		if (contexts.isEmpty()) {
+			channel.sendMessage((page == 1)? "No messages found" : "No more messages found").queue();
+			return;
+		}
+
+		StringBuilder compiledMessage = new StringBuilder();
+		for (String context : contexts.subList(0, Math.min(contexts.size(), CONTEXT_PAGE_SIZE))) {
+			if (context.length() > CONTEXT_LINE_MAX_LENGTH) context = context.substring(0, CONTEXT_LINE_MAX_LENGTH - 3) +"...";
+			compiledMessage.append(context).append("\r\n");
+		}
+
+		//Random pages are a new pick each time, so there's no next page to point to
+		if (order != MessageOrder.RANDOM && contexts.size() > CONTEXT_PAGE_SIZE) {
+			compiledMessage.append("*Page ").append(page).append(", use* `").append(COMMAND_INITIALIZER).append("context page=")
+					.append(page + 1).append((order == MessageOrder.NEWEST)? " sort=newest " : " ").append(content)
+					.append("` *for more*");
+		}
+		channel.sendMessage(compiledMessage.toString()).queue();
+	}
+
+	/**
+	 * Writes any messages still waiting to be saved, and closes the markov data. Called as the program exits
+	 */
+	public void close() {
+		markovCore.close();
+		System.out.println("Message ingest: "+ markovCore.getIngestStats());
+	}
+
+	/**
+	 * Writes a snapshot of every user's markov model in the background
+	 */
+	private void saveModelSnapshot() {
+		new Thread(() -> {
+			if (markovCore.saveSnapshot()) System.out.println("Saved markov model snapshot");
+		}, "Markov snapshot").start();
 	}
 
 	/**
@@ -151,20 +256,16 @@ public class BotListener extends ListenerAdapter {
 			getAllChannelHistory(event.getGuild(), event.getChannel(), "Rediscovering the past...", 0);
 		}
 
+		if (command.equals("rebuild") && event.getAuthor().getId().equals(botConfig.getAdminID())) {
+			//Only users with changes are rebuilt, unless asked to rebuild everything
+			rebuildMarkovData(channel, content.equals("all"));
+		}
+
 		//Following commands can only be interpreted in the specified bot channel
 		if (!event.getChannel().getId().equals(botConfig.getTargetChannelID())) return;
 
 		if (command.equals("context") && !content.equals("")) {
-			try {
-				String contexts = markovCore.getContextOf(content);
-
-				//TODO Still display some results when there are too many
-				if (contexts.length() > 1700) channel.sendMessage("Too many results found.").queue();
-				else channel.sendMessage((contexts.equals("")? "No messages found" : contexts)).queue();
-			} catch (IOException e) {
-				channel.sendMessage("Failed to read source").queue();
-				e.printStackTrace();
-			}
+			sendContext(channel, content);
 		}
 
 		if (command.equals("count")) {
@@ -202,7 +303,30 @@ public class BotListener extends ListenerAdapter {
 		}
 
 		if (command.equals("setuser")) {
-			if (MENTION_PATTERN.matcher(content).find()) {
+			Matcher mentionMatcher = MENTION_PATTERN.matcher(content);
+			int mentionCount = 0;
+			while (mentionMatcher.find()) mentionCount++;
+
+			if (mentionCount > 1) {
+				//Several users, blended together by weight
+				Map<User, Double> blend = parseBlend(event.getJDA(), content);
+				if (blend != null) {
+					Map<me.Usoka.markov.User, Double> userWeights = new LinkedHashMap<>();
+					StringBuilder botNickname = new StringBuilder();
+					for (Map.Entry<User, Double> entry : blend.entrySet()) {
+						userWeights.put(convertUserClass(entry.getKey()), entry.getValue());
+						if (botNickname.length() > 0) botNickname.append("/");
+						botNickname.append(entry.getKey().getName());
+					}
+					if (botNickname.length() > 28) botNickname.setLength(28);
+
+					setBotNickname(event.getGuild(), botNickname +" Bot", "Auto set nickname for changing source");
+					markovCore.setTargetBlend(userWeights);
+					event.getMessage().addReaction("\uD83C\uDD97").queue();
+				} else {
+					event.getMessage().addReaction("❌").queue();
+				}
+			} else if (mentionCount == 1) {
 				//String the mention down to just the user ID, then get the user through the api
 				String targetUserID = content.replaceFirst(MENTION_REGEX, "$1");
 				User targetUser = event.getJDA().getUserById(targetUserID);
@@ -239,8 +363,24 @@ public class BotListener extends ListenerAdapter {
 		}
 
 		//For building Markov sentences
-		if (command.equals("quote")) sendMarkovSentence(channel, content, false);
-		if (command.equals("speak")) sendMarkovSentence(channel, content, true);
+		if (command.equals("quote") || command.equals("speak")) {
+			//Allow the order of the chain to be picked first
+			int order = 1;
+			Matcher orderMatcher = ORDER_PATTERN.matcher(content);
+			if (orderMatcher.find()) {
+				order = Integer.parseInt(orderMatcher.group(1));
+				content = content.substring(orderMatcher.end());
+				if (order < 1 || order > Core.MAX_CHAIN_ORDER) {
+					channel.sendMessage("Chain order must be between 1 and "+ Core.MAX_CHAIN_ORDER).queue();
+					return;
+				}
+			}
+
+			//A number on its own asks for that many sentences at once
+			if (command.equals("quote") && content.matches("^\\d{1,4}$")) {
+				sendMarkovSentences(channel, Math.min(Integer.parseInt(content), MAX_QUOTE_COUNT), order);
+			} else sendMarkovSentence(channel, content, order, command.equals("speak"));
+		}
 
 		if (command.equals("word") && content.equals("")) {
 			try {
@@ -284,30 +424,16 @@ public class BotListener extends ListenerAdapter {
 	 * Gets a markov sentence form the markov core and sends it to a specified channel
 	 * @param channel Channel that the markov sentence should be sent in
 	 * @param startingWord Word to start the message with
+	 * @param order order of markov chain to build the sentence with
 	 * @param isTTS if the message should be sent using Text To Speech
 	 */
-	private void sendMarkovSentence(MessageChannel channel, String startingWord, boolean isTTS) {
+	private void sendMarkovSentence(MessageChannel channel, String startingWord, int order, boolean isTTS) {
 		channel.sendTyping().queue();
 
 		try {
 			//Get the constructed sentence
-			String sentence = (startingWord.equals("")) ? markovCore.getSentence() : markovCore.getSentence(startingWord);
-
-			//Escape user mentions in constructed sentences
-			Matcher mentionMatcher = MENTION_PATTERN.matcher(sentence);
-			while (mentionMatcher.find()) {
-				//Extract just the user ID from the mention
-				String mentionedUserID = mentionMatcher.group().replaceFirst(MENTION_REGEX, "$1");
-				//Use the ID to get the user that has been mentioned
-				User mentionedUser = channel.getJDA().getUserById(mentionedUserID);
-				if (mentionedUser == null) continue; //api can't find the user, so mention won't ping anyone
-
-				//Make the escaped form of the mention
-				String escapedMention = "@"+ mentionedUser.getName() +"#"+ mentionedUser.getDiscriminator();
-
-				//Replace occurrence of mention to the non-mention form, and make it bold
-				sentence = sentence.replaceFirst(mentionMatcher.group(), "**"+ escapedMention +"**");
-			}
+			String sentence = markovCore.getSentence((startingWord.equals(""))? null : startingWord, order);
+			sentence = escapeMentions(channel.getJDA(), sentence);
 
 			//Send the message to the channel (or specify that it couldn't build the sentence for current user)
 			channel.sendMessage(sentence).tts(isTTS).queue();
@@ -322,6 +448,137 @@ public class BotListener extends ListenerAdapter {
 	}
 
 
+	/**
+	 * Gets several markov sentences from the markov core at once and sends them to a specified channel,
+	 * one per line, split over as few messages as possible
+	 * @param channel Channel that the markov sentences should be sent in
+	 * @param count how many sentences to send
+	 * @param order order of markov chain to build the sentences with
+	 */
+	private void sendMarkovSentences(MessageChannel channel, int count, int order) {
+		channel.sendTyping().queue();
+
+		try {
+			StringBuilder message = new StringBuilder();
+			for (String sentence : markovCore.getSentences(count, null, order)) {
+				sentence = escapeMentions(channel.getJDA(), sentence).trim();
+				if (sentence.length() > MESSAGE_MAX_LENGTH) continue;
+
+				//Send what's been collected so far if this sentence won't fit in the same message
+				if (message.length() + sentence.length() + 1 > MESSAGE_MAX_LENGTH) {
+					channel.sendMessage(message.toString()).queue();
+					message.setLength(0);
+				}
+				message.append(sentence).append("\n");
+			}
+			if (message.length() > 0) channel.sendMessage(message.toString()).queue();
+
+		} catch (InvalidUserException e) {
+			channel.sendMessage("No source data for current user").queue();
+		} catch (IllegalWordException e) {
+			channel.sendMessage(e.getMessage()).queue();
+		}
+	}
+
+	/**
+	 * @return the users to merge from the config, as user IDs mapped to the ID of the user merged into them
+	 */
+	private Map<Long, Long> getMergeUsers() {
+		Map<Long, Long> mergeUsers = new HashMap<>();
+		for (Map.Entry<String, String> pair : botConfig.getMergeUsers().entrySet()) {
+			mergeUsers.put(Long.parseUnsignedLong(pair.getKey()), Long.parseUnsignedLong(pair.getValue()));
+		}
+		return mergeUsers;
+	}
+
+	/**
+	 * Rebuilds the markov data from the source in the background, then reports how it went
+	 * @param channel Channel to report the progress in
+	 * @param full if every user should be rebuilt, rather than only those whose messages have changed
+	 */
+	private void rebuildMarkovData(MessageChannel channel, boolean full) {
+		Map<Long, Long> mergeUsers = getMergeUsers();
+
+		channel.sendMessage("Rebuilding markov data...").queue();
+		new Thread(() -> {
+			try {
+				String report = full? markovCore.rebuildModel(mergeUsers) : markovCore.rebuildChanges(mergeUsers);
+				channel.sendMessage(report).queue();
+				if (markovCore.saveSnapshot()) System.out.println("Saved markov model snapshot");
+			} catch (IOException e) {
+				channel.sendMessage("Failed to rebuild markov data").queue();
+				e.printStackTrace();
+			}
+		}, "Markov rebuild").start();
+	}
+
+	/**
+	 * Escapes the user mentions in a constructed sentence, so they don't ping anyone
+	 * @param api api instance used to find the mentioned users
+	 * @param sentence sentence to escape the mentions in
+	 * @return the sentence with the mentions replaced by bold usernames
+	 */
+	private String escapeMentions(JDA api, String sentence) {
+		Matcher mentionMatcher = MENTION_PATTERN.matcher(sentence);
+		while (mentionMatcher.find()) {
+			//Extract just the user ID from the mention
+			String mentionedUserID = mentionMatcher.group().replaceFirst(MENTION_REGEX, "$1");
+			//Use the ID to get the user that has been mentioned
+			User mentionedUser = api.getUserById(mentionedUserID);
+			if (mentionedUser == null) continue; //api can't find the user, so mention won't ping anyone
+
+			//Make the escaped form of the mention
+			String escapedMention = "@"+ mentionedUser.getName() +"#"+ mentionedUser.getDiscriminator();
+
+			//Replace occurrence of mention to the non-mention form, and make it bold
+			sentence = sentence.replaceFirst(mentionMatcher.group(), "**"+ escapedMention +"**");
+		}
+		return sentence;
+	}
+
+	/**
+	 * Reads the users and weights for a blend from a setuser command, such as <code>@a @b 0.7</code>.
+	 * The weights follow the users in the same order, and users without a weight share what's left equally.
+	 * If every user is given a weight, they're only relative to each other, so don't need to add up to <code>1</code>
+	 * @param jda API to find the mentioned users through
+	 * @param content content of the command, after the command itself
+	 * @return users mapped to their weights in the order they were mentioned,
+	 * 		   or <code>null</code> if a user couldn't be found or the weights are invalid
+	 */
+	private Map<User, Double> parseBlend(@NotNull JDA jda, @NotNull String content) {
+		List<User> users = new ArrayList<>();
+		List<Double> weights = new ArrayList<>();
+		for (String part : content.trim().split("\\s+")) {
+			Matcher mentionMatcher = MENTION_PATTERN.matcher(part);
+			if (mentionMatcher.matches()) {
+				//Every user has to come before the weights
+				if (!weights.isEmpty()) return null;
+				User user = jda.getUserById(mentionMatcher.group(1));
+				if (user == null || users.contains(user)) return null;
+				users.add(user);
+			} else {
+				try {
+					double weight = Double.parseDouble(part);
+					if (!(weight > 0) || Double.isInfinite(weight)) return null;
+					weights.add(weight);
+				} catch (NumberFormatException e) { return null; }
+			}
+		}
+		if (users.size() > Core.MAX_BLEND_USERS || weights.size() > users.size()) return null;
+
+		//Share what's left of the weight between the users who weren't given one
+		int unweighted = users.size() - weights.size();
+		if (unweighted > 0) {
+			double remaining = 1 - weights.stream().mapToDouble(Double::doubleValue).sum();
+			if (remaining <= 0) return null;
+			for (int i = 0; i < unweighted; i++) weights.add(remaining / unweighted);
+		}
+
+		Map<User, Double> blend = new LinkedHashMap<>();
+		for (int i = 0; i < users.size(); i++) blend.put(users.get(i), weights.get(i));
+		return blend;
+	}
+
 	/**
 	 * Converts a User from an instance of {@link net.dv8tion.jda.core.entities.User} (for the API) to
 	 * {@link me.Usoka.markov.User} for the libraries used with the markov core
@@ -0,0 +1,85 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Walker/Vose alias table for picking from a set of weighted options in constant time. <p/>
+ * Each option gets a column holding a threshold and an alias. A column is picked at random,
+ * then either the column's own option or its alias is returned depending on the threshold.
+ * All the arithmetic is done with integers so the odds exactly match the weights given.
+ */
+class AliasTable {
+	/**
+	 * Total of all the weights. Each column holds this much probability
+	 */
+	private final int total;
+
+	/**
+	 * Chance (out of {@link #total}) that a column returns its own option rather than its alias
+	 */
+	private final int[] thresholds;
+
+	/**
+	 * Option to return for each column when it doesn't return its own option
+	 */
+	private final int[] aliases;
+
+	/**
+	 * Builds an alias table from a range of running totals
+	 * @param runningTotals running totals of the weights, where each entry is the total of
+	 *                      all weights up to and including that option
+	 * @param start index of the first option in <code>runningTotals</code>
+	 * @param end index after the last option in <code>runningTotals</code>
+	 */
+	AliasTable(@NotNull IntBuffer runningTotals, int start, int end) {
+		int size = end - start;
+		total = runningTotals.get(end - 1);
+		thresholds = new int[size];
+		aliases = new int[size];
+
+		//Scale every weight by the number of options, so a full column holds exactly total
+		long[] scaled = new long[size];
+		int[] small = new int[size], large = new int[size];
+		int smallCount = 0, largeCount = 0;
+		for (int i = 0; i < size; i++) {
+			int weight = runningTotals.get(start + i) - ((i > 0)? runningTotals.get(start + i - 1) : 0);
+			scaled[i] = (long) weight * size;
+			if (scaled[i] < total) small[smallCount++] = i; else large[largeCount++] = i;
+		}
+
+		//Fill each under-full column with probability taken from an over-full one
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount], more = large[--largeCount];
+			thresholds[less] = (int) scaled[less];
+			aliases[less] = more;
+
+			scaled[more] -= total - scaled[less];
+			if (scaled[more] < total) small[smallCount++] = more; else large[largeCount++] = more;
+		}
+
+		//Anything left over is full (within rounding), so always returns itself
+		while (largeCount > 0) {
+			int full = large[--largeCount];
+			thresholds[full] = total;
+			aliases[full] = full;
+		}
+		while (smallCount > 0) {
+			int full = small[--smallCount];
+			thresholds[full] = total;
+			aliases[full] = full;
+		}
+	}
+
+	/**
+	 * Picks one of the options, weighted by the weights the table was built with
+	 * @param random source of randomness for picking the option
+	 * @return index of the option picked, relative to the start of the range the table was built from
+	 */
+	int sample(@NotNull Random random) {
+		int column = random.nextInt(thresholds.length);
+		return (random.nextInt(total) < thresholds[column])? column : aliases[column];
+	}
+}
@@ -0,0 +1,219 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.*;
+
+/**
+ * Weighted mix of several users' compiled models, built at query time without merging their data. <p/>
+ * Each pick first chooses one of the models by its weight, then picks from that model's own alias table
+ * or running totals, so sampling from a blend costs about the same as sampling from one model. Models which
+ * can't make the pick (such as not having any links from the word) are left out and the choice is made again
+ * from the rest, so the next word follows each model's links in proportion to the weights of the models that have any.
+ */
+class BlendedModel implements ChainModel {
+	/**
+	 * Most models that can be blended together ({@value})
+	 */
+	static final int MAX_MODELS = 64;
+
+	private final MarkovModel[] models;
+
+	/**
+	 * Weight of each model, adding up to <code>1</code>
+	 */
+	private final double[] weights;
+
+	/**
+	 * @param models models to blend together
+	 * @param weights relative weight of each model. Scaled so they add up to <code>1</code>
+	 */
+	BlendedModel(@NotNull MarkovModel[] models, @NotNull double[] weights) {
+		if (models.length == 0 || models.length > MAX_MODELS) {
+			throw new IllegalArgumentException("Can only blend between 1 and "+ MAX_MODELS +" models ("+ models.length +")");
+		}
+		if (weights.length != models.length) throw new IllegalArgumentException("Every model needs a weight");
+
+		double total = 0;
+		for (double weight : weights) {
+			if (!(weight > 0) || Double.isInfinite(weight)) throw new IllegalArgumentException("Weights must be positive ("+ weight +")");
+			total += weight;
+		}
+
+		this.models = models.clone();
+		this.weights = new double[weights.length];
+		for (int i = 0; i < weights.length; i++) this.weights[i] = weights[i] / total;
+	}
+
+	/**
+	 * Makes a blend with the same weights from a different set of models, such as after they've been updated
+	 * @param models models to blend, in the same order as this blend's
+	 * @return the new blend
+	 */
+	BlendedModel withModels(@NotNull MarkovModel[] models) { return new BlendedModel(models, weights); }
+
+	/**
+	 * @return weight of each model, in the same order as {@link #getModels()}, adding up to <code>1</code>
+	 */
+	double[] getWeights() { return weights.clone(); }
+
+	@Override
+	public List<MarkovModel> getModels() { return Collections.unmodifiableList(Arrays.asList(models)); }
+
+	/**
+	 * Picks one of the models by weight
+	 * @param excluded bit set of the models to leave out
+	 * @return index of the model, or <code>-1</code> if every model is left out
+	 */
+	private int pickModel(@NotNull Random random, long excluded) {
+		double total = 0;
+		int last = -1;
+		for (int i = 0; i < models.length; i++) {
+			if ((excluded & (1L << i)) != 0) continue;
+			total += weights[i];
+			last = i;
+		}
+		if (last < 0) return -1;
+
+		double point = random.nextDouble() * total;
+		for (int i = 0; i < last; i++) {
+			if ((excluded & (1L << i)) != 0) continue;
+			point -= weights[i];
+			if (point < 0) return i;
+		}
+		return last;
+	}
+
+	/**
+	 * Gets how many unique words are in the lexicon of any of the models, counting each word once
+	 */
+	@Override
+	public int getLexiconSize() {
+		//A word is counted by the first model it's in
+		int[] size = {0};
+		for (int i = 0; i < models.length; i++) {
+			int model = i;
+			models[i].forEachLexiconWord(wordID -> {
+				boolean counted = false;
+				for (int j = 0; j < model && !counted; j++) counted = models[j].containsWord(wordID);
+				if (!counted) size[0]++;
+			});
+		}
+		return size[0];
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (MarkovModel model : models) if (!model.isEmpty()) return false;
+		return true;
+	}
+
+	@Override
+	public boolean containsWord(int wordID) {
+		for (MarkovModel model : models) if (model.containsWord(wordID)) return true;
+		return false;
+	}
+
+	@Override
+	public int getRandomWord(@NotNull Random random) {
+		long excluded = 0;
+		for (int model = pickModel(random, excluded); model >= 0; model = pickModel(random, excluded)) {
+			int wordID = models[model].getRandomWord(random);
+			if (wordID >= 0) return wordID;
+			excluded |= 1L << model;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets how often a word has been said, as the weighted average across the models
+	 */
+	@Override
+	public int getFrequencyOf(@NotNull String word) {
+		double frequency = 0;
+		for (int i = 0; i < models.length; i++) frequency += weights[i] * models[i].getFrequencyOf(word);
+		return (int) Math.round(frequency);
+	}
+
+	/**
+	 * Gets how often a word has been said, as the weighted average across the models
+	 */
+	@Override
+	public int getFrequencyOf(int wordID) {
+		double frequency = 0;
+		for (int i = 0; i < models.length; i++) frequency += weights[i] * models[i].getFrequencyOf(wordID);
+		return (int) Math.round(frequency);
+	}
+
+	/**
+	 * Gets the total frequency of all links from a word, as the weighted average across the models
+	 */
+	@Override
+	public int getLinkTotal(int wordID) {
+		double total = 0;
+		for (int i = 0; i < models.length; i++) total += weights[i] * models[i].getLinkTotal(wordID);
+		return (int) Math.round(total);
+	}
+
+	@Override
+	public boolean hasEndCounts() {
+		for (MarkovModel model : models) if (model.hasEndCounts()) return true;
+		return false;
+	}
+
+	/**
+	 * Gets the chance of a message ending after a specified word, from the weighted totals of how often
+	 * messages ended with it and carried on past it across the models
+	 */
+	@Override
+	public double getEndChance(int wordID) {
+		double endTotal = 0, total = 0;
+		for (int i = 0; i < models.length; i++) {
+			int endCount = models[i].getEndCount(wordID);
+			endTotal += weights[i] * endCount;
+			total += weights[i] * (endCount + models[i].getLinkTotal(wordID));
+		}
+		return (total == 0)? 1 : endTotal / total;
+	}
+
+	@Override
+	public int getRandomLink(int wordID, @NotNull Random random) {
+		long excluded = 0;
+		for (int model = pickModel(random, excluded); model >= 0; model = pickModel(random, excluded)) {
+			int linkedWordID = models[model].getRandomLink(wordID, random);
+			if (linkedWordID >= 0) return linkedWordID;
+			excluded |= 1L << model;
+		}
+		return -1;
+	}
+
+	@Override
+	public int getRandomLink(int order, @NotNull int[] context, int contextLength, @NotNull Random random) {
+		long excluded = 0;
+		for (int model = pickModel(random, excluded); model >= 0; model = pickModel(random, excluded)) {
+			int linkedWordID = models[model].getRandomLink(order, context, contextLength, random);
+			if (linkedWordID >= 0) return linkedWordID;
+			excluded |= 1L << model;
+		}
+		return -1;
+	}
+
+	@Override
+	public int getLowerCaseID(int wordID) {
+		for (MarkovModel model : models) {
+			int lowerCaseID = model.getLowerCaseID(wordID);
+			if (lowerCaseID >= 0) return lowerCaseID;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the markov links for a specified word, adding together the frequencies from every model
+	 */
+	@Override
+	public Map<String, Integer> getLinks(@NotNull String word) {
+		Map<String, Integer> links = new HashMap<>();
+		for (MarkovModel model : models) model.getLinks(word).forEach((endWord, frequency) -> links.merge(endWord, frequency, Integer::sum));
+		return links;
+	}
+}
@@ -0,0 +1,110 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Markov data that sentences can be built from: either a single compiled {@link MarkovModel}, or a
+ * {@link BlendedModel} mixing several of them. Words are referred to by their ID in the shared {@link WordDictionary}
+ */
+interface ChainModel {
+	/**
+	 * @return the compiled models this is made from
+	 */
+	List<MarkovModel> getModels();
+
+	/**
+	 * @return how many unique words are in the lexicon
+	 */
+	int getLexiconSize();
+
+	/**
+	 * Checks if the lexicon has no words, without counting them
+	 * @return if no words have been said
+	 */
+	boolean isEmpty();
+
+	/**
+	 * Checks if a word is part of the lexicon
+	 * @param wordID ID of the word
+	 * @return if the word has been said
+	 */
+	boolean containsWord(int wordID);
+
+	/**
+	 * Picks a random word from the lexicon, weighted by how often each word has been said
+	 * @param random source of randomness for picking the word
+	 * @return ID of the chosen word, or <code>-1</code> if the lexicon is empty
+	 */
+	int getRandomWord(@NotNull Random random);
+
+	/**
+	 * Gets how often a word has been said, ignoring case
+	 * @param word specified word to find the frequency of
+	 * @return frequency of the word
+	 */
+	int getFrequencyOf(@NotNull String word);
+
+	/**
+	 * Gets how often a word has been said, ignoring case
+	 * @param wordID ID of the word
+	 * @return frequency of the word
+	 */
+	int getFrequencyOf(int wordID);
+
+	/**
+	 * Gets the total frequency of all links from a specified word
+	 * @param wordID ID of the start word
+	 * @return total of the link frequencies, <code>0</code> if there are no links
+	 */
+	int getLinkTotal(int wordID);
+
+	/**
+	 * @return if the model knows where messages end. It doesn't if its markov data was built before the ends were recorded
+	 */
+	boolean hasEndCounts();
+
+	/**
+	 * Gets the chance of a message ending after a specified word, from how often messages ended with
+	 * it compared to how often they carried on to another word
+	 * @param wordID ID of the word
+	 * @return chance from <code>0</code> to <code>1</code>. <code>1</code> if nothing has ever followed the word
+	 */
+	double getEndChance(int wordID);
+
+	/**
+	 * Picks one of the links from a specified word, weighted by the frequency of each link
+	 * @param wordID ID of the start word
+	 * @param random source of randomness for picking the link
+	 * @return ID of the linked word, or <code>-1</code> if the word has no links
+	 */
+	int getRandomLink(int wordID, @NotNull Random random);
+
+	/**
+	 * Picks the next word following a context of several words, using the higher order links of a given order.
+	 * The tables for that order must already have been compiled (see {@link MarkovModel#withNGramTable(NGramTable)})
+	 * @param order number of context words to use
+	 * @param context word IDs of the lower case forms of the previous words, oldest first
+	 * @param contextLength number of words in <code>context</code>
+	 * @param random source of randomness for picking the link
+	 * @return ID of the linked word, or <code>-1</code> if the context has never been seen
+	 */
+	int getRandomLink(int order, @NotNull int[] context, int contextLength, @NotNull Random random);
+
+	/**
+	 * Gets the ID of the lower case form of a word, which is the form used for link start words
+	 * @param wordID ID of the word
+	 * @return ID of the lower case form, or <code>-1</code> if the word isn't known
+	 */
+	int getLowerCaseID(int wordID);
+
+	/**
+	 * Returns the markov links (potential next words) for a specified word
+	 * @param word word to find markov links for
+	 * @return <code>Map</code> of linked words to their frequencies
+	 */
+	Map<String, Integer> getLinks(@NotNull String word);
+}
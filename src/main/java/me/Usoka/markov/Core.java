@@ -5,25 +5,180 @@ import me.Usoka.markov.exceptions.InvalidUserException;
 import me.Usoka.markov.exceptions.IllegalWordException;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Core {
+	/**
+	 * Default maximum size (in bytes) of the compiled models kept in memory ({@value})
+	 */
+	public static final long DEFAULT_MODEL_CACHE_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Highest order of markov chain that sentences can be built with ({@value}).
+	 * The order is how many previous words are used to pick the next word
+	 */
+	public static final int MAX_CHAIN_ORDER = 3;
+
+	/**
+	 * Most users that can be blended together as the target ({@value})
+	 */
+	public static final int MAX_BLEND_USERS = BlendedModel.MAX_MODELS;
+
+	/**
+	 * Most higher order links kept in memory for each order of each model ({@value}).
+	 * The least frequent links are dropped beyond this
+	 */
+	private static final int MAX_NGRAM_LINKS = 4_000_000;
+
+	/**
+	 * How often the snapshot is checked, and written again if any markov data has changed ({@value} minutes).
+	 * Only the models whose data has changed are compiled again. Every new message changes the data for all users,
+	 * so that model can only be opened from a snapshot written since the last one
+	 */
+	private static final int SNAPSHOT_INTERVAL_MINUTES = 30;
+
 	private SourceHandler markovSource;
-	private DataHandler markovData;
 
-	private User currentUser;
+	/**
+	 * Handler for the markov database. Replaced when a rebuilt database is switched over to
+	 */
+	private volatile DataHandler markovData;
+
+	private final String sourceDatabaseDir;
+	private final String markovDatabaseDir;
+
+	/**
+	 * Dictionary of every word known to the core, shared by all of the compiled models
+	 */
+	private final WordDictionary dictionary;
+
+	/**
+	 * File the snapshot of every user's model is kept in, next to the markov database
+	 */
+	private final Path snapshotFile;
 
 	/**
-	 * Set of all unique words in the lexicon, each word contained once
+	 * Snapshot models are opened from instead of being compiled, for users whose markov data hasn't changed
+	 * since it was written. <code>null</code> if there isn't one
 	 */
-	private Set<String> lexicon;
+	private volatile ModelSnapshot snapshot;
 
 	/**
-	 * Set of all words in the lexicon. Each word is repeated as many times as it appears in source
+	 * Held while the snapshot is being written, so only one is written at a time
 	 */
-	private List<String> allWords;
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * Keeps the snapshot up to date in the background, once there is one (see {@link #refreshSnapshot()})
+	 */
+	private final ScheduledExecutorService snapshotSaver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Markov snapshot");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Compiled markov data for the current target user (or blend of users), used for generating sentences. <br/>
+	 * Models never change once compiled, so each request takes the current model once at the start
+	 * and uses only that. Changing the target user publishes a whole new model in one step, so
+	 * requests running at the same time never see a mix of two users' data
+	 */
+	private final AtomicReference<ChainModel> currentModel = new AtomicReference<>();
+
+	/**
+	 * Recently used compiled models, so switching back to a user doesn't need to compile them again
+	 */
+	private final ModelCache models;
+
+	/**
+	 * Messages waiting to be written to the source and markov data, so receiving them doesn't wait on the databases
+	 */
+	private final IngestQueue ingestQueue;
+
+	/**
+	 * Changes from newly saved messages that haven't been added to the models in memory yet, keyed the same way as
+	 * the cache, then by the version of the markov data they were saved as. They're added in the background (see
+	 * {@link #updateModels()}), as an overlay on top of each model's compiled arrays
+	 * (see {@link MarkovModel#withChanges(ModelDelta, int)}).
+	 * <br/> Also used as the lock for the cache and everything else the models share. It's only held to look at or
+	 * swap models and changes, never while reading the markov data or compiling anything
+	 */
+	private final Map<Long, NavigableMap<Integer, ModelDelta>> pendingChanges = new HashMap<>();
+
+	/**
+	 * Number of threads reading each model from the markov data or snapshot, keyed the same way as the cache,
+	 * so changes saved in the meantime are kept for them. Guarded by {@link #pendingChanges}
+	 */
+	private final Map<Long, Integer> loadingModels = new HashMap<>();
+
+	/**
+	 * Number of times the markov data has been switched over to a rebuilt database. Anything read from the
+	 * markov data before a switch isn't cached. Guarded by {@link #pendingChanges}
+	 */
+	private int dataGeneration = 0;
+
+	/**
+	 * If {@link #updateModels()} is waiting to run on the updater. Guarded by {@link #pendingChanges}
+	 */
+	private boolean updateQueued = false;
+
+	/**
+	 * Adds changes from new messages to the models in memory, so nothing using the models waits on their overlays being copied
+	 */
+	private final ExecutorService updater = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Markov model updater");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Compiles models whose overlays have grown too large again, away from the updater
+	 */
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Markov model compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Changes added to each model while it's being compacted, keyed the same way as {@link #pendingChanges}, so they
+	 * can be added to the compacted model once it's done. Only added to on the updater. Guarded by {@link #pendingChanges}
+	 */
+	private final Map<Long, NavigableMap<Integer, ModelDelta>> compactingChanges = new HashMap<>();
+
+	/**
+	 * Changes saved to the markov database while a rebuild is running, keyed by the data version they were saved as,
+	 * so they can be applied to the rebuilt database too. <code>null</code> if no rebuild is running.
+	 * Guarded by {@link #materialLock}
+	 */
+	private NavigableMap<Integer, Map<User, ModelDelta>> changesDuringRebuild = null;
+
+	/**
+	 * User IDs mapped to the ID of another user whose messages also count as theirs. New messages are learned
+	 * for the users they're merged into as well as their author, the same way a rebuild counts them
+	 */
+	private volatile Map<Long, Long> mergeUsers = Collections.emptyMap();
+
+	/**
+	 * Held while messages are written to the source and added to the markov data, so a rebuild never
+	 * starts between the two (see {@link ModelBuilder}), and the markov data is never switched over part way through
+	 */
+	private final Object materialLock = new Object();
 
 	/**
 	 * Create an instance of <code>Core</code> without a specific user to target from initialisation
@@ -42,15 +197,39 @@ public class Core {
 	 *                     to target all users
 	 */
 	public Core(@NotNull String sqlSourceDatabaseDir, @NotNull String sqlMarkovDatabaseDir, User selectedUser) {
+		this(sqlSourceDatabaseDir, sqlMarkovDatabaseDir, selectedUser, DEFAULT_MODEL_CACHE_BYTES);
+	}
+
+	/**
+	 * Create an instance of <code>Core</code> with a specified user to target from initialisation,
+	 * and a limit on how much memory the compiled models can use
+	 * @param sqlSourceDatabaseDir directory for the SQLite Source database
+	 * @param sqlMarkovDatabaseDir directory for the SQLire Markov database
+	 * @param selectedUser specified user for the markov data. <code>null</code>
+	 *                     to target all users
+	 * @param modelCacheBytes maximum total size (in bytes) of the compiled models kept in memory
+	 */
+	public Core(@NotNull String sqlSourceDatabaseDir, @NotNull String sqlMarkovDatabaseDir, User selectedUser, long modelCacheBytes) {
+		this.models = new ModelCache(modelCacheBytes);
+		this.sourceDatabaseDir = sqlSourceDatabaseDir;
+		this.markovDatabaseDir = sqlMarkovDatabaseDir;
+
 		try { //Try creating the SQLite database handlers
 			this.markovSource = new SQLiteSourceHandler(sqlSourceDatabaseDir);
 			this.markovData = new SQLiteDataHandler(sqlMarkovDatabaseDir);
 		} catch (SQLException e) {
 			throw new IllegalArgumentException("Invalid database directory, could not connect", e);
 		}
+		if (!markovData.hasMessageEnds()) System.out.println("Markov data doesn't have the ends of messages, rebuild it to end sentences where messages did");
+
+		//Words in the snapshot keep their IDs, so its models can use the same dictionary as everything else
+		this.snapshotFile = Paths.get(sqlMarkovDatabaseDir +".snapshot");
+		this.snapshot = openSnapshot(snapshotFile);
+		this.dictionary = (snapshot != null)? snapshot.getDictionary() : new WordDictionary();
 
-		this.currentUser = selectedUser;
-		getLexiconFromData();
+		setTargetUser(selectedUser);
+		this.ingestQueue = new IngestQueue(this::writeMaterial);
+		snapshotSaver.scheduleWithFixedDelay(this::refreshSnapshot, SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
 	}
 
 	/**
@@ -58,23 +237,754 @@ public class Core {
 	 * @param targetUser specified target user. <code>null</code> to set to all users
 	 */
 	public void setTargetUser(User targetUser) {
-		this.currentUser = targetUser;
-		getLexiconFromData();
+		//Pinned first, so it can't be evicted between being cached and being published
+		models.pin(Collections.singleton(ModelCache.keyFor(targetUser)));
+		currentModel.set(getModelFor(targetUser));
+		//Adds any changes saved while the model was being read
+		requestUpdate();
+	}
+
+	/**
+	 * Sets the target to a weighted blend of several users. Sentences pick each next word from one of the users'
+	 * markov data, chosen by weight, without their data ever being merged together
+	 * @param userWeights users mapped to their weight. Weights are relative, so don't have to add up to <code>1</code>.
+	 *                    A <code>null</code> user stands for all users
+	 * @throws IllegalArgumentException if there are no users, more than {@value #MAX_BLEND_USERS} users,
+	 *                                  or a weight isn't positive
+	 */
+	public void setTargetBlend(@NotNull Map<User, Double> userWeights) {
+		if (userWeights.isEmpty()) throw new IllegalArgumentException("Blend must have at least one user");
+		if (userWeights.size() > MAX_BLEND_USERS) {
+			throw new IllegalArgumentException("Blend can have at most "+ MAX_BLEND_USERS +" users ("+ userWeights.size() +")");
+		}
+		if (userWeights.size() == 1) {
+			setTargetUser(userWeights.keySet().iterator().next());
+			return;
+		}
+
+		List<Long> keys = new ArrayList<>();
+		for (User user : userWeights.keySet()) keys.add(ModelCache.keyFor(user));
+		models.pin(keys);
+
+		MarkovModel[] blendModels = new MarkovModel[userWeights.size()];
+		double[] weights = new double[userWeights.size()];
+		int i = 0;
+		for (Map.Entry<User, Double> entry : userWeights.entrySet()) {
+			weights[i] = entry.getValue();
+			blendModels[i++] = getModelFor(entry.getKey());
+		}
+		currentModel.set(new BlendedModel(blendModels, weights));
+		requestUpdate();
+	}
+
+	/**
+	 * @return the current target user. <code>null</code> if targeting all users, or a blend of users
+	 */
+	public User getTargetUser() {
+		List<MarkovModel> targetModels = currentModel.get().getModels();
+		return (targetModels.size() == 1)? targetModels.get(0).getUser() : null;
+	}
+
+	/**
+	 * Sets which users have another user's messages counted as theirs, so new messages are learned the same way a
+	 * rebuild would count them. Should match the merges the markov data was last rebuilt with (rebuilding sets them too)
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 */
+	public void setMergeUsers(@NotNull Map<Long, Long> mergeUsers) { this.mergeUsers = new HashMap<>(mergeUsers); }
+
+	/**
+	 * Gets the model for the current target. Changes from new messages are added to it in the background
+	 * @return the latest model for the current target
+	 */
+	private ChainModel getCurrentModel() { return getCurrentModel(1); }
+
+	/**
+	 * Gets the model for the current target, first compiling any higher order link tables it doesn't have yet.
+	 * Once it has them this only reads the current model, without waiting on anything
+	 * @param order highest order of chain the model will be used for
+	 * @return the latest model for the current target
+	 */
+	private ChainModel getCurrentModel(int order) {
+		ChainModel model = currentModel.get();
+		boolean hasTables = true;
+		for (MarkovModel part : model.getModels()) hasTables &= hasNGramTables(part, order);
+		if (hasTables) return model;
+
+		List<MarkovModel> parts = model.getModels();
+		MarkovModel[] partsWithTables = new MarkovModel[parts.size()];
+		for (int i = 0; i < partsWithTables.length; i++) partsWithTables[i] = withNGramTables(parts.get(i), order);
+
+		//Only publish the model with the tables if the target hasn't been changed in the meantime
+		ChainModel modelWithTables = withParts(model, partsWithTables);
+		currentModel.compareAndSet(model, modelWithTables);
+		return modelWithTables;
+	}
+
+	/**
+	 * Gets the latest version of a model, with the same target. Every model it's made from is taken
+	 * from the cache again, or compiled again if it's been dropped
+	 * @param model model to refresh
+	 * @param order highest order of chain the model will be used for
+	 * @return the up to date model
+	 */
+	private ChainModel refreshModel(@NotNull ChainModel model, int order) {
+		List<MarkovModel> parts = model.getModels();
+		MarkovModel[] updatedParts = new MarkovModel[parts.size()];
+		for (int i = 0; i < updatedParts.length; i++) updatedParts[i] = getModelFor(parts.get(i).getUser(), order);
+		return withParts(model, updatedParts);
+	}
+
+	/**
+	 * Makes a model with the same target as another, out of different versions of the models it's made from
+	 * @param model model to copy the target of
+	 * @param parts the models to use, in the same order as {@link ChainModel#getModels()}
+	 * @return the new model
+	 */
+	private static ChainModel withParts(@NotNull ChainModel model, @NotNull MarkovModel[] parts) {
+		return (model instanceof MarkovModel)? parts[0] : ((BlendedModel) model).withModels(parts);
+	}
+
+	/**
+	 * Gets the markov data, including the lexicon (collection of all unique words), for a specified user.
+	 * Uses the cached model if there is one, otherwise compiles it and adds it to the cache
+	 * @param user specified user. <code>null</code> for all users
+	 * @return the compiled model for that user
+	 */
+	private MarkovModel getModelFor(User user) { return getModelFor(user, 1); }
+
+	/**
+	 * Gets the markov data for a specified user, with its higher order link tables up to a given order.
+	 * Uses the cached model if there is one, otherwise opens it from the snapshot or compiles it and adds it to
+	 * the cache. Changes from new messages are added to cached models in the background. <br/>
+	 * Nothing is read or compiled while holding the lock, so a model read while the markov data is being switched
+	 * over to a rebuilt database is used once but never cached
+	 * @param user specified user. <code>null</code> for all users
+	 * @param order highest order of chain the model will be used for
+	 * @return the compiled model for that user
+	 */
+	private MarkovModel getModelFor(User user, int order) {
+		if (order < 1 || order > MAX_CHAIN_ORDER) {
+			throw new IllegalArgumentException("Chain order must be between 1 and "+ MAX_CHAIN_ORDER +" ("+ order +")");
+		}
+
+		long key = ModelCache.keyFor(user);
+		MarkovModel model;
+		int generation;
+		synchronized (pendingChanges) {
+			model = models.get(key);
+			generation = dataGeneration;
+			if (model == null) loadingModels.merge(key, 1, Integer::sum);
+		}
+
+		if (model == null) model = loadModel(user, generation);
+		return withNGramTables(model, order);
+	}
+
+	/**
+	 * Opens a model from the snapshot, or compiles it from the markov data if the snapshot doesn't have an up to date
+	 * one, then caches it. Changes saved since the version of the markov data it was read at are added in the background
+	 * @param user specified user. <code>null</code> for all users
+	 * @param generation {@link #dataGeneration} when the model was counted in {@link #loadingModels}
+	 * @return the model, or the cached one if another thread cached it first
+	 */
+	private MarkovModel loadModel(User user, int generation) {
+		long key = ModelCache.keyFor(user);
+		MarkovModel model = null;
+		try {
+			model = getSnapshotModel(user);
+			if (model == null) model = MarkovModel.build(dictionary, markovData, user);
+		} finally {
+			//In the same step as caching it, so the changes kept for it can't be dropped in between
+			synchronized (pendingChanges) {
+				loadingModels.computeIfPresent(key, (k, count) -> (count > 1)? count - 1 : null);
+				//Not cached if the markov data couldn't be read, or was switched over while it was being read
+				if (model != null && model.getDataVersion() >= 0 && generation == dataGeneration) {
+					MarkovModel cachedModel = models.peek(key);
+					if (cachedModel == null) models.put(key, model);
+					else model = cachedModel;
+				}
+			}
+		}
+
+		requestUpdate();
+		return model;
+	}
+
+	/**
+	 * Adds any higher order link tables a model doesn't have yet, up to a given order. The tables are compiled
+	 * without holding the lock, then added to the cached model as well so they're only compiled once
+	 * @param model model to add the tables to
+	 * @param order highest order of chain the model will be used for
+	 * @return the model with the tables, or the cached model with them if it's at least as up to date
+	 */
+	private MarkovModel withNGramTables(@NotNull MarkovModel model, int order) {
+		if (hasNGramTables(model, order)) return model;
+
+		int generation;
+		synchronized (pendingChanges) {
+			generation = dataGeneration;
+		}
+
+		NGramTable[] tables = new NGramTable[order + 1];
+		for (int tableOrder = 2; tableOrder <= order; tableOrder++) {
+			tables[tableOrder] = model.getNGramTable(tableOrder);
+			if (tables[tableOrder] == null) tables[tableOrder] = compileNGramTable(model.getUser(), tableOrder);
+		}
+		MarkovModel modelWithTables = withNGramTables(model, tables);
+
+		synchronized (pendingChanges) {
+			//Tables read while the markov data was being switched over are only used this once
+			if (generation != dataGeneration) return modelWithTables;
+
+			long key = ModelCache.keyFor(model.getUser());
+			MarkovModel cachedModel = models.peek(key);
+			if (cachedModel == null) return modelWithTables;
+
+			MarkovModel cachedWithTables = withNGramTables(cachedModel, tables);
+			if (cachedWithTables != cachedModel) models.put(key, cachedWithTables);
+			return (cachedWithTables.getDataVersion() >= modelWithTables.getDataVersion())? cachedWithTables : modelWithTables;
+		}
+	}
+
+	/**
+	 * Adds the tables a model doesn't have yet to it
+	 * @param model model to add the tables to
+	 * @param tables tables indexed by their order, <code>null</code> for orders without one
+	 * @return the model with the tables, or the same model if it already had all of them
+	 */
+	private static MarkovModel withNGramTables(@NotNull MarkovModel model, @NotNull NGramTable[] tables) {
+		for (NGramTable table : tables) {
+			if (table != null && model.getNGramTable(table.getOrder()) == null) model = model.withNGramTable(table);
+		}
+		return model;
+	}
+
+	/**
+	 * @return if a model has every higher order link table up to a given order
+	 */
+	private static boolean hasNGramTables(@NotNull MarkovModel model, int order) {
+		for (int tableOrder = 2; tableOrder <= order; tableOrder++) if (model.getNGramTable(tableOrder) == null) return false;
+		return true;
+	}
+
+	/**
+	 * Queues {@link #updateModels()} to run on the updater, unless it's already waiting to
+	 */
+	private void requestUpdate() {
+		synchronized (pendingChanges) {
+			if (updateQueued) return;
+			updateQueued = true;
+		}
+		runInBackground(updater, this::updateModels);
+	}
+
+	/**
+	 * Adds the pending changes to the cached models, then publishes the latest version of the current target's
+	 * models. Only ever runs on the updater, so the only other thing that can replace a cached model in the meantime
+	 * is a command adding higher order link tables to it. The overlays are copied without holding the lock, and each
+	 * updated model is only cached if the model it was made from is still there
+	 */
+	private void updateModels() {
+		Map<Long, MarkovModel> baseModels = new HashMap<>();
+		Map<Long, NavigableMap<Integer, ModelDelta>> changes = new HashMap<>();
+		synchronized (pendingChanges) {
+			updateQueued = false;
+			Iterator<Map.Entry<Long, NavigableMap<Integer, ModelDelta>>> pending = pendingChanges.entrySet().iterator();
+			while (pending.hasNext()) {
+				Map.Entry<Long, NavigableMap<Integer, ModelDelta>> entry = pending.next();
+				MarkovModel model = models.peek(entry.getKey());
+				if (model != null) {
+					baseModels.put(entry.getKey(), model);
+					changes.put(entry.getKey(), entry.getValue());
+					pending.remove();
+				} else if (!loadingModels.containsKey(entry.getKey())) {
+					//Models no longer in memory will read the changes from the database when they're compiled
+					pending.remove();
+				}
+			}
+		}
+
+		Map<Long, MarkovModel> updatedModels = new HashMap<>();
+		for (Map.Entry<Long, MarkovModel> entry : baseModels.entrySet()) {
+			updatedModels.put(entry.getKey(), withPendingChanges(entry.getValue(), changes.get(entry.getKey())));
+		}
+
+		boolean requeued = false;
+		synchronized (pendingChanges) {
+			for (Map.Entry<Long, MarkovModel> entry : updatedModels.entrySet()) {
+				long key = entry.getKey();
+				MarkovModel cachedModel = models.peek(key), model = entry.getValue();
+				if (cachedModel != baseModels.get(key)) {
+					//Replaced in the meantime, so the changes are added to the new model instead
+					if (cachedModel != null) {
+						pendingChanges.computeIfAbsent(key, k -> new TreeMap<>()).putAll(changes.get(key));
+						requeued = true;
+					}
+					continue;
+				}
+				if (model == cachedModel) continue;
+				models.put(key, model);
+
+				NavigableMap<Integer, ModelDelta> changesWhileCompacting = compactingChanges.get(key);
+				if (changesWhileCompacting != null) changesWhileCompacting.putAll(changes.get(key));
+				else if (model.needsCompacting()) startCompacting(key, model);
+			}
+		}
+
+		if (requeued) requestUpdate();
+		publishCurrentModel();
+	}
+
+	/**
+	 * Adds the changes a model doesn't have yet to it
+	 * @param model model to add the changes to
+	 * @param changes changes keyed by the version of the markov data they were saved as
+	 * @return the model with the changes, or the same model if it already had all of them
+	 */
+	private static MarkovModel withPendingChanges(@NotNull MarkovModel model, @NotNull NavigableMap<Integer, ModelDelta> changes) {
+		NavigableMap<Integer, ModelDelta> newChanges = changes.tailMap(model.getDataVersion(), false);
+		if (newChanges.isEmpty()) return model;
+
+		ModelDelta mergedChanges = new ModelDelta();
+		for (ModelDelta delta : newChanges.values()) mergedChanges.addAll(delta);
+		return model.withChanges(mergedChanges, newChanges.lastKey());
+	}
+
+	/**
+	 * Compacts a model in the background, recording the changes added to the cached model in the meantime.
+	 * Must be called while holding the lock on {@link #pendingChanges}
+	 * @param key key of the model in the cache
+	 * @param model the model to compact
+	 */
+	private void startCompacting(long key, @NotNull MarkovModel model) {
+		NavigableMap<Integer, ModelDelta> laterChanges = new TreeMap<>();
+		compactingChanges.put(key, laterChanges);
+		runInBackground(compactor, () -> {
+			MarkovModel compactedModel = model.compact();
+			//Its tables are compiled again too, so they pick up the links learned since they were last compiled
+			for (int order = 2; order <= MAX_CHAIN_ORDER; order++) {
+				if (model.getNGramTable(order) != null) compactedModel = compactedModel.withNGramTable(compileNGramTable(model.getUser(), order));
+			}
+			MarkovModel finishedModel = compactedModel;
+			runInBackground(updater, () -> finishCompacting(key, laterChanges, finishedModel));
+		});
+	}
+
+	/**
+	 * Caches a model once it has been compacted in the background, first adding the changes made to the cached
+	 * model while it was being compacted. Runs on the updater, so no more changes can be added in the meantime
+	 * @param key key of the model in the cache
+	 * @param laterChanges changes made to the cached model since it was compacted
+	 * @param compactedModel the compacted model
+	 */
+	private void finishCompacting(long key, @NotNull NavigableMap<Integer, ModelDelta> laterChanges,
+								  @NotNull MarkovModel compactedModel) {
+		MarkovModel cachedModel;
+		synchronized (pendingChanges) {
+			//Dropped if the markov data was switched over or the model was evicted in the meantime
+			if (compactingChanges.get(key) != laterChanges) return;
+			compactingChanges.remove(key);
+			cachedModel = models.peek(key);
+			if (cachedModel == null) return;
+		}
+
+		MarkovModel model = withPendingChanges(compactedModel, laterChanges);
+		synchronized (pendingChanges) {
+			//Also dropped if a table was added to the cached model in the meantime. It's compacted again on its next change
+			if (models.peek(key) != cachedModel) return;
+			models.put(key, model);
+		}
+		publishCurrentModel();
+	}
+
+	/**
+	 * Publishes the latest cached version of each model the current target is made from, as long as it's at least as
+	 * up to date as the one it replaces. Tried again if the current model is replaced in the meantime
+	 */
+	private void publishCurrentModel() {
+		while (true) {
+			ChainModel model = currentModel.get();
+			List<MarkovModel> parts = model.getModels();
+			MarkovModel[] latestParts = new MarkovModel[parts.size()];
+			boolean changed = false;
+			synchronized (pendingChanges) {
+				for (int i = 0; i < latestParts.length; i++) {
+					MarkovModel part = parts.get(i), cachedModel = models.peek(ModelCache.keyFor(part.getUser()));
+					latestParts[i] = (cachedModel != null && cachedModel.getDataVersion() >= part.getDataVersion())? cachedModel : part;
+					changed |= latestParts[i] != part;
+				}
+			}
+
+			if (!changed || currentModel.compareAndSet(model, withParts(model, latestParts))) return;
+		}
+	}
+
+	/**
+	 * Runs a task in the background, unless the executor has already been shut down by {@link #close()}
+	 */
+	private static void runInBackground(@NotNull ExecutorService executor, @NotNull Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException ignored) {}
+	}
+
+	/**
+	 * Opens the snapshot file, if there is one. A snapshot that can't be opened is deleted, so the next one
+	 * is written from scratch
+	 * @return the snapshot, or <code>null</code> if there isn't one or it can't be read
+	 */
+	private static ModelSnapshot openSnapshot(@NotNull Path snapshotFile) {
+		if (!Files.exists(snapshotFile)) return null;
+		try {
+			return ModelSnapshot.open(snapshotFile);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to open model snapshot, deleting it: "+ e);
+		}
+
+		try {
+			Files.deleteIfExists(snapshotFile);
+		} catch (IOException e) {
+			System.err.println("Failed to delete model snapshot: "+ e);
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the model for a specified target from the snapshot, as long as the target's
+	 * markov data hasn't changed since the model was written
+	 * @param user specified user to get the model for. <code>null</code> for all users
+	 * @return the model, or <code>null</code> if the snapshot doesn't have an up to date one
+	 */
+	private MarkovModel getSnapshotModel(User user) {
+		ModelSnapshot currentSnapshot = snapshot;
+		if (currentSnapshot == null) return null;
+
+		try {
+			return currentSnapshot.getModel(dictionary, markovData, user);
+		} catch (IOException e) {
+			System.err.println("Failed to open model from snapshot: "+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return if there's a snapshot of the models and it's up to date with all of the markov data
+	 */
+	public boolean isSnapshotCurrent() {
+		ModelSnapshot currentSnapshot = snapshot;
+		return currentSnapshot != null && currentSnapshot.getDataVersion() == markovData.getDataVersion();
 	}
 
 	/**
-	 * Builds the lexicon (collection of all unique words) for the current target user.
+	 * Writes the snapshot again if there is one and the markov data has changed since it was written,
+	 * so the next start up (and any model compiled in the meantime) can open the models straight from it
 	 */
-	private void getLexiconFromData() {
-		if (currentUser == null) {
-			lexicon = markovData.getLexiconAll();
-			allWords = markovData.getAllWordsAll();
-		} else {
-			lexicon = markovData.getLexiconFor(currentUser);
-			allWords = markovData.getAllWordsFor(currentUser);
+	private void refreshSnapshot() {
+		if (snapshot == null || isSnapshotCurrent()) return;
+		if (saveSnapshot()) System.out.println("Saved markov model snapshot");
+	}
+
+	/**
+	 * Writes a snapshot of every user's model, so they can be opened straight from disk (including when starting up)
+	 * instead of being compiled from the markov data. Models still up to date in the current snapshot are copied
+	 * across and the rest are compiled, without holding any lock the models use, but it can still take as long as
+	 * compiling the model for all users so should be run in the background. Each model in the snapshot is used until
+	 * that user's markov data changes
+	 * @return if the snapshot was written. It isn't if the markov data was switched over to a rebuilt database
+	 * while it was being written
+	 */
+	public boolean saveSnapshot() {
+		synchronized (snapshotLock) {
+			int generation;
+			synchronized (pendingChanges) {
+				generation = dataGeneration;
+			}
+
+			Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() +".tmp");
+			ModelSnapshot newSnapshot = null, oldSnapshot;
+			try {
+				ModelSnapshot.write(tempFile, dictionary, markovData, snapshot);
+				//Opened before it's moved into place, so the lock is only held for the move
+				newSnapshot = ModelSnapshot.open(tempFile);
+
+				synchronized (pendingChanges) {
+					//Made from the old markov data, so it's no use with the rebuilt database
+					if (generation != dataGeneration) throw new IOException("Markov data was rebuilt while the snapshot was written");
+					Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					oldSnapshot = snapshot;
+					snapshot = newSnapshot;
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to save model snapshot: "+ e);
+				try {
+					if (newSnapshot != null) newSnapshot.close();
+					Files.deleteIfExists(tempFile);
+				} catch (IOException deleteException) {
+					System.err.println("Failed to delete unfinished model snapshot: "+ deleteException);
+				}
+				return false;
+			}
+
+			//Models opened from the old snapshot can still be used once it's closed
+			try {
+				if (oldSnapshot != null) oldSnapshot.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close old model snapshot: "+ e);
+			}
+			return true;
 		}
 	}
 
+	/**
+	 * Adds newly saved messages to the markov data, so they can be used in sentences straight away
+	 * instead of only after the next full rebuild
+	 * @param messages messages that have just been saved to the source for the first time
+	 */
+	private void learnMaterial(@NotNull List<Message> messages) { learnMaterial(messages, Collections.emptyList()); }
+
+	/**
+	 * Changes the markov data to match messages that have been saved, edited or deleted in the source.
+	 * An edit is the old version of the message being removed and the new version added, so only the
+	 * words and links which actually changed end up being updated. All the changes are saved to the markov
+	 * database in one transaction, and are queued up for any models in memory which they affect.
+	 * Must be called while holding {@link #materialLock}
+	 * @param addedMessages messages whose words should be added, as they've just been saved to the source
+	 * @param removedMessages messages whose words should be taken away, as read back from the source
+	 *                        (see {@link SourceHandler#getMessage(String)}) before they were changed or deleted
+	 */
+	private void learnMaterial(@NotNull List<Message> addedMessages, @NotNull List<Message> removedMessages) {
+		//Group the changes by author, splitting each message into words only once
+		Map<Long, User> authors = new HashMap<>();
+		Map<Long, ModelDelta> authorChanges = new HashMap<>();
+		for (Message message : addedMessages) {
+			String content = message.getContentCleaned();
+			if (content.equals("")) continue;
+
+			long authorID = message.getAuthor().getIdLong();
+			authors.putIfAbsent(authorID, message.getAuthor());
+			authorChanges.computeIfAbsent(authorID, k -> new ModelDelta()).addMessage(content);
+		}
+		for (Message message : removedMessages) {
+			//Messages from the source were cleaned before they were saved
+			String content = message.getContentRaw();
+			if (content.equals("")) continue;
+
+			long authorID = message.getAuthor().getIdLong();
+			authors.putIfAbsent(authorID, message.getAuthor());
+			authorChanges.computeIfAbsent(authorID, k -> new ModelDelta()).removeMessage(content);
+		}
+
+		//Users with another user merged into them learn that user's messages too
+		Map<Long, ModelDelta> mergedChanges = new HashMap<>();
+		for (Map.Entry<Long, Long> pair : mergeUsers.entrySet()) {
+			ModelDelta changes = authorChanges.get(pair.getValue());
+			if (changes == null || pair.getKey().equals(pair.getValue()) || !isSourceUser(pair.getKey())) continue;
+			mergedChanges.computeIfAbsent(pair.getKey(), k -> new ModelDelta()).addAll(changes);
+		}
+		for (Map.Entry<Long, ModelDelta> entry : mergedChanges.entrySet()) {
+			//The user is already in the source, so their name there is kept
+			authors.putIfAbsent(entry.getKey(), new User(entry.getKey(), ""));
+			authorChanges.computeIfAbsent(entry.getKey(), k -> new ModelDelta()).addAll(entry.getValue());
+		}
+
+		//Edits which didn't change any words leave nothing to do
+		authorChanges.values().removeIf(ModelDelta::isEmpty);
+		if (authorChanges.isEmpty()) return;
+
+		Map<User, ModelDelta> changes = new HashMap<>();
+		for (Map.Entry<Long, ModelDelta> entry : authorChanges.entrySet()) changes.put(authors.get(entry.getKey()), entry.getValue());
+
+		//Saved before taking the lock, so nothing waiting on it waits on the database. The material lock keeps the
+		//writes in order, and they're added to the models in memory in the background
+		int dataVersion = markovData.applyChanges(changes);
+		if (dataVersion < 0) return;
+		if (changesDuringRebuild != null) changesDuringRebuild.put(dataVersion, changes);
+
+		synchronized (pendingChanges) {
+			ModelDelta allChanges = new ModelDelta();
+			for (Map.Entry<Long, ModelDelta> entry : authorChanges.entrySet()) {
+				allChanges.addAll(entry.getValue());
+				queueChanges(entry.getKey(), dataVersion, entry.getValue());
+			}
+			queueChanges(ModelCache.ALL_USERS, dataVersion, allChanges);
+		}
+		requestUpdate();
+	}
+
+	/**
+	 * Queues changes for a model, if it's in memory or being read. Any other model will read the changes from
+	 * the database when it's compiled. Must be called while holding the lock on {@link #pendingChanges}
+	 * @param key key of the model (see {@link ModelCache#keyFor(User)})
+	 * @param dataVersion version of the markov data the changes were saved as
+	 * @param changes changes to queue
+	 */
+	private void queueChanges(long key, int dataVersion, @NotNull ModelDelta changes) {
+		if (!models.contains(key) && !loadingModels.containsKey(key)) return;
+		pendingChanges.computeIfAbsent(key, k -> new TreeMap<>()).put(dataVersion, changes);
+	}
+
+	/**
+	 * Checks if a user is in the source, so has markov data of their own when it's rebuilt
+	 * @param userID ID of the user
+	 * @return if the user is in the source. <code>false</code> if the source couldn't be read
+	 */
+	private boolean isSourceUser(long userID) {
+		try {
+			return markovSource.containsUserByID(Long.toUnsignedString(userID));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compiles the table of higher order links of a given order for a specified user. Reads the markov data without
+	 * holding any lock, so the table is only cached if the markov data wasn't switched over in the meantime
+	 * @param user specified user. <code>null</code> for all users
+	 * @param order number of context words in each link
+	 * @return the compiled table
+	 */
+	private NGramTable compileNGramTable(User user, int order) {
+		//Only the most frequent links are read, so the table's size stays bounded
+		NGramTable.Builder table = new NGramTable.Builder(dictionary, order);
+		if (user == null) markovData.readNGramsAll(order, MAX_NGRAM_LINKS, table);
+		else markovData.readNGramsFor(user, order, MAX_NGRAM_LINKS, table);
+		return table.build();
+	}
+
+	/**
+	 * Rebuilds all of the markov data from the source, then reloads the current target user's model.
+	 * Sentences keep being built from the old data, and new messages keep being learned, until the rebuild has finished
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 * @return summary of the rebuild, including how fast it went
+	 * @throws IOException if the rebuild failed. The markov data is left unchanged if so
+	 */
+	public String rebuildModel(@NotNull Map<Long, Long> mergeUsers) throws IOException {
+		return rebuildModel(mergeUsers, false);
+	}
+
+	/**
+	 * Rebuilds the markov data of only the users whose messages have changed since the last rebuild,
+	 * then reloads the current target user's model
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 * @return summary of the rebuild, including how fast it went
+	 * @throws IOException if the rebuild failed. The markov data is left unchanged if so
+	 */
+	public String rebuildChanges(@NotNull Map<Long, Long> mergeUsers) throws IOException {
+		return rebuildModel(mergeUsers, true);
+	}
+
+	/**
+	 * Rebuilds the markov data into a new database, then switches over to it and drops every model in memory,
+	 * since they're now out of date
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 * @param changesOnly if only users with changes since the last rebuild should be rebuilt
+	 * @return summary of the rebuild
+	 * @throws IOException if the rebuild failed, or another rebuild is already running
+	 */
+	private String rebuildModel(@NotNull Map<Long, Long> mergeUsers, boolean changesOnly) throws IOException {
+		synchronized (materialLock) {
+			if (changesDuringRebuild != null) throw new IOException("The markov data is already being rebuilt");
+			changesDuringRebuild = new TreeMap<>();
+		}
+		setMergeUsers(mergeUsers);
+
+		ModelBuilder.Report report;
+		try {
+			ModelBuilder builder = new ModelBuilder(sourceDatabaseDir, markovDatabaseDir, mergeUsers,
+					Runtime.getRuntime().availableProcessors(), materialLock);
+			report = changesOnly? builder.buildChanges(this::installMarkovData) : builder.build(this::installMarkovData);
+		} catch (SQLException e) {
+			throw new IOException("Failed to rebuild markov data", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rebuilding markov data", e);
+		} finally {
+			synchronized (materialLock) {
+				changesDuringRebuild = null;
+			}
+		}
+
+		currentModel.set(refreshModel(currentModel.get(), 1));
+		requestUpdate();
+		return report.toString();
+	}
+
+	/**
+	 * Switches over to a rebuilt markov database. Changes saved since the rebuild started are applied to the new
+	 * database first, then it's moved over the old one and reopened. New messages wait to be saved while this runs,
+	 * but it only takes as long as the changes do, and sentences keep being built from the models in memory
+	 * @param shadowDatabase the rebuilt database
+	 * @param markovDatabase the markov database it replaces
+	 * @param baseVersion version of the markov data the rebuild started from
+	 * @throws IOException if the rebuilt database couldn't be switched over to
+	 */
+	private void installMarkovData(@NotNull Path shadowDatabase, @NotNull Path markovDatabase,
+								   int baseVersion) throws IOException {
+		//The snapshot's versions can't be compared to the new database's, so no more models are opened from it
+		ModelSnapshot oldSnapshot = snapshot;
+		snapshot = null;
+
+		boolean switched = false;
+		try {
+			//Held so no new messages are saved to the old database once its changes have been copied over
+			synchronized (materialLock) {
+				try {
+					DataHandler shadowData = new SQLiteDataHandler(shadowDatabase.toString());
+					try {
+						for (Map<User, ModelDelta> changes : changesDuringRebuild.tailMap(baseVersion, false).values()) {
+							if (shadowData.applyChanges(changes) < 0) throw new IOException("Failed to add changes made during the rebuild");
+						}
+					} finally {
+						shadowData.close();
+					}
+
+					//The old connection has to be closed before its file is replaced
+					markovData.close();
+					try {
+						ModelBuilder.replaceDatabase(shadowDatabase, markovDatabase);
+					} finally {
+						markovData = new SQLiteDataHandler(markovDatabaseDir);
+					}
+				} catch (SQLException e) {
+					throw new IOException("Failed to open rebuilt markov data", e);
+				}
+			}
+			switched = true;
+		} finally {
+			//Still on the old data if it failed, so the snapshot is still good (unless a newer one was saved meanwhile)
+			if (!switched) {
+				synchronized (pendingChanges) {
+					if (snapshot == null) snapshot = oldSnapshot;
+				}
+			}
+		}
+
+		//Everything in memory is now out of date, and so is any snapshot saved in the meantime
+		ModelSnapshot savedSnapshot;
+		synchronized (pendingChanges) {
+			dataGeneration++;
+			pendingChanges.clear();
+			compactingChanges.clear();
+			models.clear();
+
+			savedSnapshot = snapshot;
+			snapshot = null;
+			Files.deleteIfExists(snapshotFile);
+		}
+
+		if (oldSnapshot != null) oldSnapshot.close();
+		if (savedSnapshot != null) savedSnapshot.close();
+	}
+
+	/**
+	 * Gets a summary of how the cache of compiled models is performing
+	 * @return how many models are cached and their size, along with the hit, miss and eviction counts
+	 */
+	public String getModelCacheStats() {
+		return models.size() +" models ("+ (models.getUsedBytes() / 1024) +" KiB), "+ models.getHits() +" hits, "
+				+ models.getMisses() +" misses, "+ models.getEvictions() +" evictions";
+	}
+
 	/**
 	 * @return how many unique words are in the lexicon for everyone
 	 */
@@ -84,7 +994,7 @@ public class Core {
 	 * Get the size of the lexicon for the current target user
 	 * @return size of lexicon for the current target user
 	 */
-	public int getLexiconSize() { return lexicon.size(); }
+	public int getLexiconSize() { return getCurrentModel().getLexiconSize(); }
 
 	/**
 	 * Gets the size of the lexicon for a specified user
@@ -109,30 +1019,23 @@ public class Core {
 	 * @param word word to check frequency of
 	 * @return frequency of specified word in the markov data, for current user
 	 */
-	public int getFrequencyOf(@NotNull String word) {
-		if (currentUser == null) return getAllFrequencyOf(word);
-		return markovData.getWordFrequencyFor(word, currentUser);
-	}
+	public int getFrequencyOf(@NotNull String word) { return getCurrentModel().getFrequencyOf(word); }
 
 	/**
-	 * Finds the contexts in which a specified word has been said in the source messages
+	 * Finds the contexts in which a specified word has been said in the source messages, a page at a time
 	 * @param word the word to look for in the source messages
-	 * @return Compiled message of all messages containing the given word
+	 * @param order which messages come first
+	 * @param offset how many messages to skip before the page starts. Ignored for {@link MessageOrder#RANDOM}
+	 * @param limit most messages on the page
+	 * @return each message on the page, as its author's mention followed by its content
 	 * @throws IOException if there is an error reading from the source data
 	 */
-	public String getContextOf(@NotNull String word) throws IOException{
-		List<Message> messages = markovSource.getMessagesContaining(word);
-
-		StringBuilder compiledMessage = new StringBuilder();
-
-		messages.stream()
-				//Ensure the occurrence of the word is not as a substring of a longer word
-				.filter(m -> m.getContentRaw().matches("(?:^|.*[^a-zA-Z0-9])(?i)"+ Pattern.quote(word) +"(?-i)(?:[^a-zA-Z0-9].*|$)"))
+	public List<String> getContextOf(@NotNull String word, @NotNull MessageOrder order, int offset, int limit) throws IOException {
+		//Only messages with the whole word, rather than as part of a longer word
+		return markovSource.getMessagesWithWord(word, order, offset, limit).stream()
 				//Add Author and message content
-				.map(m -> m.getAuthor().asMention() +": "+ m.getContentRaw() +"\r\n")
-				.forEach(compiledMessage::append);
-
-		return compiledMessage.toString();
+				.map(m -> m.getAuthor().asMention() +": "+ m.getContentRaw())
+				.collect(Collectors.toList());
 	}
 
 	/**
@@ -140,31 +1043,7 @@ public class Core {
 	 * @param word word to find markov links for
 	 * @return <code>Map</code> of linked words to their frequencies
 	 */
-	public Map<String, Integer> getMarkovLinks(@NotNull String word) {
-		if (currentUser == null) return markovData.getLinksAll(word);
-		return markovData.getLinksFor(currentUser, word);
-	}
-
-	/**
-	 * Returns a <code>List</code> of all markov links for a specified word.
-	 * Each word appears in the list the number of times associated with it's
-	 * frequency (how many times it's followed the provided word)
-	 * @param word word to find the markov links for
-	 * @return <code>List</code> of linked words, appearing as many times as their frequency
-	 */
-	public List<String> getMarkovLinksAsList(@NotNull String word) {
-		List<String> markovLinkList = new ArrayList<>();
-		Map<String, Integer> wordFreqMap = getMarkovLinks(word);
-
-		//Go through each of the words in the Map
-		for (String key : wordFreqMap.keySet()) {
-			//Add it to the list the same number of times as it's frequency
-			for (int i = 0; i < wordFreqMap.get(key); i++) {
-				markovLinkList.add(key);
-			}
-		}
-		return markovLinkList;
-	}
+	public Map<String, Integer> getMarkovLinks(@NotNull String word) { return getCurrentModel().getLinks(word); }
 
 	/**
 	 * Builds a String of the markov data for a specified word, including frequencies of each.
@@ -192,65 +1071,106 @@ public class Core {
 	 * @throws InvalidUserException if current user has no data
 	 */
 	public String getRandomWord() throws InvalidUserException {
-		if (allWords == null || allWords.size() == 0) throw new InvalidUserException("No data for current user");
-		return allWords.get((int)(Math.random() * allWords.size()));
+		return dictionary.getWord(getRandomWordID(getCurrentModel()));
 	}
 
 	/**
-	 * Picks a next word to use in a markov chain, based on the links from the current word
+	 * Gets the ID of a random word from a model's lexicon
+	 * @param model model to pick the word from
+	 * @return ID of the chosen word
+	 * @throws InvalidUserException if the model has no data
+	 */
+	private int getRandomWordID(@NotNull ChainModel model) throws InvalidUserException {
+		int wordID = model.getRandomWord(ThreadLocalRandom.current());
+		if (wordID < 0) throw new InvalidUserException("No data for current user");
+		return wordID;
+	}
+
+	/**
+	 * Picks a next word to use in a markov chain, based on the links from the current word.
+	 * For chains above the first order, the longest context of previous words that has been
+	 * seen before is used, backing off to fewer words (down to only the preceding word) when it hasn't
 	 * <br/> Note: Has a 1 in 50 chance of picking a completely random word instead
-	 * @param precedingWord the word which this one will follow
-	 * @return the chosen next word
-	 * @throws InvalidUserException if current user has no data
+	 * @param model model to pick the word from
+	 * @param order order of the chain. The model's tables must be compiled up to this order
+	 * @param context IDs of the lower case forms of the previous words, oldest first
+	 * @param contextLength number of words in <code>context</code>
+	 * @param precedingWordID ID of the word which this one will follow
+	 * @return ID of the chosen next word
+	 * @throws InvalidUserException if the model has no data
 	 * @throws IllegalWordException if the provided word doesn't have any linked words
 	 */
-	private String getNextWord(@NotNull String precedingWord) throws InvalidUserException, IllegalWordException {
-		String returnWord = getRandomWord();
+	private int getNextWord(@NotNull ChainModel model, int order, @NotNull int[] context,
+							int contextLength, int precedingWordID) throws InvalidUserException, IllegalWordException {
+		Random random = ThreadLocalRandom.current();
 
-		//Get all the words which are linked in the markov data from precedingWord
-		List<String> linkedWords = getMarkovLinksAsList(precedingWord);
-		if (linkedWords.size() == 0) throw new IllegalWordException("No linked words found");
+		//Pick from the words which are linked in the markov data from the longest known context
+		int linkedWordID = -1;
+		for (int linkOrder = Math.min(order, contextLength); linkOrder >= 2 && linkedWordID < 0; linkOrder--) {
+			linkedWordID = model.getRandomLink(linkOrder, context, contextLength, random);
+		}
+		if (linkedWordID < 0) linkedWordID = model.getRandomLink(precedingWordID, random);
+		if (linkedWordID < 0) throw new IllegalWordException("No linked words found");
 
-		//If it's not going to remain a random word, return a random one from the links
-		if ((int)(Math.random() * 50) != 1) return linkedWords.get((int)(Math.random() * linkedWords.size()));
+		//Only pick a random word for the 1 in 50 times it's used
+		if (random.nextInt(50) != 1) return linkedWordID;
 
-		return returnWord;
+		return getRandomWordID(model);
 	}
 
 	/**
-	 * Build a sentence from a provided word using the markov data of the current target user
+	 * Build a sentence from a provided word using the markov data of a model
+	 * @param model model to build the sentence from
+	 * @param order order of the chain to build the sentence with. The model's tables must be compiled up to this order
 	 * @param startWord specified word to start building the sentence from
 	 * @return the completed sentence
-	 * @throws InvalidUserException if current user has no data
+	 * @throws InvalidUserException if the model has no data
 	 */
-	private String buildSentence(String startWord) throws InvalidUserException {
-		if (startWord == null) startWord = getRandomWord();
+	private String buildSentence(@NotNull ChainModel model, int order, String startWord) throws InvalidUserException {
+		if (startWord == null) startWord = dictionary.getWord(getRandomWordID(model));
+		Random random = ThreadLocalRandom.current();
 
 		StringBuilder sentence = new StringBuilder();
-		String precedingWord = startWord, nextWord;
 
 		//Begin the sentence with the provided word
-		sentence.append(precedingWord).append(" ");
+		sentence.append(startWord).append(" ");
+
+		int precedingWordID = dictionary.getID(startWord), nextWordID;
+		if (precedingWordID < 0) return sentence.toString();
+
+		//Track the most recent words (lower case) for higher order chains
+		int[] context = new int[Math.max(order, 1)];
+		context[0] = model.getLowerCaseID(precedingWordID);
+		int contextLength = 1;
 
 		int repeatCount = 0;
 
 		while (sentence.length() < 500) { //Make sure sentences can't become too long
 			try {
-				nextWord = getNextWord(precedingWord);
+				nextWordID = getNextWord(model, order, context, contextLength, precedingWordID);
 			} catch (IllegalWordException e) {
 				break;
 			}
 
-			sentence.append(nextWord).append(" ");
+			dictionary.appendTo(nextWordID, sentence).append(" ");
 
 			//Check if it's repeated. If so, increase repeat count, else reset it
-			if (precedingWord.equals(nextWord)) repeatCount++; else repeatCount = 0;
-			precedingWord = nextWord;
+			if (precedingWordID == nextWordID) repeatCount++; else repeatCount = 0;
+			precedingWordID = nextWordID;
+
+			//Add the word to the context, dropping the oldest word if it's full
+			if (contextLength == context.length) System.arraycopy(context, 1, context, 0, --contextLength);
+			context[contextLength++] = model.getLowerCaseID(nextWordID);
+
+			//Stop as often as messages in the markov data stopped after the same word, once every message's end is known
+			if (model.hasEndCounts()) {
+				if (random.nextDouble() < model.getEndChance(nextWordID)) break;
+				continue;
+			}
 
-			//Random chance of stopping the sentence
-			//Less likely to stop if the last word has more words that follow it or if the word occurs more frequently
-			//More likely to stop the sentence if the word has repeated multiple times
-			if ((int) (Math.random() * (10 + getMarkovLinksAsList(nextWord).size() + getFrequencyOf(nextWord) - repeatCount + 2)) <= 2) break;
+			//Without the ends of messages, guess from the word instead. Less likely to stop if the last word has more
+			//words that follow it or if the word occurs more frequently, and more likely if it has repeated multiple times
+			if ((int) (random.nextDouble() * (10 + model.getLinkTotal(nextWordID) + model.getFrequencyOf(nextWordID) - repeatCount + 2)) <= 2) break;
 		}
 		return sentence.toString();
 	}
@@ -260,7 +1180,9 @@ public class Core {
 	 * @return the sentence generated
 	 * @throws InvalidUserException if the current user has no data
 	 */
-	public String getSentence() throws InvalidUserException { return buildSentence(getRandomWord()); }
+	public String getSentence() throws InvalidUserException {
+		return buildSentence(getCurrentModel(), 1, null);
+	}
 
 	/**
 	 * Get a markov chain sentence starting with a specified word
@@ -273,12 +1195,108 @@ public class Core {
 	 * 								the current user's lexicon
 	 */
 	public String getSentence(String startWord) throws InvalidUserException, IllegalWordException {
-		if (startWord == null) startWord = getRandomWord();
+		return getSentence(startWord, 1);
+	}
+
+	/**
+	 * Get a markov chain sentence starting with a specified word, using a chain of a specified order
+	 * @param startWord word to start sentence with. If <code>null</code>,
+	 *                  defaults to a random word
+	 * @param order how many previous words are used to pick each next word,
+	 *              from 1 up to {@value #MAX_CHAIN_ORDER}
+	 * @return the sentence generated from the word
+	 * @throws InvalidUserException if the current user has no data, or if
+	 * 								provided word has not been said by them
+	 * @throws IllegalWordException if the provided word does not exist in
+	 * 								the current user's lexicon
+	 */
+	public String getSentence(String startWord, int order) throws InvalidUserException, IllegalWordException {
+		ChainModel model = getCurrentModel(order);
+		if (startWord == null) return buildSentence(model, order, null);
 
 		//Ensure the user has said that word before
-		if (!lexicon.contains(startWord)) throw new IllegalWordException("\""+ startWord +"\" not in lexicon");
+		if (!model.containsWord(dictionary.getID(startWord))) throw new IllegalWordException("\""+ startWord +"\" not in lexicon");
+
+		return buildSentence(model, order, startWord);
+	}
+
+	/**
+	 * Get several markov chain sentences at once for the current target user. The sentences are
+	 * built in parallel from the same model, and are returned in a stable order
+	 * @param count how many sentences to build
+	 * @param startWord word to start every sentence with. If <code>null</code>,
+	 *                  each sentence starts with its own random word
+	 * @return <code>List</code> of the sentences generated
+	 * @throws InvalidUserException if the current user has no data
+	 * @throws IllegalWordException if the provided word does not exist in
+	 * 								the current user's lexicon
+	 */
+	public List<String> getSentences(int count, String startWord) throws InvalidUserException, IllegalWordException {
+		return getSentences(getCurrentModel(), count, startWord, 1);
+	}
 
-		return buildSentence(startWord);
+	/**
+	 * Get several markov chain sentences at once for the current target user, using a chain of a
+	 * specified order. The sentences are built in parallel from the same model, and are returned in a stable order
+	 * @param count how many sentences to build
+	 * @param startWord word to start every sentence with. If <code>null</code>,
+	 *                  each sentence starts with its own random word
+	 * @param order how many previous words are used to pick each next word,
+	 *              from 1 up to {@value #MAX_CHAIN_ORDER}
+	 * @return <code>List</code> of the sentences generated
+	 * @throws InvalidUserException if the current user has no data
+	 * @throws IllegalWordException if the provided word does not exist in
+	 * 								the current user's lexicon
+	 */
+	public List<String> getSentences(int count, String startWord, int order) throws InvalidUserException, IllegalWordException {
+		return getSentences(getCurrentModel(order), count, startWord, order);
+	}
+
+	/**
+	 * Get several markov chain sentences at once for a specified user, without changing the current
+	 * target user. The sentences are built in parallel from the same model, and are returned in a stable order
+	 * @param count how many sentences to build
+	 * @param user specified user to build the sentences for. <code>null</code> for all users
+	 * @param startWord word to start every sentence with. If <code>null</code>,
+	 *                  each sentence starts with its own random word
+	 * @return <code>List</code> of the sentences generated
+	 * @throws InvalidUserException if the user has no data
+	 * @throws IllegalWordException if the provided word does not exist in the user's lexicon
+	 */
+	public List<String> getSentences(int count, User user, String startWord) throws InvalidUserException, IllegalWordException {
+		return getSentences(getModelFor(user), count, startWord, 1);
+	}
+
+	/**
+	 * Builds several sentences in parallel from a single model
+	 * @param model model to build the sentences from, with its higher order link tables up to <code>order</code>
+	 * @param count how many sentences to build
+	 * @param startWord word to start every sentence with. <code>null</code> for random words
+	 * @param order how many previous words are used to pick each next word
+	 * @return <code>List</code> of the sentences generated, in a stable order
+	 * @throws InvalidUserException if the model has no data
+	 * @throws IllegalWordException if the provided word does not exist in the model's lexicon
+	 */
+	private List<String> getSentences(@NotNull ChainModel model, int count, String startWord, int order)
+			throws InvalidUserException, IllegalWordException {
+		if (count < 0) throw new IllegalArgumentException("Sentence count cannot be negative");
+
+		//Check everything that could fail up front, so building the sentences themselves can't fail
+		if (model.isEmpty()) throw new InvalidUserException("No data for current user");
+		if (startWord != null && !model.containsWord(dictionary.getID(startWord))) {
+			throw new IllegalWordException("\""+ startWord +"\" not in lexicon");
+		}
+
+		//Split the sentences across the common fork-join pool. The model is read-only, so they can all share it
+		return IntStream.range(0, count).parallel()
+				.mapToObj(i -> {
+					try {
+						return buildSentence(model, order, startWord);
+					} catch (InvalidUserException e) {
+						throw new IllegalStateException("Model lost its data while building sentences", e);
+					}
+				})
+				.collect(Collectors.toList());
 	}
 
 	/**
@@ -305,111 +1323,206 @@ public class Core {
 	}
 
 	/**
-	 * Saves a specified message to the source list
+	 * Queues a specified message to be saved to the source list. It's written in the background,
+	 * along with any other messages received around the same time
 	 * @param message message to save
 	 */
 	public void saveMaterial(@NotNull Message message) {
 		if (markovSource == null) return;
-		String content = message.getContentCleaned();
+		queueMaterial(IngestQueue.Event.save(message));
+	}
+
+	/**
+	 * Queues an existing message in the source material to be updated. It's written in the background,
+	 * along with any other messages received around the same time
+	 * @param message updated version of the message
+	 */
+	public void updateMaterial(@NotNull Message message) {
+		if (markovSource == null) return;
+		queueMaterial(IngestQueue.Event.update(message));
+	}
 
-		//Don't save empty messages
-		if (content.equals("")) return;
+	/**
+	 * Adds a message event to the queue of ones waiting to be written
+	 * @param event event to add
+	 * @return if the event was queued
+	 */
+	private boolean queueMaterial(@NotNull IngestQueue.Event event) {
+		if (ingestQueue.add(event)) return true;
+		System.err.println("Failed to queue message "+ event.getMessageID() +": queue is closed");
+		return false;
+	}
 
-		try {
-			//If it exists (for some reason), update it instead of saving as new message
-			if (markovSource.containsMessageID(message.getId())) {
-				updateMaterial(message);
-				return;
+	/**
+	 * Writes a batch of queued message events. Bulk saves are written on their own, in between
+	 * the events queued either side of them, so everything is still written in order
+	 * @param events events to write, in the order they happened
+	 */
+	private void writeMaterial(@NotNull List<IngestQueue.Event> events) {
+		List<IngestQueue.Event> messageEvents = new ArrayList<>();
+		for (IngestQueue.Event event : events) {
+			if (event.getType() != IngestQueue.Event.Type.BULK) {
+				messageEvents.add(event);
+				continue;
 			}
+			writeMessageEvents(messageEvents);
+			messageEvents.clear();
 
-			//Ensure the author of the message exists in the source
-			if (!markovSource.containsUserByID(message.getAuthor().getId())) {
-				//Add the user to the source
-				if (!markovSource.saveUser(message.getAuthor())) {
-					throw new IOException("Adding user ("+ message.getAuthor().getId() +"|"+ message.getAuthor().getName() +") failed");
-				}
+			int savedCount = 0;
+			try {
+				savedCount = writeBulkMaterial(event.getMessages());
+			} finally {
+				//Whoever queued it is waiting for this, even if the write failed
+				event.getResult().complete(savedCount);
 			}
-		} catch (IOException e) {
-			System.err.println("Failed to save message "+ message.getId() +": "+ e);
-			return;
 		}
-
-		markovSource.saveMessage(message);
+		writeMessageEvents(messageEvents);
 	}
 
 	/**
-	 * Updates an existing message in the source material
-	 * @param message updated version of the message
+	 * Writes message events to the source, then to the markov data, as one transaction each. Events for
+	 * the same message are combined first, so only the final version of each message gets written
+	 * @param events events to write, in the order they happened
 	 */
-	public void updateMaterial(@NotNull Message message) {
-		if (markovSource == null) return;
-		//Check if it's already in source data, otherwise add it as a new message
-		try {
-			if (!markovSource.containsMessageID(message.getId())) {
-				saveMaterial(message);
-				return;
+	private void writeMessageEvents(@NotNull List<IngestQueue.Event> events) {
+		if (events.isEmpty()) return;
+
+		//Final version of each message, null if it's been deleted
+		Map<String, Message> latestMessages = new LinkedHashMap<>();
+		for (IngestQueue.Event event : events) {
+			Message message = event.getMessage();
+			switch (event.getType()) {
+				case SAVE:
+					//Don't save empty messages
+					if (!message.getContentCleaned().equals("")) latestMessages.put(event.getMessageID(), message);
+					break;
+				case UPDATE:
+					//If the message now has no relevant content, it should just be deleted from the source
+					latestMessages.put(event.getMessageID(), message.getContentCleaned().equals("")? null : message);
+					break;
+				case DELETE:
+					latestMessages.put(event.getMessageID(), null);
+					break;
+				case BULK:
+					throw new IllegalArgumentException("Bulk events are written on their own");
 			}
-		} catch (IOException e) {
-			System.err.println("Failed to update message "+ message.getId() +": "+ e);
-			return;
 		}
 
-		String cleanedContent = message.getContentCleaned();
-		if (cleanedContent.equals("")) {
-			//Since the message now has no relevant content, it should just be deleted from the source
-			deleteMessage(message.getId());
-			return;
+		List<Message> savedMessages = new ArrayList<>();
+		List<Message> oldMessages = new ArrayList<>();
+		List<String> deletedMessageIDs = new ArrayList<>();
+		for (Map.Entry<String, Message> entry : latestMessages.entrySet()) {
+			//The old version is needed to know which words to take away from the markov data
+			Message oldMessage;
+			try {
+				//Checking first saves reading from the source for new messages, which most are
+				oldMessage = markovSource.containsMessageID(entry.getKey())? markovSource.getMessage(entry.getKey()) : null;
+			} catch (IOException e) {
+				System.err.println("Failed to write message "+ entry.getKey() +": "+ e);
+				continue;
+			}
+
+			if (entry.getValue() != null) savedMessages.add(entry.getValue());
+			else if (oldMessage != null) deletedMessageIDs.add(entry.getKey());
+			//Deleting a message that was never saved leaves nothing to do
+			else continue;
+
+			if (oldMessage != null) oldMessages.add(oldMessage);
+		}
+		if (savedMessages.isEmpty() && deletedMessageIDs.isEmpty()) return;
+
+		synchronized (materialLock) {
+			if (markovSource.writeMessages(savedMessages, deletedMessageIDs)) learnMaterial(savedMessages, oldMessages);
+			else System.err.println("Failed to write "+ (savedMessages.size() + deletedMessageIDs.size()) +" messages");
 		}
+	}
+
+	/**
+	 * Gets a summary of how the queue of messages waiting to be written is keeping up
+	 * @return how many messages are waiting and have been written, and how often the queue has been full
+	 */
+	public String getIngestStats() { return ingestQueue.getStats(); }
+
+	/**
+	 * Writes every message still waiting in the queue, then closes the source and markov data. Nothing else can be
+	 * called afterwards. The snapshot isn't written again, since each of its models is checked against the markov
+	 * data when it's opened. A snapshot being written in the background stops once the markov data is closed
+	 */
+	public void close() {
+		ingestQueue.close();
+		updater.shutdown();
+		compactor.shutdownNow();
+		snapshotSaver.shutdown();
 
-		markovSource.updateMessage(message);
+		//Waits for a rebuilt database being switched over to, so the new one gets closed
+		synchronized (materialLock) {
+			markovSource.close();
+			markovData.close();
+		}
 	}
 
 	/**
-	 * Updates a List of messages in bulk rather than one at a time
+	 * Updates a List of messages in bulk rather than one at a time. They're queued together to be written
+	 * after anything already queued, then this waits for them to be written
 	 * @param messages <code>List</code> of messages
 	 * @return how many messages were actually updated/saved
 	 */
 	public int updateMaterial(@NotNull List<Message> messages) {
 		if (markovSource == null) return -1;
-		int numSaved = 0;
 
-		//Track which users are in this bulk update (using userID)
-		HashSet<String> users = new HashSet<>();
+		IngestQueue.Event event = IngestQueue.Event.bulk(messages);
+		if (!queueMaterial(event)) return 0;
+		try {
+			return event.getResult().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		} catch (ExecutionException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Saves a list of messages together, replacing any which are already in the source. Run on the ingest writer
+	 * @param messages messages to save
+	 * @return how many messages were saved
+	 */
+	private int writeBulkMaterial(@NotNull List<Message> messages) {
+		//Messages whose words need to be added to the markov data, and old versions of ones already in the source
+		List<Message> addedMessages = new ArrayList<>();
+		List<Message> oldMessages = new ArrayList<>();
 
 		for (Message message : messages) {
 			//Take out messages which shouldn't be saved
 			if (message.getContentCleaned().equals("")) { continue; }
 
-			try { //Ensure all users are in the source
-				if (!users.contains(message.getAuthor().getId())) {
-					//If they aren't, add them
-					if (!markovSource.containsUserByID(message.getAuthor().getId())) {
-						if (!markovSource.saveUser(message.getAuthor())) {
-							throw new IOException("Adding user ("+ message.getAuthor().getId() +
-									"|"+ message.getAuthor().getName() +") failed");
-						}
-					}
-
-					//Add user to the Set tracking users in this bulk update
-					users.add(message.getAuthor().getId());
-				}
-			} catch (IOException e) { System.out.println("Failed to save message "+ message.getId() +": "+ e); }
-			numSaved++;
+			try {
+				//Saving a message which is already in the source replaces it, so its old words need taking away
+				Message oldMessage = markovSource.containsMessageID(message.getId())? markovSource.getMessage(message.getId()) : null;
+				if (oldMessage != null) oldMessages.add(oldMessage);
+				addedMessages.add(message);
+			} catch (IOException e) { System.out.println("Failed to check message "+ message.getId() +": "+ e); }
 		}
 
-		//Save the complete list of messages now
-		markovSource.updateMessages(messages);
+		//Save the complete list of messages now, which also adds any authors not already in the source
+		synchronized (materialLock) {
+			if (!markovSource.updateMessages(addedMessages)) return 0;
+			learnMaterial(addedMessages, oldMessages);
+		}
 
-		return numSaved;
+		return addedMessages.size();
 	}
 
 	/**
-	 * Deletes a specified message from the source by given messageID
+	 * Queues a specified message to be deleted from the source by given messageID, and to have its words
+	 * taken out of the markov data. It's written in the background, along with any other messages
+	 * received around the same time
 	 * @param messageID ID of message to remove
 	 */
 	public void deleteMessage(@NotNull String messageID) {
 		if (messageID.equals("")) throw new IllegalArgumentException("messageID cannot be empty string");
-		markovSource.deleteMessage(messageID);
+		if (markovSource == null) return;
+		queueMaterial(IngestQueue.Event.delete(messageID));
 	}
 
 	/**
@@ -4,7 +4,6 @@ import com.sun.istack.internal.NotNull;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public interface DataHandler {
 
@@ -29,56 +28,90 @@ public interface DataHandler {
 	int getWordFrequencyAll(@NotNull String word);
 
 	/**
-	 * Gets the frequency for a specified word, and a specified user. (how
-	 * many times the user has said that specific word)
-	 * @param word specified word to find frequency of
-	 * @param user specified user to find the frequency for
-	 * @return number of times the user has said the word
+	 * Reads everything a model is compiled from, all from the same version of the markov data: every unique word
+	 * mapped to how many times it's been said, and every link. Start words are mapped to the words linked from them,
+	 * which are mapped to how often they have occurred. A <code>null</code> linked word stands for the end of a message
+	 * @param user specified user to read the data for. <code>null</code> for all users
+	 * @param wordFrequencies <code>Map</code> the words and their frequencies are added to
+	 * @param links <code>Map</code> the links and their frequencies are added to
+	 * @return the version of the markov data (see {@link #getDataVersion()}) that was read,
+	 * or <code>-1</code> if it couldn't be read
 	 */
-	int getWordFrequencyFor(@NotNull String word, @NotNull User user);
+	int readModelData(User user, @NotNull Map<String, Integer> wordFrequencies,
+					  @NotNull Map<String, Map<String, Integer>> links);
 
 	/**
-	 * Gets a complete set of unique words said by all users
-	 * @return <code>Set</code> containing all unique words
+	 * Receives higher order links one at a time as they're read, so they never all have to be held as <code>String</code>s
 	 */
-	Set<String> getLexiconAll();
+	interface NGramReader {
+		/**
+		 * @param context the previous words, lower case and separated by single spaces
+		 * @param endWord word linked from the context
+		 * @param frequency how often the link has occurred
+		 */
+		void read(@NotNull String context, @NotNull String endWord, int frequency);
+	}
 
 	/**
-	 * Gets a complete set of unique words said for a specific user
-	 * @param user specified user to get the lexicon for
-	 * @return <code>Set</code> containing all unique words from that user
+	 * Reads the most frequent higher order links of a given order in the markov data for all users,
+	 * most frequent first. Links tied on frequency at the limit are cut off arbitrarily
+	 * @param order number of words in each context
+	 * @param maxLinks most links to read
+	 * @param reader what each link is handed to as it's read
+	 * @return if every link was read. Any links already handed over are kept if not
 	 */
-	Set<String> getLexiconFor(@NotNull User user);
+	boolean readNGramsAll(int order, int maxLinks, @NotNull NGramReader reader);
 
 	/**
-	 * Gets a complete list of all words said by all users.
-	 * Each word is repeated in the list the number of times it's been said
-	 * @return <code>List</code> containing all words
+	 * Reads the most frequent higher order links of a given order in the markov data for a specified user,
+	 * most frequent first. Links tied on frequency at the limit are cut off arbitrarily
+	 * @param user specified user to get the links for
+	 * @param order number of words in each context
+	 * @param maxLinks most links to read
+	 * @param reader what each link is handed to as it's read
+	 * @return if every link was read. Any links already handed over are kept if not
 	 */
-	List<String> getAllWordsAll();
+	boolean readNGramsFor(@NotNull User user, int order, int maxLinks, @NotNull NGramReader reader);
 
 	/**
-	 * Gets a complete list of all words said by a specified user.
-	 * Each word is repeated in the list the number of times it's been said
-	 * @param user specified user to get the list for
-	 * @return <code>List</code> containing all words from that user
+	 * Closes the connection to the markov data. Nothing else can be called afterwards
 	 */
-	List<String> getAllWordsFor(@NotNull User user);
+	void close();
 
 	/**
-	 * Gets the words that are linked to from a given one, for all
-	 * users in the markov data. Words are mapped to how often they have occurred
-	 * @param word specified word to get links from
-	 * @return <code>Map</code> of the linked words to their frequencies
+	 * @return every user who has markov data
 	 */
-	Map <String, Integer> getLinksAll(@NotNull String word);
+	List<User> getUsers();
 
 	/**
-	 * Gets the words that are linked to from a given word, for a specified
-	 * user, in the markov data. Words are mapped to how often they have occurred
-	 * @param user specified user to get the markov links for
-	 * @param word specified word to get links from
-	 * @return <code>Map</code> of the linked words to their frequencies
+	 * Gets a number which changes every time the markov data does, so anything compiled from
+	 * the data (such as a model snapshot) can tell if it's out of date
+	 * @return current version of the markov data, or <code>-1</code> if it couldn't be read
 	 */
-	Map<String, Integer> getLinksFor(@NotNull User user, @NotNull String word);
+	int getDataVersion();
+
+	/**
+	 * Gets the version of the markov data (see {@link #getDataVersion()}) when a specified user's data last changed
+	 * @param user specified user to check
+	 * @return version of the last change to the user's data, <code>0</code> if it's never been recorded,
+	 * or <code>-1</code> if it couldn't be read
+	 */
+	int getDataVersionFor(@NotNull User user);
+
+	/**
+	 * Checks if the end of every message is in the markov data. Data built before the ends of messages were
+	 * recorded only has the ends of messages learned since, until it's rebuilt
+	 * @return if every message's end is recorded. <code>false</code> if it couldn't be read
+	 */
+	boolean hasMessageEnds();
+
+	/**
+	 * Applies the changes from new, edited or deleted messages to the markov data of their authors.
+	 * Changes can be negative, and any count taken down to nothing is removed. Every change is
+	 * saved in a single transaction, so either all of them are saved or none are
+	 * @param changes each author mapped to the changes from their messages
+	 * @return the version of the markov data (see {@link #getDataVersion()}) the changes were saved as,
+	 * or <code>-1</code> if they couldn't be saved
+	 */
+	int applyChanges(@NotNull Map<User, ModelDelta> changes);
 }
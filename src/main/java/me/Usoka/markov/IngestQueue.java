@@ -0,0 +1,308 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of message events waiting to be written, so whoever receives them doesn't have to wait for the write. <p/>
+ * A single writer thread takes the events off in batches and hands each batch over to be written together, so a
+ * busy channel costs one transaction per batch instead of one per message. A batch is written once it's full,
+ * or once its first event has waited long enough. When the queue is full, adding an event waits for room,
+ * which slows the events down to the speed they can be written at instead of using up more memory.
+ */
+class IngestQueue implements AutoCloseable {
+	/**
+	 * Default most events that can be waiting at once ({@value})
+	 */
+	static final int DEFAULT_CAPACITY = 10_000;
+
+	/**
+	 * Default most events written together in one batch ({@value})
+	 */
+	static final int DEFAULT_MAX_BATCH = 500;
+
+	/**
+	 * Default longest an event waits for its batch to fill before the batch is written anyway ({@value} ms)
+	 */
+	static final long DEFAULT_FLUSH_MILLIS = 250;
+
+	/**
+	 * Something that happened to a message, which still needs writing
+	 */
+	static class Event {
+		enum Type { SAVE, UPDATE, DELETE, BULK }
+
+		private final Type type;
+		private final Message message;
+		private final String messageID;
+
+		/**
+		 * Messages saved together by a bulk event, empty for any other event
+		 */
+		private final List<Message> messages;
+
+		/**
+		 * Completed with how many messages a bulk event saved, once it's been written
+		 */
+		private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+		private Event(@NotNull Type type, Message message, @NotNull String messageID) {
+			this(type, message, messageID, Collections.emptyList());
+		}
+
+		private Event(@NotNull Type type, Message message, @NotNull String messageID, @NotNull List<Message> messages) {
+			this.type = type;
+			this.message = message;
+			this.messageID = messageID;
+			this.messages = messages;
+		}
+
+		/**
+		 * @param message message that has been sent
+		 */
+		static Event save(@NotNull Message message) { return new Event(Type.SAVE, message, message.getId()); }
+
+		/**
+		 * @param message new version of a message that has been edited
+		 */
+		static Event update(@NotNull Message message) { return new Event(Type.UPDATE, message, message.getId()); }
+
+		/**
+		 * @param messageID ID of a message that has been deleted
+		 */
+		static Event delete(@NotNull String messageID) { return new Event(Type.DELETE, null, messageID); }
+
+		/**
+		 * @param messages messages to save or replace together, such as from reading back a channel's history
+		 */
+		static Event bulk(@NotNull List<Message> messages) {
+			return new Event(Type.BULK, null, "", Collections.unmodifiableList(new ArrayList<>(messages)));
+		}
+
+		Type getType() { return type; }
+
+		/**
+		 * @return the message, or <code>null</code> for a deleted message
+		 */
+		Message getMessage() { return message; }
+
+		String getMessageID() { return messageID; }
+
+		/**
+		 * @return the messages of a bulk event, or an empty list for any other event
+		 */
+		List<Message> getMessages() { return messages; }
+
+		/**
+		 * @return how many messages a bulk event saved, once it's been written
+		 */
+		CompletableFuture<Integer> getResult() { return result; }
+	}
+
+	/**
+	 * Writes a batch of events
+	 */
+	interface Writer {
+		/**
+		 * @param events events to write, in the order they were added
+		 */
+		void write(@NotNull List<Event> events);
+	}
+
+	/**
+	 * Added after the last event when closing, to stop the writer thread
+	 */
+	private static final Event STOP = new Event(Event.Type.DELETE, null, "");
+
+	private final BlockingQueue<Event> queue;
+	private final Writer writer;
+	private final int maxBatch;
+	private final long flushNanos;
+	private final Thread writerThread;
+
+	private volatile boolean closed = false;
+
+	private final AtomicLong added = new AtomicLong(), fullWaits = new AtomicLong(), fullWaitNanos = new AtomicLong();
+
+	/**
+	 * Only changed under the lock of <code>queue</code>, so {@link #flush()} can wait on it
+	 */
+	private long written = 0, batches = 0, failedBatches = 0, largestBatch = 0;
+
+	/**
+	 * Makes a queue with the default capacity and batch sizes, and starts its writer thread
+	 * @param writer what the batches of events are handed to
+	 */
+	IngestQueue(@NotNull Writer writer) {
+		this(writer, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * Makes a queue and starts its writer thread
+	 * @param writer what the batches of events are handed to
+	 * @param capacity most events that can be waiting at once
+	 * @param maxBatch most events written together in one batch
+	 * @param flushMillis longest an event waits for its batch to fill before the batch is written anyway
+	 */
+	IngestQueue(@NotNull Writer writer, int capacity, int maxBatch, long flushMillis) {
+		if (capacity < 1 || maxBatch < 1) throw new IllegalArgumentException("Capacity and batch size must be positive");
+		if (flushMillis < 0) throw new IllegalArgumentException("Flush time cannot be negative");
+
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.writer = writer;
+		this.maxBatch = maxBatch;
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+
+		//Daemon so it can't keep the program running, close() is what makes sure everything gets written
+		this.writerThread = new Thread(this::runWriter, "Markov ingest writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * Adds an event to be written, waiting for room if the queue is full
+	 * @param event event to add
+	 * @return if the event was added. Not if the queue has been closed, or the wait was interrupted
+	 */
+	boolean add(@NotNull Event event) {
+		if (closed) return false;
+
+		try {
+			if (!queue.offer(event)) {
+				long start = System.nanoTime();
+				queue.put(event);
+				fullWaits.incrementAndGet();
+				fullWaitNanos.addAndGet(System.nanoTime() - start);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		added.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Waits until every event added before this was called has been written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void flush() throws InterruptedException {
+		long target = added.get();
+		synchronized (queue) {
+			while (written < target && writerThread.isAlive()) queue.wait();
+		}
+	}
+
+	/**
+	 * Takes events off the queue in batches and writes them, until {@link #STOP} is reached
+	 */
+	private void runWriter() {
+		List<Event> batch = new ArrayList<>(maxBatch);
+		boolean stopping = false;
+
+		while (!stopping) {
+			try {
+				batch.add(queue.take());
+
+				//Fill the batch with whatever's already waiting, then give it until the deadline for more to arrive
+				long deadline = System.nanoTime() + flushNanos;
+				while (batch.size() < maxBatch && !batch.contains(STOP)) {
+					if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) break;
+
+					Event next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				//Nothing is meant to interrupt the writer, so write what's been taken and carry on
+			}
+
+			//Anything which slipped in after STOP while closing still gets written with the rest
+			if (batch.remove(STOP)) stopping = true;
+			if (!batch.isEmpty()) writeBatch(batch);
+			batch.clear();
+		}
+
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Hands a batch over to the writer, then lets anything waiting for it know it's been written
+	 */
+	private void writeBatch(@NotNull List<Event> batch) {
+		boolean failed = false;
+		try {
+			writer.write(batch);
+		} catch (RuntimeException e) {
+			//Keep the writer thread going, so one bad batch doesn't stop everything after it from being written
+			System.err.println("Exception writing "+ batch.size() +" message events: "+ e);
+			failed = true;
+		}
+
+		synchronized (queue) {
+			written += batch.size();
+			batches++;
+			if (failed) failedBatches++;
+			largestBatch = Math.max(largestBatch, batch.size());
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Gets a summary of how the queue is keeping up
+	 * @return how many events are waiting and have been written, the batch counts, and how often adding an event
+	 * had to wait for the queue to have room
+	 */
+	String getStats() {
+		synchronized (queue) {
+			return queue.size() +"/"+ (queue.size() + queue.remainingCapacity()) +" waiting, "+ written +" written in "
+					+ batches +" batches (largest "+ largestBatch +", "+ failedBatches +" failed), "+ fullWaits.get()
+					+" waits on a full queue ("+ TimeUnit.NANOSECONDS.toMillis(fullWaitNanos.get()) +" ms)";
+		}
+	}
+
+	/**
+	 * Stops taking new events, and waits for every event already added to be written
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(STOP);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		while (writerThread.isAlive()) {
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				//Still have to wait, or the events left in the queue would be lost
+				interrupted = true;
+			}
+		}
+
+		//Anything added while closing ends up after STOP, so has to be written here instead
+		List<Event> leftOver = new ArrayList<>();
+		queue.drainTo(leftOver);
+		if (!leftOver.isEmpty()) writeBatch(leftOver);
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+}
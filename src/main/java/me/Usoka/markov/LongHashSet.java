@@ -0,0 +1,127 @@
+package me.Usoka.markov;
+
+/**
+ * Set of <code>long</code>s, stored in a flat array with open addressing so that holding millions of IDs
+ * doesn't create an object for every one. Not thread safe.
+ */
+class LongHashSet {
+	/**
+	 * Marks an empty slot. <code>0</code> itself is tracked by {@link #containsZero} instead
+	 */
+	private static final long EMPTY = 0;
+
+	private long[] keys;
+	private int size = 0;
+	private boolean containsZero = false;
+
+	/**
+	 * @param expectedSize number of keys the set should hold before it needs to grow
+	 */
+	LongHashSet(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+		keys = new long[capacity];
+	}
+
+	/**
+	 * @return number of keys in the set
+	 */
+	int size() { return size; }
+
+	/**
+	 * @param key key to look for
+	 * @return if the key is in the set
+	 */
+	boolean contains(long key) {
+		if (key == EMPTY) return containsZero;
+		return keys[findSlot(key)] == key;
+	}
+
+	/**
+	 * Adds a key to the set
+	 * @param key key to add
+	 * @return if the key wasn't already in the set
+	 */
+	boolean add(long key) {
+		if (key == EMPTY) {
+			if (containsZero) return false;
+			containsZero = true;
+			size++;
+			return true;
+		}
+
+		int slot = findSlot(key);
+		if (keys[slot] == key) return false;
+		keys[slot] = key;
+		size++;
+
+		//Keep the set at most half full so probing stays short
+		if (size * 2 > keys.length) rehash(keys.length * 2);
+		return true;
+	}
+
+	/**
+	 * Takes a key out of the set
+	 * @param key key to remove
+	 * @return if the key was in the set
+	 */
+	boolean remove(long key) {
+		if (key == EMPTY) {
+			if (!containsZero) return false;
+			containsZero = false;
+			size--;
+			return true;
+		}
+
+		int mask = keys.length - 1;
+		int slot = findSlot(key);
+		if (keys[slot] != key) return false;
+		size--;
+
+		//Move later keys in the same run back into the gap, so none of them end up cut off from their home slot
+		int gap = slot;
+		for (slot = (slot + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			int home = hash(keys[slot]) & mask;
+			//Only move a key if its home slot isn't between the gap and where it is now
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				keys[gap] = keys[slot];
+				gap = slot;
+			}
+		}
+		keys[gap] = EMPTY;
+		return true;
+	}
+
+	/**
+	 * Finds the slot which either holds the given key, or is the empty slot it would go in
+	 */
+	private int findSlot(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Moves every key into an array with a given capacity
+	 */
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		keys = new long[capacity];
+
+		int mask = capacity - 1;
+		for (long key : oldKeys) {
+			if (key == EMPTY) continue;
+			int slot = hash(key) & mask;
+			while (keys[slot] != EMPTY) slot = (slot + 1) & mask;
+			keys[slot] = key;
+		}
+	}
+
+	/**
+	 * Mixes all the bits of a key into the lower bits, since IDs made from timestamps share most of their upper bits
+	 */
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+}
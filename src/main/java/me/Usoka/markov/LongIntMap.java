@@ -0,0 +1,136 @@
+package me.Usoka.markov;
+
+/**
+ * Map from <code>long</code> keys to <code>int</code> values, stored in flat arrays with open addressing
+ * so that counting millions of words and links doesn't create an object for every entry. <p/>
+ * A value of <code>0</code> means the key isn't in the map, so it's meant for counts and for IDs stored
+ * plus one. Not thread safe.
+ */
+class LongIntMap {
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	/**
+	 * @param expectedSize number of keys the map should hold before it needs to grow
+	 */
+	LongIntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+		keys = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * @return number of keys in the map
+	 */
+	int size() { return size; }
+
+	/**
+	 * Gets the value for a key
+	 * @param key key to look up
+	 * @return the key's value, or <code>0</code> if it isn't in the map
+	 */
+	int get(long key) { return values[findSlot(key)]; }
+
+	/**
+	 * Adds an amount onto the value for a key, adding the key if it isn't in the map yet
+	 * @param key key to add to
+	 * @param amount amount to add. Must not leave the value at <code>0</code>
+	 * @return the key's new value
+	 */
+	int add(long key, int amount) {
+		int slot = findSlot(key);
+		if (values[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] += amount;
+
+		//Keep the map at most half full so probing stays short
+		if (size * 2 > keys.length) rehash(keys.length * 2);
+		return values[slot];
+	}
+
+	/**
+	 * Adds every value from another map onto the values in this one
+	 * @param other map to add the values of
+	 */
+	void addAll(LongIntMap other) {
+		for (int slot = 0; slot < other.capacity(); slot++) if (other.isUsed(slot)) add(other.keyAt(slot), other.valueAt(slot));
+	}
+
+	/**
+	 * @return number of slots in the map, for iterating over with {@link #isUsed(int)}
+	 */
+	int capacity() { return keys.length; }
+
+	/**
+	 * @return if a slot holds a key
+	 */
+	boolean isUsed(int slot) { return values[slot] != 0; }
+
+	/**
+	 * @return the key held in a slot
+	 */
+	long keyAt(int slot) { return keys[slot]; }
+
+	/**
+	 * @return the value held in a slot
+	 */
+	int valueAt(int slot) { return values[slot]; }
+
+	/**
+	 * Finds the slot which either holds the given key, or is the empty slot it would go in
+	 */
+	private int findSlot(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (values[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Moves every entry into arrays with a given capacity
+	 */
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] == 0) continue;
+			int slot = hash(oldKeys[i]) & mask;
+			while (values[slot] != 0) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Mixes all the bits of a key into the lower bits, since keys are often two IDs packed together
+	 */
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	/**
+	 * Packs two IDs into one key
+	 * @param first ID stored in the upper bits
+	 * @param second ID stored in the lower bits
+	 * @return the combined key
+	 */
+	static long pack(int first, int second) { return ((long) first << 32) | (second & 0xFFFFFFFFL); }
+
+	/**
+	 * @return the first ID from a key made with {@link #pack(int, int)}
+	 */
+	static int first(long key) { return (int) (key >>> 32); }
+
+	/**
+	 * @return the second ID from a key made with {@link #pack(int, int)}
+	 */
+	static int second(long key) { return (int) key; }
+}
@@ -0,0 +1,1059 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Compiled, read-only copy of the markov data for one target (a single user, or all users). <p/>
+ * Words are referred to by their ID in the shared {@link WordDictionary}, and the links from each
+ * word are stored in flat arrays (compressed sparse rows), so generating sentences doesn't need to
+ * read from the database at all. The model only holds <code>int</code> IDs, never the words themselves. <p/>
+ * The arrays can also be read straight out of a memory mapped {@link ModelSnapshot}, so a model
+ * opened from one takes no time to compile and keeps almost nothing on the heap. <p/>
+ * Changes from new messages are kept in a small {@link Overlay} which is looked in before the arrays, so
+ * applying them only costs as much as the words and rows they touch. Once the overlay grows large, the
+ * model is compiled again with it merged in (see {@link #compact()}).
+ */
+class MarkovModel implements ChainModel {
+	/**
+	 * Words with fewer links than this ({@value}) are picked from with a binary search
+	 * instead of building an alias table, since the search is already only a few steps
+	 */
+	private static final int ALIAS_MIN_LINKS = 16;
+
+	/**
+	 * Most words and rows the overlay can hold ({@value}) before the model should be compacted
+	 */
+	private static final int MAX_OVERLAY_ENTRIES = 8_192;
+
+	/**
+	 * Stands in for the end of a message among the links of a row
+	 */
+	private static final int END_OF_MESSAGE = -1;
+
+	/**
+	 * Dictionary the word IDs in this model belong to
+	 */
+	private final WordDictionary dictionary;
+
+	/**
+	 * User the model was compiled for. <code>null</code> for all users
+	 */
+	private final User user;
+
+	/**
+	 * Sorted IDs of every word the model knows about. A word's position in this
+	 * array is its row in all the other per-word arrays
+	 */
+	private final IntBuffer vocabulary;
+
+	/**
+	 * Row of the lower case form of each word. Links are stored against the lower case
+	 * form of the start word, so this is the row to look in for a word's links
+	 */
+	private final IntBuffer linkRows;
+
+	/**
+	 * Frequency of each word ignoring case, stored in the row of the word's lower case form
+	 */
+	private final IntBuffer foldedFrequencies;
+
+	/**
+	 * Sorted IDs of each word in the lexicon, in the same order as {@link #lexiconTotals}
+	 */
+	private final IntBuffer lexiconWords;
+
+	/**
+	 * Running total of how often the words in {@link #lexiconWords} were said. A word is picked
+	 * at random by finding where a random point up to the last total lands
+	 */
+	private final LongBuffer lexiconTotals;
+
+	/**
+	 * Number of entries in {@link #lexiconWords} and {@link #lexiconTotals}
+	 */
+	private final int lexiconSize;
+
+	/**
+	 * Links starting from row <code>i</code> are found in {@link #linkTargets} and {@link #linkWeights}
+	 * from <code>linkOffsets[i]</code> (inclusive) to <code>linkOffsets[i+1]</code> (exclusive)
+	 */
+	private final IntBuffer linkOffsets;
+
+	/**
+	 * Word ID of the end word for each link
+	 */
+	private final IntBuffer linkTargets;
+
+	/**
+	 * Running total of the link frequencies within each row. The last entry of a row is
+	 * the total frequency of all links from that word
+	 */
+	private final IntBuffer linkWeights;
+
+	/**
+	 * How many messages ended with each word, stored in the row of the word's lower case form
+	 */
+	private final IntBuffer endCounts;
+
+	/**
+	 * Total of {@link #endCounts}. <code>0</code> if the markov data was built before the ends of messages were recorded
+	 */
+	private final int endTotal;
+
+	/**
+	 * If the end of every message is in the markov data the model was read from. If not, the end counts only hold
+	 * the messages learned since, so they aren't used
+	 */
+	private final boolean messageEnds;
+
+	/**
+	 * Alias tables for picking links, built the first time each word's links are picked from.
+	 * <br/>Tables never change once built, so if two threads race to build the same one either result is fine
+	 */
+	private final AliasTable[] aliasTables;
+
+	/**
+	 * Higher order link tables, indexed by their order. Each is compiled the first time that order is used
+	 */
+	private final AtomicReferenceArray<NGramTable> ngramTables = new AtomicReferenceArray<>(Core.MAX_CHAIN_ORDER + 1);
+
+	/**
+	 * Changes made since the arrays were compiled. <code>null</code> if there haven't been any
+	 */
+	private final Overlay overlay;
+
+	/**
+	 * Version of the markov data (see {@link DataHandler#getDataVersion()}) the model is up to date with.
+	 * <code>-1</code> if the markov data couldn't be read
+	 */
+	private final int dataVersion;
+
+	/**
+	 * Links from one lower case start word which have changed since the model was compiled
+	 */
+	private static class Row {
+		/**
+		 * Word ID of the end word for each link
+		 */
+		final int[] targets;
+
+		/**
+		 * Running total of the link frequencies
+		 */
+		final int[] weights;
+
+		/**
+		 * How many messages ended with the start word
+		 */
+		final int endCount;
+
+		Row(int[] targets, int[] weights, int endCount) {
+			this.targets = targets;
+			this.weights = weights;
+			this.endCount = endCount;
+		}
+
+		/**
+		 * @return total frequency of all links in the row
+		 */
+		int getTotal() { return (weights.length == 0)? 0 : weights[weights.length - 1]; }
+
+		/**
+		 * @return ID of a linked word picked by the frequency of each link, or <code>-1</code> if there are no links
+		 */
+		int getRandomLink(Random random) {
+			if (targets.length == 0) return -1;
+
+			int target = random.nextInt(getTotal());
+			int low = 0, high = targets.length - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (weights[middle] > target) high = middle; else low = middle + 1;
+			}
+			return targets[low];
+		}
+	}
+
+	/**
+	 * Words and rows which have changed since the arrays were compiled. Each model has its own overlay,
+	 * copied from the one before it when changes are applied, and never changed once the model is made
+	 */
+	private static class Overlay {
+		/**
+		 * New frequency of each word whose frequency has changed. <code>0</code> if it's no longer in the lexicon
+		 */
+		final Map<Integer, Integer> words;
+
+		/**
+		 * New frequency ignoring case of each lower case word whose frequency has changed
+		 */
+		final Map<Integer, Integer> foldedFrequencies;
+
+		/**
+		 * Lower case form of each word that isn't in the compiled vocabulary
+		 */
+		final Map<Integer, Integer> lowerCaseIDs;
+
+		/**
+		 * New links of each lower case start word whose links have changed
+		 */
+		final Map<Integer, Row> rows;
+
+		int lexiconSize, endTotal;
+
+		/**
+		 * Total frequency of the words in the overlay, and of the compiled words they replace
+		 */
+		long total, replacedTotal;
+
+		/**
+		 * Words in the overlay which are in the lexicon, and the running total of their frequencies
+		 */
+		int[] lexiconWords;
+		long[] lexiconTotals;
+
+		/**
+		 * Sorted positions in the compiled lexicon of the words the overlay replaces, and the running total of
+		 * their compiled frequencies
+		 */
+		int[] replacedIndexes;
+		long[] replacedTotals;
+
+		Overlay(int endTotal) {
+			words = new HashMap<>();
+			foldedFrequencies = new HashMap<>();
+			lowerCaseIDs = new HashMap<>();
+			rows = new HashMap<>();
+			this.endTotal = endTotal;
+		}
+
+		Overlay(@NotNull Overlay overlay) {
+			words = new HashMap<>(overlay.words);
+			foldedFrequencies = new HashMap<>(overlay.foldedFrequencies);
+			lowerCaseIDs = new HashMap<>(overlay.lowerCaseIDs);
+			rows = new HashMap<>(overlay.rows);
+			endTotal = overlay.endTotal;
+		}
+
+		/**
+		 * @return approximate size of the overlay in bytes
+		 */
+		long getSizeInBytes() {
+			long links = 0;
+			for (Row row : rows.values()) links += 8L * row.targets.length;
+			return 64L * (words.size() + foldedFrequencies.size() + lowerCaseIDs.size() + rows.size()) + links
+					+ 12L * (lexiconWords.length + replacedIndexes.length);
+		}
+
+		/**
+		 * Gets the total compiled frequency of the replaced words up to a position in the compiled lexicon
+		 * @param index position in the compiled lexicon
+		 * @return total of the replaced words at or before the position
+		 */
+		long getReplacedTotal(int index) {
+			int found = Arrays.binarySearch(replacedIndexes, index);
+			int count = (found >= 0)? found + 1 : -found - 1;
+			return (count == 0)? 0 : replacedTotals[count - 1];
+		}
+	}
+
+	/**
+	 * Arrays are either wrapped heap arrays for a model compiled from markov data,
+	 * or views of a {@link ModelSnapshot} for a model opened from one
+	 * @param dictionary dictionary the word IDs belong to
+	 * @param user user the model is for. <code>null</code> for all users
+	 * @param messageEnds if the end of every message is in the markov data the arrays were compiled from
+	 * @param dataVersion version of the markov data the arrays were compiled from
+	 */
+	private MarkovModel(@NotNull WordDictionary dictionary, User user, IntBuffer vocabulary, IntBuffer linkRows,
+						IntBuffer foldedFrequencies, IntBuffer lexiconWords, LongBuffer lexiconTotals,
+						IntBuffer linkOffsets, IntBuffer linkTargets, IntBuffer linkWeights, IntBuffer endCounts, int endTotal,
+						boolean messageEnds, int dataVersion) {
+		this.dictionary = dictionary;
+		this.user = user;
+		this.vocabulary = vocabulary;
+		this.linkRows = linkRows;
+		this.foldedFrequencies = foldedFrequencies;
+		this.lexiconWords = lexiconWords;
+		this.lexiconTotals = lexiconTotals;
+		this.lexiconSize = lexiconWords.limit();
+		this.linkOffsets = linkOffsets;
+		this.linkTargets = linkTargets;
+		this.linkWeights = linkWeights;
+		this.endCounts = endCounts;
+		this.endTotal = endTotal;
+		this.messageEnds = messageEnds;
+		aliasTables = new AliasTable[vocabulary.limit()];
+		overlay = null;
+		this.dataVersion = dataVersion;
+	}
+
+	/**
+	 * Copies a model, sharing its arrays, alias tables and higher order link tables
+	 * @param model model to copy
+	 * @param overlay changes made since the arrays were compiled, <code>null</code> if there aren't any
+	 * @param dataVersion version of the markov data the copy is up to date with
+	 */
+	private MarkovModel(@NotNull MarkovModel model, Overlay overlay, int dataVersion) {
+		this.dictionary = model.dictionary;
+		this.user = model.user;
+		this.vocabulary = model.vocabulary;
+		this.linkRows = model.linkRows;
+		this.foldedFrequencies = model.foldedFrequencies;
+		this.lexiconWords = model.lexiconWords;
+		this.lexiconTotals = model.lexiconTotals;
+		this.lexiconSize = model.lexiconSize;
+		this.linkOffsets = model.linkOffsets;
+		this.linkTargets = model.linkTargets;
+		this.linkWeights = model.linkWeights;
+		this.endCounts = model.endCounts;
+		this.endTotal = model.endTotal;
+		this.messageEnds = model.messageEnds;
+		this.aliasTables = model.aliasTables;
+		for (int order = 0; order < ngramTables.length(); order++) ngramTables.set(order, model.ngramTables.get(order));
+		this.overlay = overlay;
+		this.dataVersion = dataVersion;
+	}
+
+	/**
+	 * Compiles a model from the frequencies of its words and links
+	 * @param dictionary dictionary to give the words their IDs
+	 * @param user user the model is for. <code>null</code> for all users
+	 * @param wordFrequencies every word in the lexicon mapped to how often it was said
+	 * @param links every start word mapped to its linked words and their frequencies. A <code>null</code>
+	 *              linked word counts the messages which ended with the start word
+	 * @param messageEnds if the end of every message is in the markov data the frequencies were read from
+	 * @param dataVersion version of the markov data the frequencies were read from
+	 * @return the compiled model
+	 */
+	private static MarkovModel compile(@NotNull WordDictionary dictionary, User user, @NotNull Map<String, Integer> wordFrequencies,
+									   @NotNull Map<String, Map<String, Integer>> links, boolean messageEnds, int dataVersion) {
+		//Collect the ID of every word, including the lower case forms used as link starts
+		int[] wordIDs = new int[16];
+		int wordCount = 0;
+		for (String word : wordFrequencies.keySet()) {
+			wordIDs = append(wordIDs, wordCount++, dictionary.add(word));
+			wordIDs = append(wordIDs, wordCount++, dictionary.add(word.toLowerCase()));
+		}
+		for (Map.Entry<String, Map<String, Integer>> row : links.entrySet()) {
+			wordIDs = append(wordIDs, wordCount++, dictionary.add(row.getKey().toLowerCase()));
+			for (String endWord : row.getValue().keySet()) {
+				if (endWord == null) continue;
+				wordIDs = append(wordIDs, wordCount++, dictionary.add(endWord));
+				wordIDs = append(wordIDs, wordCount++, dictionary.add(endWord.toLowerCase()));
+			}
+		}
+		int[] vocabulary = sortedUnique(wordIDs, wordCount);
+
+		int[] linkRows = new int[vocabulary.length];
+		for (int row = 0; row < vocabulary.length; row++) {
+			linkRows[row] = Arrays.binarySearch(vocabulary, dictionary.getID(dictionary.getWord(vocabulary[row]).toLowerCase()));
+		}
+
+		//Pair up each lexicon word with its frequency, then sort them by word ID
+		long[] lexiconEntries = new long[wordFrequencies.size()];
+		int entryCount = 0;
+		for (Map.Entry<String, Integer> entry : wordFrequencies.entrySet()) {
+			if (entry.getValue() <= 0) continue;
+			lexiconEntries[entryCount++] = ((long) dictionary.getID(entry.getKey()) << 32) | entry.getValue();
+		}
+		Arrays.sort(lexiconEntries, 0, entryCount);
+
+		//Keep a running total of the frequencies for picking random words,
+		//and total them up against the lower case forms since frequencies are looked up ignoring case
+		int[] foldedFrequencies = new int[vocabulary.length];
+		int[] lexiconWords = new int[entryCount];
+		long[] lexiconTotals = new long[entryCount];
+		long runningTotal = 0;
+		for (int i = 0; i < entryCount; i++) {
+			int wordID = (int) (lexiconEntries[i] >>> 32), frequency = (int) lexiconEntries[i];
+			runningTotal += frequency;
+			lexiconWords[i] = wordID;
+			lexiconTotals[i] = runningTotal;
+			foldedFrequencies[linkRows[Arrays.binarySearch(vocabulary, wordID)]] += frequency;
+		}
+
+		//Count the links in each row to find where each row starts, keeping the ends of messages separate
+		int[] linkOffsets = new int[vocabulary.length + 1];
+		int[] endCounts = new int[vocabulary.length];
+		int endTotal = 0;
+		for (Map.Entry<String, Map<String, Integer>> row : links.entrySet()) {
+			int rowID = Arrays.binarySearch(vocabulary, dictionary.getID(row.getKey().toLowerCase()));
+			for (Map.Entry<String, Integer> link : row.getValue().entrySet()) {
+				if (link.getValue() <= 0) continue;
+				if (link.getKey() != null) {
+					linkOffsets[rowID + 1]++;
+				} else {
+					endCounts[rowID] += link.getValue();
+					endTotal += link.getValue();
+				}
+			}
+		}
+		for (int i = 0; i < vocabulary.length; i++) linkOffsets[i + 1] += linkOffsets[i];
+
+		//Fill in each row, keeping a running total of the frequencies
+		int[] linkTargets = new int[linkOffsets[vocabulary.length]];
+		int[] linkWeights = new int[linkTargets.length];
+		int[] rowPositions = Arrays.copyOf(linkOffsets, vocabulary.length);
+		for (Map.Entry<String, Map<String, Integer>> row : links.entrySet()) {
+			int rowID = Arrays.binarySearch(vocabulary, dictionary.getID(row.getKey().toLowerCase()));
+			for (Map.Entry<String, Integer> link : row.getValue().entrySet()) {
+				if (link.getValue() <= 0 || link.getKey() == null) continue;
+				int position = rowPositions[rowID]++;
+				linkTargets[position] = dictionary.getID(link.getKey());
+				linkWeights[position] = ((position > linkOffsets[rowID])? linkWeights[position - 1] : 0) + link.getValue();
+			}
+		}
+
+		return new MarkovModel(dictionary, user, IntBuffer.wrap(vocabulary), IntBuffer.wrap(linkRows),
+				IntBuffer.wrap(foldedFrequencies), IntBuffer.wrap(lexiconWords), LongBuffer.wrap(lexiconTotals),
+				IntBuffer.wrap(linkOffsets), IntBuffer.wrap(linkTargets), IntBuffer.wrap(linkWeights),
+				IntBuffer.wrap(endCounts), endTotal, messageEnds, dataVersion);
+	}
+
+	/**
+	 * Opens a model written by {@link #writeTo(DataOutput)}, reading its arrays straight from the buffer
+	 * @param dictionary dictionary the model's word IDs belong to. Must contain every word the snapshot's dictionary did
+	 * @param user user the model is for. <code>null</code> for all users
+	 * @param section buffer holding the model, starting from its first byte
+	 * @param messageEnds if the end of every message is in the markov data the model was compiled from
+	 * @param dataVersion version of the markov data the model was compiled from
+	 * @return the model
+	 * @throws IllegalArgumentException if the section is too short for the arrays it says it holds
+	 */
+	static MarkovModel fromSnapshot(@NotNull WordDictionary dictionary, User user, @NotNull ByteBuffer section,
+									boolean messageEnds, int dataVersion) {
+		int vocabularySize = section.getInt(0), lexiconSize = section.getInt(4), linkCount = section.getInt(8);
+		int endTotal = section.getInt(12);
+		long arrayBytes = (long) Long.BYTES * lexiconSize + (long) Integer.BYTES * (5L * vocabularySize + 1 + lexiconSize + 2L * linkCount);
+		if (vocabularySize < 0 || lexiconSize < 0 || linkCount < 0 || 16 + arrayBytes > section.limit()) {
+			throw new IllegalArgumentException("Model section is too short for its arrays");
+		}
+
+		int offset = 16;
+		LongBuffer lexiconTotals = WordDictionary.slice(section, offset, lexiconSize * Long.BYTES).asLongBuffer();
+		offset += lexiconSize * Long.BYTES;
+
+		//The rest are all ints, in the order they were written
+		int[] lengths = { vocabularySize, vocabularySize, vocabularySize, vocabularySize + 1, lexiconSize, linkCount, linkCount, vocabularySize };
+		IntBuffer[] arrays = new IntBuffer[lengths.length];
+		for (int i = 0; i < lengths.length; i++) {
+			arrays[i] = WordDictionary.slice(section, offset, lengths[i] * Integer.BYTES).asIntBuffer();
+			offset += lengths[i] * Integer.BYTES;
+		}
+		return new MarkovModel(dictionary, user, arrays[0], arrays[1], arrays[2], arrays[4], lexiconTotals,
+				arrays[3], arrays[5], arrays[6], arrays[7], endTotal, messageEnds, dataVersion);
+	}
+
+	/**
+	 * Writes out the compiled arrays of the model in the layout read by {@link #fromSnapshot(WordDictionary, User, ByteBuffer, boolean, int)}: the number of
+	 * words in the vocabulary and lexicon, the number of links and the total of the end counts, then the lexicon totals
+	 * (first, so they start on an 8 byte boundary), then the vocabulary, link rows, folded frequencies, link offsets,
+	 * lexicon words, link targets, link weights and end counts
+	 * @param out output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeTo(@NotNull DataOutput out) throws IOException {
+		out.writeInt(vocabulary.limit());
+		out.writeInt(lexiconSize);
+		out.writeInt(linkTargets.limit());
+		out.writeInt(endTotal);
+		for (int i = 0; i < lexiconSize; i++) out.writeLong(lexiconTotals.get(i));
+		for (IntBuffer array : new IntBuffer[] { vocabulary, linkRows, foldedFrequencies, linkOffsets, lexiconWords,
+				linkTargets, linkWeights, endCounts }) {
+			for (int i = 0; i < array.limit(); i++) out.writeInt(array.get(i));
+		}
+	}
+
+	/**
+	 * Puts a value into an array at a given position, growing the array if needed
+	 * @return the array holding the value (a new one if it had to grow)
+	 */
+	private static int[] append(int[] array, int position, int value) {
+		if (position == array.length) array = Arrays.copyOf(array, array.length * 2);
+		array[position] = value;
+		return array;
+	}
+
+	/**
+	 * Sorts the start of an array and removes any duplicates from it
+	 * @return new array of the unique values in order
+	 */
+	private static int[] sortedUnique(int[] array, int length) {
+		Arrays.sort(array, 0, length);
+		int uniqueCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (uniqueCount == 0 || array[i] != array[uniqueCount - 1]) array[uniqueCount++] = array[i];
+		}
+		return Arrays.copyOf(array, uniqueCount);
+	}
+
+	/**
+	 * Compiles the markov data for a specified target from the data handler
+	 * @param dictionary dictionary to give the words their IDs
+	 * @param markovData data handler to read the markov data from
+	 * @param user specified user to build the model for. <code>null</code> for all users
+	 * @return the compiled model. Empty, with a data version of <code>-1</code>, if the markov data couldn't be read
+	 */
+	static MarkovModel build(@NotNull WordDictionary dictionary, @NotNull DataHandler markovData, User user) {
+		Map<String, Integer> wordFrequencies = new HashMap<>();
+		Map<String, Map<String, Integer>> links = new HashMap<>();
+		//Only a rebuild records the ends of every message, and models read from before one are never used after it
+		boolean messageEnds = markovData.hasMessageEnds();
+		int dataVersion = markovData.readModelData(user, wordFrequencies, links);
+		if (dataVersion < 0) return compile(dictionary, user, new HashMap<>(), new HashMap<>(), false, -1);
+		return compile(dictionary, user, wordFrequencies, links, messageEnds, dataVersion);
+	}
+
+	/**
+	 * Makes a copy of this model with changes from new, edited or deleted messages applied to it, without reading
+	 * from the database. Only the words and rows the changes touch are copied into the new model's overlay, the
+	 * compiled arrays and higher order link tables are shared. Words and links whose frequency drops to nothing
+	 * are left out. <br/>
+	 * The higher order link tables only hold the most frequent links, so changes aren't added to them. They
+	 * catch up when they're compiled again after the model is compacted
+	 * @param changes changes to add to the model
+	 * @param dataVersion version of the markov data the new model is up to date with, once the changes are added
+	 * @return the new model
+	 */
+	MarkovModel withChanges(@NotNull ModelDelta changes, int dataVersion) {
+		Overlay changed = (overlay == null)? new Overlay(endTotal) : new Overlay(overlay);
+
+		for (Map.Entry<String, Integer> entry : changes.getWordChanges().entrySet()) {
+			int wordID = dictionary.add(entry.getKey()), lowerCaseID = addLowerCase(changed, wordID, entry.getKey());
+			int frequency = getLexiconFrequency(changed, wordID);
+			int newFrequency = Math.max(0, frequency + entry.getValue());
+			changed.words.put(wordID, newFrequency);
+			changed.foldedFrequencies.put(lowerCaseID, Math.max(0, getFoldedFrequency(changed, lowerCaseID) + newFrequency - frequency));
+		}
+
+		for (Map.Entry<String, Map<String, Integer>> entry : changes.getLinkChanges().entrySet()) {
+			int startID = dictionary.add(entry.getKey());
+			//Start words are already lower case, so are their own lower case form
+			if (getRow(startID) < 0) changed.lowerCaseIDs.put(startID, startID);
+
+			Map<Integer, Integer> links = getLinkFrequencies(changed, startID);
+			int endCount = links.getOrDefault(END_OF_MESSAGE, 0);
+			for (Map.Entry<String, Integer> link : entry.getValue().entrySet()) {
+				int endID = END_OF_MESSAGE;
+				if (link.getKey() != null) {
+					endID = dictionary.add(link.getKey());
+					addLowerCase(changed, endID, link.getKey());
+				}
+				links.merge(endID, link.getValue(), Integer::sum);
+			}
+			Row row = toRow(links);
+			changed.endTotal += row.endCount - endCount;
+			changed.rows.put(startID, row);
+		}
+
+		//Count up what the overlay adds to the lexicon, and what it takes away from the compiled lexicon
+		changed.lexiconSize = lexiconSize;
+		int[] words = new int[changed.words.size()], replaced = new int[words.length];
+		long[] totals = new long[words.length];
+		int count = 0, replacedCount = 0;
+		for (Map.Entry<Integer, Integer> word : changed.words.entrySet()) {
+			int compiledIndex = binarySearch(lexiconWords, lexiconSize, word.getKey());
+			if (compiledIndex >= 0) {
+				changed.lexiconSize--;
+				changed.replacedTotal += getLexiconFrequency(null, word.getKey());
+				replaced[replacedCount++] = compiledIndex;
+			}
+			if (word.getValue() > 0) {
+				changed.lexiconSize++;
+				changed.total += word.getValue();
+				words[count] = word.getKey();
+				totals[count++] = changed.total;
+			}
+		}
+		changed.lexiconWords = Arrays.copyOf(words, count);
+		changed.lexiconTotals = Arrays.copyOf(totals, count);
+
+		changed.replacedIndexes = Arrays.copyOf(replaced, replacedCount);
+		Arrays.sort(changed.replacedIndexes);
+		changed.replacedTotals = new long[replacedCount];
+		long replacedTotal = 0;
+		for (int i = 0; i < replacedCount; i++) {
+			int index = changed.replacedIndexes[i];
+			replacedTotal += lexiconTotals.get(index) - ((index > 0)? lexiconTotals.get(index - 1) : 0);
+			changed.replacedTotals[i] = replacedTotal;
+		}
+
+		return new MarkovModel(this, changed, dataVersion);
+	}
+
+	/**
+	 * Records the lower case form of a word in an overlay, if the compiled vocabulary doesn't already have it
+	 * @return ID of the lower case form
+	 */
+	private int addLowerCase(Overlay changed, int wordID, String word) {
+		int lowerCaseID = getLowerCaseID(changed, wordID);
+		if (lowerCaseID >= 0) return lowerCaseID;
+
+		lowerCaseID = dictionary.add(word.toLowerCase());
+		changed.lowerCaseIDs.put(wordID, lowerCaseID);
+		if (getRow(lowerCaseID) < 0) changed.lowerCaseIDs.put(lowerCaseID, lowerCaseID);
+		return lowerCaseID;
+	}
+
+	/**
+	 * Puts the links of a row into a map, with {@link #END_OF_MESSAGE} for the messages that ended with the start word
+	 * @param lowerCaseID ID of the lower case start word
+	 * @return each linked word ID mapped to its frequency
+	 */
+	private Map<Integer, Integer> getLinkFrequencies(Overlay overlay, int lowerCaseID) {
+		Map<Integer, Integer> links = new LinkedHashMap<>();
+		Row changedRow = overlay.rows.get(lowerCaseID);
+		if (changedRow != null) {
+			for (int i = 0; i < changedRow.targets.length; i++) {
+				links.put(changedRow.targets[i], changedRow.weights[i] - ((i > 0)? changedRow.weights[i - 1] : 0));
+			}
+			if (changedRow.endCount > 0) links.put(END_OF_MESSAGE, changedRow.endCount);
+			return links;
+		}
+
+		int row = getRow(lowerCaseID);
+		if (row < 0) return links;
+		for (int position = linkOffsets.get(row); position < linkOffsets.get(row + 1); position++) {
+			links.put(linkTargets.get(position), linkWeights.get(position) - ((position > linkOffsets.get(row))? linkWeights.get(position - 1) : 0));
+		}
+		if (endCounts.get(row) > 0) links.put(END_OF_MESSAGE, endCounts.get(row));
+		return links;
+	}
+
+	/**
+	 * Makes a row out of links mapped to their frequencies, leaving out any which have dropped to nothing
+	 */
+	private static Row toRow(Map<Integer, Integer> links) {
+		int[] targets = new int[links.size()], weights = new int[links.size()];
+		int count = 0, runningTotal = 0;
+		for (Map.Entry<Integer, Integer> link : links.entrySet()) {
+			if (link.getKey() == END_OF_MESSAGE || link.getValue() <= 0) continue;
+			runningTotal += link.getValue();
+			targets[count] = link.getKey();
+			weights[count++] = runningTotal;
+		}
+		return new Row(Arrays.copyOf(targets, count), Arrays.copyOf(weights, count), Math.max(0, links.getOrDefault(END_OF_MESSAGE, 0)));
+	}
+
+	/**
+	 * @return if enough changes have built up in the overlay that the model should be compacted
+	 */
+	boolean needsCompacting() {
+		return overlay != null && overlay.words.size() + overlay.rows.size() > MAX_OVERLAY_ENTRIES;
+	}
+
+	/**
+	 * Compiles the model again with its overlay merged into the arrays. Higher order link tables are left out,
+	 * to be compiled again from the markov data when they're next used. This takes as long as compiling the
+	 * model from scratch, so is best done away from anything waiting on it
+	 * @return the compiled model, or this model if there's no overlay to merge
+	 */
+	MarkovModel compact() {
+		if (overlay == null) return this;
+
+		Map<String, Integer> wordFrequencies = new HashMap<>();
+		forEachLexiconWord(wordID -> wordFrequencies.put(dictionary.getWord(wordID), getLexiconFrequency(overlay, wordID)));
+
+		Map<String, Map<String, Integer>> links = new HashMap<>();
+		for (int row = 0; row < vocabulary.limit(); row++) {
+			if (overlay.rows.containsKey(vocabulary.get(row))) continue;
+			if (linkOffsets.get(row) == linkOffsets.get(row + 1) && endCounts.get(row) == 0) continue;
+			Map<String, Integer> rowLinks = getLinks(row);
+			if (endCounts.get(row) > 0) rowLinks.put(null, endCounts.get(row));
+			links.put(dictionary.getWord(vocabulary.get(row)), rowLinks);
+		}
+		for (Map.Entry<Integer, Row> row : overlay.rows.entrySet()) {
+			Map<String, Integer> rowLinks = getLinks(row.getValue());
+			if (row.getValue().endCount > 0) rowLinks.put(null, row.getValue().endCount);
+			if (!rowLinks.isEmpty()) links.put(dictionary.getWord(row.getKey()), rowLinks);
+		}
+
+		return compile(dictionary, user, wordFrequencies, links, messageEnds, dataVersion);
+	}
+
+	/**
+	 * @return the user the model was compiled for. <code>null</code> for all users
+	 */
+	User getUser() { return user; }
+
+	/**
+	 * @return version of the markov data (see {@link DataHandler#getDataVersion()}) the model is up to date with.
+	 * <code>-1</code> if the markov data couldn't be read
+	 */
+	int getDataVersion() { return dataVersion; }
+
+	@Override
+	public List<MarkovModel> getModels() { return Collections.singletonList(this); }
+
+	/**
+	 * Estimates how much memory the model uses, including the alias tables it may build later on.
+	 * The arrays of a model opened from a snapshot are in the mapped file rather than on the heap, so aren't counted
+	 * @return approximate size of the model in bytes
+	 */
+	long getSizeInBytes() {
+		long aliases = 8L * aliasTables.length + 8L * linkTargets.limit();
+		long changes = (overlay == null)? 0 : overlay.getSizeInBytes();
+		long arrays = 0;
+		if (!vocabulary.isDirect()) {
+			arrays = 4L * (vocabulary.limit() + linkRows.limit() + foldedFrequencies.limit() + linkOffsets.limit()
+					+ lexiconWords.limit() + linkTargets.limit() + linkWeights.limit() + endCounts.limit()) + 8L * lexiconTotals.limit();
+		}
+
+		long higherOrder = 0;
+		for (int order = 2; order < ngramTables.length(); order++) {
+			NGramTable table = ngramTables.get(order);
+			if (table != null) higherOrder += table.getSizeInBytes();
+		}
+		return aliases + arrays + changes + higherOrder;
+	}
+
+	/**
+	 * Finds the row of a word in the per-word arrays
+	 * @param wordID ID of the word
+	 * @return the word's row, or a negative number if the model doesn't contain the word
+	 */
+	private int getRow(int wordID) {
+		return (wordID < 0)? -1 : binarySearch(vocabulary, vocabulary.limit(), wordID);
+	}
+
+	/**
+	 * Searches the start of a sorted buffer for a value
+	 * @return index of the value, or a negative number if it isn't there
+	 */
+	private static int binarySearch(IntBuffer buffer, int length, int value) {
+		int low = 0, high = length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleValue = buffer.get(middle);
+			if (middleValue < value) low = middle + 1;
+			else if (middleValue > value) high = middle - 1;
+			else return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the higher order link table for a given order, if it's been compiled
+	 * @param order number of context words used to pick the next word
+	 * @return the table, or <code>null</code> if it hasn't been compiled yet
+	 */
+	NGramTable getNGramTable(int order) { return ngramTables.get(order); }
+
+	/**
+	 * Makes a copy of the model with a higher order link table added, replacing any of the same order. The copy shares
+	 * everything else with this model, which is left unchanged so anything already using it isn't affected
+	 * @param table the compiled table
+	 * @return the model with the table
+	 */
+	MarkovModel withNGramTable(@NotNull NGramTable table) {
+		MarkovModel model = new MarkovModel(this, overlay, dataVersion);
+		model.ngramTables.set(table.getOrder(), table);
+		return model;
+	}
+
+	/**
+	 * Gets the ID of the lower case form of a word, which is the form used for link start words
+	 * @param wordID ID of the word
+	 * @return ID of the lower case form, or <code>-1</code> if the model doesn't contain the word
+	 */
+	@Override
+	public int getLowerCaseID(int wordID) { return getLowerCaseID(overlay, wordID); }
+
+	/**
+	 * Gets the ID of the lower case form of a word, looking in an overlay for words the compiled vocabulary doesn't have
+	 * @param overlay overlay to look in, or <code>null</code> to only look in the compiled vocabulary
+	 */
+	private int getLowerCaseID(Overlay overlay, int wordID) {
+		int row = getRow(wordID);
+		if (row >= 0) return vocabulary.get(linkRows.get(row));
+		return (overlay == null || wordID < 0)? -1 : overlay.lowerCaseIDs.getOrDefault(wordID, -1);
+	}
+
+	/**
+	 * Gets how often a word has been said, looking in an overlay before the compiled lexicon
+	 * @param overlay overlay to look in, or <code>null</code> to only look in the compiled lexicon
+	 */
+	private int getLexiconFrequency(Overlay overlay, int wordID) {
+		if (overlay != null) {
+			Integer frequency = overlay.words.get(wordID);
+			if (frequency != null) return frequency;
+		}
+		int index = (wordID < 0)? -1 : binarySearch(lexiconWords, lexiconSize, wordID);
+		return (index < 0)? 0 : (int) (lexiconTotals.get(index) - ((index > 0)? lexiconTotals.get(index - 1) : 0));
+	}
+
+	/**
+	 * Gets how often a word has been said ignoring case, looking in an overlay before the compiled frequencies
+	 * @param overlay overlay to look in, or <code>null</code> to only look in the compiled frequencies
+	 * @param lowerCaseID ID of the lower case form of the word
+	 */
+	private int getFoldedFrequency(Overlay overlay, int lowerCaseID) {
+		if (overlay != null) {
+			Integer frequency = overlay.foldedFrequencies.get(lowerCaseID);
+			if (frequency != null) return frequency;
+		}
+		int row = getRow(lowerCaseID);
+		return (row < 0)? 0 : foldedFrequencies.get(row);
+	}
+
+	/**
+	 * Gets the changed links of a word from the overlay
+	 * @param wordID ID of the start word
+	 * @return the row of links, or <code>null</code> if they haven't changed since the model was compiled
+	 */
+	private Row getChangedRow(int wordID) {
+		return (overlay == null)? null : overlay.rows.get(getLowerCaseID(overlay, wordID));
+	}
+
+	/**
+	 * Finds the compiled row holding the links of a word
+	 * @param wordID ID of the start word
+	 * @return row of the word's lower case form, or a negative number if it has no compiled row
+	 */
+	private int getLinkRow(int wordID) {
+		int row = getRow(wordID);
+		if (row >= 0) return linkRows.get(row);
+
+		//A word new since the model was compiled can still have its lower case form in the compiled rows
+		return (overlay == null)? -1 : getRow(getLowerCaseID(overlay, wordID));
+	}
+
+	/**
+	 * @return how many unique words are in the lexicon of the model
+	 */
+	@Override
+	public int getLexiconSize() { return (overlay == null)? lexiconSize : overlay.lexiconSize; }
+
+	@Override
+	public boolean isEmpty() { return getLexiconSize() == 0; }
+
+	/**
+	 * Checks if a word is part of the lexicon of the model
+	 * @param wordID ID of the word
+	 * @return if the word has been said
+	 */
+	@Override
+	public boolean containsWord(int wordID) {
+		if (overlay != null) return getLexiconFrequency(overlay, wordID) > 0;
+		return wordID >= 0 && binarySearch(lexiconWords, lexiconSize, wordID) >= 0;
+	}
+
+	/**
+	 * Picks a random word from the lexicon, weighted by how often each word has been said
+	 * @param random source of randomness for picking the word
+	 * @return ID of the chosen word, or <code>-1</code> if the lexicon is empty
+	 */
+	@Override
+	public int getRandomWord(@NotNull Random random) {
+		if (overlay == null) return getRandomCompiledWord(random);
+
+		long compiledTotal = ((lexiconSize > 0)? lexiconTotals.get(lexiconSize - 1) : 0) - overlay.replacedTotal;
+		if (compiledTotal + overlay.total <= 0) return -1;
+
+		//Pick from the overlay by its share of the total, otherwise from the compiled words it hasn't replaced
+		if (random.nextDouble() * (compiledTotal + overlay.total) < overlay.total) {
+			long target = (long) (random.nextDouble() * overlay.total);
+			int low = 0, high = overlay.lexiconWords.length - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (overlay.lexiconTotals[middle] > target) high = middle; else low = middle + 1;
+			}
+			return overlay.lexiconWords[low];
+		}
+
+		//Find the first compiled word whose running total, less the replaced words up to it, is past the chosen point.
+		//That's never a replaced word, since the total doesn't go up over those
+		long target = (long) (random.nextDouble() * compiledTotal);
+		int low = 0, high = lexiconSize - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (lexiconTotals.get(middle) - overlay.getReplacedTotal(middle) > target) high = middle; else low = middle + 1;
+		}
+		return lexiconWords.get(low);
+	}
+
+	/**
+	 * Picks a random word from the compiled lexicon, weighted by how often each word has been said
+	 * @return ID of the chosen word, or <code>-1</code> if the compiled lexicon is empty
+	 */
+	private int getRandomCompiledWord(Random random) {
+		if (lexiconSize == 0) return -1;
+
+		//Find the first word whose running total is past the chosen point
+		long target = (long) (random.nextDouble() * lexiconTotals.get(lexiconSize - 1));
+		int low = 0, high = lexiconSize - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (lexiconTotals.get(middle) > target) high = middle; else low = middle + 1;
+		}
+		return lexiconWords.get(low);
+	}
+
+	/**
+	 * Gets how often a word has been said, ignoring case
+	 * @param word specified word to find the frequency of
+	 * @return frequency of the word
+	 */
+	@Override
+	public int getFrequencyOf(@NotNull String word) {
+		return getFoldedFrequency(overlay, dictionary.getID(word.toLowerCase()));
+	}
+
+	/**
+	 * Gets how often a word has been said, ignoring case
+	 * @param wordID ID of the word
+	 * @return frequency of the word
+	 */
+	@Override
+	public int getFrequencyOf(int wordID) {
+		int lowerCaseID = getLowerCaseID(overlay, wordID);
+		return (lowerCaseID < 0)? 0 : getFoldedFrequency(overlay, lowerCaseID);
+	}
+
+	/**
+	 * Gets the total frequency of all links from a specified word
+	 * @param wordID ID of the start word
+	 * @return total of the link frequencies, <code>0</code> if there are no links
+	 */
+	@Override
+	public int getLinkTotal(int wordID) {
+		Row changedRow = getChangedRow(wordID);
+		if (changedRow != null) return changedRow.getTotal();
+
+		int row = getLinkRow(wordID);
+		if (row < 0) return 0;
+
+		int end = linkOffsets.get(row + 1);
+		return (end > linkOffsets.get(row))? linkWeights.get(end - 1) : 0;
+	}
+
+	/**
+	 * Picks one of the links from a specified word, weighted by the frequency of each link
+	 * @param wordID ID of the start word
+	 * @param random source of randomness for picking the link
+	 * @return ID of the linked word, or <code>-1</code> if the word has no links
+	 */
+	@Override
+	public int getRandomLink(int wordID, @NotNull Random random) {
+		Row changedRow = getChangedRow(wordID);
+		if (changedRow != null) return changedRow.getRandomLink(random);
+
+		int row = getLinkRow(wordID);
+		if (row < 0) return -1;
+
+		int start = linkOffsets.get(row), end = linkOffsets.get(row + 1);
+		if (end == start) return -1;
+
+		if (end - start >= ALIAS_MIN_LINKS) {
+			AliasTable aliasTable = aliasTables[row];
+			if (aliasTable == null) aliasTables[row] = aliasTable = new AliasTable(linkWeights, start, end);
+			return linkTargets.get(start + aliasTable.sample(random));
+		}
+
+		//Find the first link whose running total is past the chosen point
+		int target = random.nextInt(linkWeights.get(end - 1));
+		int low = start, high = end - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (linkWeights.get(middle) > target) high = middle; else low = middle + 1;
+		}
+		return linkTargets.get(low);
+	}
+
+	@Override
+	public boolean hasEndCounts() { return messageEnds && ((overlay == null)? endTotal : overlay.endTotal) > 0; }
+
+	/**
+	 * Gets the chance of a message ending after a specified word, out of every message that carried on past it or
+	 * ended with it
+	 * @param wordID ID of the word
+	 * @return chance from <code>0</code> to <code>1</code>. <code>1</code> if nothing has ever followed the word
+	 */
+	@Override
+	public double getEndChance(int wordID) {
+		int linkTotal = getLinkTotal(wordID), endCount = getEndCount(wordID);
+		return (linkTotal + endCount == 0)? 1 : (double) endCount / (linkTotal + endCount);
+	}
+
+	/**
+	 * Gets how many messages ended with a specified word, ignoring case
+	 * @param wordID ID of the word
+	 * @return number of messages, <code>0</code> if none did
+	 */
+	int getEndCount(int wordID) {
+		Row changedRow = getChangedRow(wordID);
+		if (changedRow != null) return changedRow.endCount;
+
+		int row = getLinkRow(wordID);
+		return (row < 0)? 0 : endCounts.get(row);
+	}
+
+	@Override
+	public int getRandomLink(int order, @NotNull int[] context, int contextLength, @NotNull Random random) {
+		NGramTable table = ngramTables.get(order);
+		return (table == null)? -1 : table.getRandomLink(context, contextLength, random);
+	}
+
+	/**
+	 * Runs through every word in the lexicon of the model
+	 * @param action action to run on the ID of each word
+	 */
+	void forEachLexiconWord(@NotNull IntConsumer action) {
+		for (int i = 0; i < lexiconSize; i++) {
+			int wordID = lexiconWords.get(i);
+			if (overlay == null || !overlay.words.containsKey(wordID)) action.accept(wordID);
+		}
+		if (overlay != null) for (int wordID : overlay.lexiconWords) action.accept(wordID);
+	}
+
+	/**
+	 * Returns the markov links (potential next words) for a specified word
+	 * @param word word to find markov links for
+	 * @return <code>Map</code> of linked words to their frequencies
+	 */
+	@Override
+	public Map<String, Integer> getLinks(@NotNull String word) {
+		int lowerCaseID = dictionary.getID(word.toLowerCase());
+		Row changedRow = (overlay == null || lowerCaseID < 0)? null : overlay.rows.get(lowerCaseID);
+		if (changedRow != null) return getLinks(changedRow);
+
+		int row = getRow(lowerCaseID);
+		return (row < 0)? new HashMap<>() : getLinks(row);
+	}
+
+	/**
+	 * Returns the markov links stored in a given row
+	 * @param row row of the lower case start word
+	 * @return <code>Map</code> of linked words to their frequencies
+	 */
+	private Map<String, Integer> getLinks(int row) {
+		Map<String, Integer> links = new HashMap<>();
+		for (int position = linkOffsets.get(row); position < linkOffsets.get(row + 1); position++) {
+			int previousTotal = (position > linkOffsets.get(row))? linkWeights.get(position - 1) : 0;
+			links.put(dictionary.getWord(linkTargets.get(position)), linkWeights.get(position) - previousTotal);
+		}
+		return links;
+	}
+
+	/**
+	 * Returns the markov links in a row from the overlay
+	 * @return <code>Map</code> of linked words to their frequencies
+	 */
+	private Map<String, Integer> getLinks(Row row) {
+		Map<String, Integer> links = new HashMap<>();
+		for (int i = 0; i < row.targets.length; i++) {
+			links.put(dictionary.getWord(row.targets[i]), row.weights[i] - ((i > 0)? row.weights[i - 1] : 0));
+		}
+		return links;
+	}
+}
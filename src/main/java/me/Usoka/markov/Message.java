@@ -1,7 +1,5 @@
 package me.Usoka.markov;
 
-import java.util.regex.Pattern;
-
 public class Message {
 	/**
 	 * The maximum amount of characters that can be sent in one message. ({@value})
@@ -9,35 +7,15 @@ public class Message {
 	 */
 	int MAX_CONTENT_LENGTH = 2000;
 
-	/**
-	 * Pattern used to find links in messages.
-	 */
-	private Pattern LINK_PATTERN = Pattern.compile("((https?|http):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?!\\+-=\\\\\\.&]*)", Pattern.CASE_INSENSITIVE);
-
-	/**
-	 * Pattern used to find escaped links in messages.
-	 */
-	private Pattern ESCAPED_LINK_PATTERN = Pattern.compile("<((https?|http):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?!\\+-=\\\\\\.&]*)>", Pattern.CASE_INSENSITIVE);
-
-	/**
-	 * Pattern used to identify commands that should be ignored
-	 */
-	private Pattern COMMAND_WORDS = Pattern.compile("^!(" +
-			"(" + //Commands with parameters that follow it
-			"bet|" +										//Blackjack bot
-			"playlist|play playlist|" +						//Music bot
-			"quote|speak|count|markov|context|source|setuser" +	//Markov bot
-			")(\\s+.*|$)|" +
-			"(" + //Commands which are only the command
-			"start|hit|bet|login|check|logincreation|" +				//Blackjack bot
-			"queue|nowplaying|playlists|forceskip|skip|shuffle|stop|" +	//Music bot
-			"gethistory|word" +											//Markov bot
-			")$)", Pattern.CASE_INSENSITIVE);
-
 	private final long id;
 	private final String content;
 	private final User author;
 
+	/**
+	 * Cleaned content, worked out the first time it's asked for
+	 */
+	private String contentCleaned;
+
 	public Message(long id, String content, User author) {
 		this.id = id;
 		this.content = content;
@@ -68,16 +46,12 @@ public class Message {
 	 * Returns content but without unwanted links or key-words
 	 */
 	public String getContentCleaned() {
-		if (content == null) return "";
-		String cleanContent = content;
-
-		cleanContent = COMMAND_WORDS.matcher(cleanContent).replaceAll(" ");
-		cleanContent = ESCAPED_LINK_PATTERN.matcher(cleanContent).replaceAll(" ");
-		cleanContent = LINK_PATTERN.matcher(cleanContent).replaceAll("");
-
-		//Remove excess spaces and tabs
-		cleanContent = cleanContent.replaceAll("[ \t]+", " ").trim();
-
-		return cleanContent;
+		//Racing threads would only both work out the same string, so this doesn't need synchronising
+		String cleaned = contentCleaned;
+		if (cleaned == null) {
+			cleaned = content == null? "" : MessageCleaner.clean(content);
+			contentCleaned = cleaned;
+		}
+		return cleaned;
 	}
 }
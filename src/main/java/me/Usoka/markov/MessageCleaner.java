@@ -0,0 +1,239 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+/**
+ * Cleans the content of messages in one walk through the text: removes a command at the start, escaped links
+ * (<code>&lt;http://...&gt;</code>) and links, and collapses runs of spaces and tabs. <p/>
+ * Gives exactly the same result as the regular expressions it replaced, which were run one after the other:
+ * <ol>
+ *     <li>a command at the start of the message is replaced with a space</li>
+ *     <li>escaped links are replaced with a space</li>
+ *     <li>links are removed</li>
+ *     <li>runs of spaces and tabs are replaced with a single space, and the result is trimmed</li>
+ * </ol>
+ * Commands and links are matched ignoring the case of ASCII letters only.
+ */
+class MessageCleaner {
+	/**
+	 * Commands which can have anything following them (after some whitespace), up to the end of the line
+	 */
+	private static final String[] COMMANDS_WITH_PARAMETERS = {
+			"bet",										//Blackjack bot
+			"playlist", "play playlist",				//Music bot
+			"quote", "speak", "count", "markov", "context", "source", "setuser"	//Markov bot
+	};
+
+	/**
+	 * Commands which are only ignored when they're the whole message
+	 */
+	private static final String[] COMMANDS_ALONE = {
+			"start", "hit", "bet", "login", "check", "logincreation",					//Blackjack bot
+			"queue", "nowplaying", "playlists", "forceskip", "skip", "shuffle", "stop",	//Music bot
+			"gethistory", "word"														//Markov bot
+	};
+
+	/**
+	 * Characters which can be part of a link, after the <code>http:</code>
+	 */
+	private static final boolean[] LINK_CHARACTERS = new boolean[128];
+	static {
+		for (char c = 'a'; c <= 'z'; c++) LINK_CHARACTERS[c] = true;
+		for (char c = 'A'; c <= 'Z'; c++) LINK_CHARACTERS[c] = true;
+		//Everything from '+' to '=' is allowed, which covers the digits along with ",-./:;<"
+		for (char c = '+'; c <= '='; c++) LINK_CHARACTERS[c] = true;
+		for (char c : "_#@%$()~?!\\&".toCharArray()) LINK_CHARACTERS[c] = true;
+	}
+
+	private MessageCleaner() {}
+
+	/**
+	 * Cleans the content of a message
+	 * @param content raw content of the message
+	 * @return the content without any command, links or extra whitespace
+	 */
+	static String clean(@NotNull String content) {
+		int length = content.length();
+		StringBuilder cleaned = new StringBuilder(length);
+
+		int i = 0;
+		int commandEnd = commandEnd(content);
+		if (commandEnd >= 0) {
+			append(cleaned, ' ');
+			i = commandEnd;
+		}
+
+		while (i < length) {
+			char c = content.charAt(i);
+
+			if (c == '<') {
+				int escapedEnd = escapedLinkEnd(content, i);
+				if (escapedEnd >= 0) {
+					append(cleaned, ' ');
+					i = escapedEnd;
+					continue;
+				}
+			} else if (c == 'h' || c == 'H') {
+				int headEnd = linkHeadEnd(content, i);
+				if (headEnd >= 0) {
+					i = linkEnd(content, headEnd);
+					continue;
+				}
+			}
+
+			append(cleaned, c);
+			i++;
+		}
+
+		//Trim the same characters String.trim() does
+		int start = 0, end = cleaned.length();
+		while (start < end && cleaned.charAt(start) <= ' ') start++;
+		while (end > start && cleaned.charAt(end - 1) <= ' ') end--;
+		return cleaned.substring(start, end);
+	}
+
+	/**
+	 * Adds a character to the cleaned content, turning each run of spaces and tabs into a single space
+	 */
+	private static void append(StringBuilder cleaned, char c) {
+		if (c == ' ' || c == '\t') {
+			//A space at the end can only have come from a run of spaces and tabs, so this carries it on
+			if (cleaned.length() > 0 && cleaned.charAt(cleaned.length() - 1) == ' ') return;
+			c = ' ';
+		}
+		cleaned.append(c);
+	}
+
+	/**
+	 * Finds the end of a command at the start of the content
+	 * @return index just after the command, or <code>-1</code> if the content doesn't start with one
+	 */
+	private static int commandEnd(String content) {
+		if (content.isEmpty() || content.charAt(0) != '!') return -1;
+
+		for (String command : COMMANDS_WITH_PARAMETERS) {
+			int end = 1 + command.length();
+			if (!startsWithIgnoreCase(content, 1, command)) continue;
+
+			if (end < content.length() && isWhitespace(content.charAt(end))) {
+				//The whitespace after the command, then the rest of the line it ends on
+				while (end < content.length() && isWhitespace(content.charAt(end))) end++;
+				while (end < content.length() && !isLineTerminator(content.charAt(end))) end++;
+				return end;
+			}
+			if (isEndOfInput(content, end)) return end;
+		}
+
+		for (String command : COMMANDS_ALONE) {
+			int end = 1 + command.length();
+			if (startsWithIgnoreCase(content, 1, command) && isEndOfInput(content, end)) return end;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the end of an escaped link starting at a given index
+	 * @param start index of the <code>&lt;</code>
+	 * @return index just after the closing <code>&gt;</code>, or <code>-1</code> if there isn't an escaped link there
+	 */
+	private static int escapedLinkEnd(String content, int start) {
+		int headEnd = linkHeadEnd(content, start + 1);
+		if (headEnd < 0) return -1;
+
+		int end = linkCharactersEnd(content, headEnd);
+		return end < content.length() && content.charAt(end) == '>'? end + 1 : -1;
+	}
+
+	/**
+	 * Finds the end of a link, whose start has already been found. <p/>
+	 * A link stops early at an escaped link inside it. The escaped link gets replaced with a space first,
+	 * so the link can't carry on through it
+	 * @param headEnd index just after the start of the link (see {@link #linkHeadEnd(String, int)})
+	 * @return index just after the link
+	 */
+	private static int linkEnd(String content, int headEnd) {
+		int end = linkCharactersEnd(content, headEnd);
+
+		//An escaped link in the middle would end in the same place, so can only be there if a '>' comes next
+		if (end < content.length() && content.charAt(end) == '>') {
+			for (int i = headEnd; i < end; i++) {
+				if (content.charAt(i) == '<' && linkHeadEnd(content, i + 1) >= 0) return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Checks for the start of a link: <code>http:</code> or <code>https:</code>, followed by <code>//</code>
+	 * or a backslash
+	 * @param start index the link would start at
+	 * @return index just after the <code>:</code>, or <code>-1</code> if a link doesn't start there
+	 */
+	private static int linkHeadEnd(String content, int start) {
+		if (!startsWithIgnoreCase(content, start, "http")) return -1;
+
+		int i = start + 4;
+		if (i < content.length() && (content.charAt(i) == 's' || content.charAt(i) == 'S')) i++;
+		if (i >= content.length() || content.charAt(i) != ':') return -1;
+		i++;
+
+		if (content.startsWith("//", i) || (i < content.length() && content.charAt(i) == '\\')) return i;
+		return -1;
+	}
+
+	/**
+	 * @return index of the first character from <code>start</code> onwards which can't be part of a link
+	 */
+	private static int linkCharactersEnd(String content, int start) {
+		int i = start;
+		while (i < content.length() && isLinkCharacter(content.charAt(i))) i++;
+		return i;
+	}
+
+	private static boolean isLinkCharacter(char c) { return c < 128 && LINK_CHARACTERS[c]; }
+
+	/**
+	 * Checks if part of the content matches a lower case word, ignoring the case of ASCII letters
+	 */
+	private static boolean startsWithIgnoreCase(String content, int start, String word) {
+		if (start + word.length() > content.length()) return false;
+
+		for (int i = 0; i < word.length(); i++) {
+			char c = content.charAt(start + i);
+			if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			if (c != word.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whitespace as matched by <code>\s</code>
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Characters that end a line, which <code>.</code> doesn't match
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * Checks for the end of the content, the same way <code>$</code> does: either right at the end,
+	 * or before a line terminator which is the last thing in the content
+	 */
+	private static boolean isEndOfInput(String content, int index) {
+		int length = content.length();
+		if (index == length) return true;
+		if (index == length - 2) return content.charAt(index) == '\r' && content.charAt(index + 1) == '\n';
+		if (index == length - 1) {
+			char c = content.charAt(index);
+			//A '\n' straight after a '\r' is part of the same line terminator
+			if (c == '\n') return index == 0 || content.charAt(index - 1) != '\r';
+			return isLineTerminator(c);
+		}
+		return false;
+	}
+}
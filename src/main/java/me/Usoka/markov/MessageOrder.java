@@ -0,0 +1,21 @@
+package me.Usoka.markov;
+
+/**
+ * Order for a page of messages read from the source
+ */
+public enum MessageOrder {
+	/**
+	 * Oldest messages first
+	 */
+	OLDEST,
+
+	/**
+	 * Newest messages first
+	 */
+	NEWEST,
+
+	/**
+	 * A random selection of the messages, each as likely to be picked as any other
+	 */
+	RANDOM
+}
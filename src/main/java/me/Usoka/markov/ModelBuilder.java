@@ -0,0 +1,844 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rebuilds the markov database from the messages in the source database, either for every user or only
+ * for the users whose messages have changed since the last rebuild (as recorded in the source's change log). <p/>
+ * The source is read one user at a time with a forward-only cursor, in chunks of messages. Each chunk's words
+ * and links are counted on a pool of worker threads, with words given IDs from a {@link StripedDictionary} and the
+ * counts kept in {@link LongIntMap}s. As each user is finished their counts are written with JDBC batches. <p/>
+ * Everything is written to a new database next to the markov database (<code>markovData.db.new</code>), which
+ * replaces it in one step once it's finished (see {@link Installer}). The bot keeps reading and writing the old
+ * database while the rebuild runs, so it never sees an empty or half built model. <p/>
+ * Can be run on its own (see {@link #main(String[])}), or through {@link Core#rebuildModel(Map)}.
+ */
+public class ModelBuilder {
+	/**
+	 * Number of rows added to a batch before it's sent to the database ({@value})
+	 */
+	private static final int BATCH_SIZE = 10_000;
+
+	/**
+	 * Number of rows read from the source database at a time ({@value})
+	 */
+	private static final int FETCH_SIZE = 1_000;
+
+	/**
+	 * Most messages counted by a worker in one go ({@value}). A user with more messages than this has them read
+	 * and counted a chunk at a time, so only a few chunks are ever in memory however many messages they have
+	 */
+	private static final int CHUNK_MESSAGES = 5_000;
+
+	/**
+	 * Word ID used as the end word of the link from the last word of each message ({@value}),
+	 * which is written as a link with a <code>null</code> end word
+	 */
+	private static final int END_OF_MESSAGE = -1;
+
+	private final String sourceDatabaseDir;
+	private final String markovDatabaseDir;
+
+	/**
+	 * User IDs mapped to the ID of another user whose messages should also count as theirs
+	 */
+	private final Map<Long, Long> mergeUsers;
+
+	/**
+	 * Number of worker threads counting words and links
+	 */
+	private final int threads;
+
+	/**
+	 * Held by whatever writes messages to the source and adds them to the markov data, so a rebuild can start
+	 * reading the source and copying the markov data without any message being in one but not the other
+	 */
+	private final Object sourceLock;
+
+	/**
+	 * Summary of how a rebuild went
+	 */
+	public static class Report {
+		private final int users;
+		private final long messages, words, links, ngrams, rows, nanos;
+
+		private Report(int users, long messages, long words, long links, long ngrams, long rows, long nanos) {
+			this.users = users;
+			this.messages = messages;
+			this.words = words;
+			this.links = links;
+			this.ngrams = ngrams;
+			this.rows = rows;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return number of users rebuilt
+		 */
+		public int getUsers() { return users; }
+
+		/**
+		 * @return number of messages read from the source (merged messages count once for each user they're used for)
+		 */
+		public long getMessages() { return messages; }
+
+		/**
+		 * @return number of words counted
+		 */
+		public long getWords() { return words; }
+
+		/**
+		 * @return number of rows written to the markov database
+		 */
+		public long getRows() { return rows; }
+
+		/**
+		 * @return how long the rebuild took, in milliseconds
+		 */
+		public long getMillis() { return TimeUnit.NANOSECONDS.toMillis(nanos); }
+
+		@Override
+		public String toString() {
+			double seconds = Math.max(nanos, 1) / 1e9;
+			return String.format("Rebuilt %d users from %d messages (%d words) in %.1fs: %.0f messages/s, %.0f words/s. "
+					+ "%d links, %d higher order links, %d rows written (%.0f rows/s)",
+					users, messages, words, seconds, messages / seconds, words / seconds, links, ngrams, rows, rows / seconds);
+		}
+	}
+
+	/**
+	 * Counts from the messages of one user
+	 */
+	private static class UserCounts {
+		final long userID;
+		long messages = 0, words = 0;
+
+		/**
+		 * Frequency of each word, keyed by word ID
+		 */
+		final LongIntMap lexicon = new LongIntMap(1024);
+
+		/**
+		 * Frequency of each link, keyed by the IDs of the lower case start word and the end word
+		 * (or {@link #END_OF_MESSAGE} for the end of a message)
+		 */
+		final LongIntMap links = new LongIntMap(1024);
+
+		/**
+		 * Frequency of each higher order link, indexed by order and keyed by the IDs of the context and the end word
+		 */
+		final LongIntMap[] ngrams = new LongIntMap[Core.MAX_CHAIN_ORDER + 1];
+
+		UserCounts(long userID) {
+			this.userID = userID;
+			for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) ngrams[order] = new LongIntMap(1024);
+		}
+
+		/**
+		 * Adds the counts from another chunk of the same user's messages to these
+		 */
+		void addAll(UserCounts other) {
+			messages += other.messages;
+			words += other.words;
+			lexicon.addAll(other.lexicon);
+			links.addAll(other.links);
+			for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) ngrams[order].addAll(other.ngrams[order]);
+		}
+	}
+
+	/**
+	 * Hands chunks of messages out to the worker threads, adding up each user's counts as their chunks are finished
+	 * and writing the user out once they all are. Only a few chunks are queued up for the workers at a time, so
+	 * reading the source never gets far ahead of counting it
+	 */
+	private static class Counting {
+		private final StripedDictionary dictionary;
+		private final Writer writer;
+		private final CompletionService<UserCounts> completion;
+
+		/**
+		 * Most chunks waiting for or being counted by the workers at once
+		 */
+		private final int maxPending;
+		private int pending = 0;
+
+		/**
+		 * Counts so far of each user whose chunks haven't all been counted
+		 */
+		private final Map<Long, UserCounts> totals = new HashMap<>();
+
+		/**
+		 * Number of each user's chunks still to be counted, plus one while more of their messages are being read
+		 */
+		private final Map<Long, Integer> unfinished = new HashMap<>();
+
+		Counting(StripedDictionary dictionary, Writer writer, ExecutorService workers, int maxPending) {
+			this.dictionary = dictionary;
+			this.writer = writer;
+			this.completion = new ExecutorCompletionService<>(workers);
+			this.maxPending = maxPending;
+		}
+
+		/**
+		 * Starts reading a user's messages, so they aren't written out until all of them have been read
+		 */
+		void startUser(long userID) { unfinished.put(userID, 1); }
+
+		/**
+		 * Queues a chunk of a user's messages to be counted, first waiting for the workers to catch up if enough are queued
+		 */
+		void submit(long userID, List<String> messages) throws SQLException, InterruptedException {
+			while (pending >= maxPending) takeCounts();
+			unfinished.merge(userID, 1, Integer::sum);
+			completion.submit(() -> count(dictionary, userID, messages));
+			pending++;
+		}
+
+		/**
+		 * Finishes reading a user's messages, writing them out if every chunk has already been counted
+		 */
+		void finishUser(long userID) throws SQLException { finishChunk(userID); }
+
+		/**
+		 * Waits for every chunk to be counted, and writes out the users they're for
+		 */
+		void finishAll() throws SQLException, InterruptedException {
+			while (pending > 0) takeCounts();
+		}
+
+		/**
+		 * Adds the counts from whichever chunk finishes first to its user's total
+		 */
+		private void takeCounts() throws SQLException, InterruptedException {
+			UserCounts counts = getCounts(completion.take());
+			pending--;
+
+			UserCounts total = totals.get(counts.userID);
+			if (total == null) totals.put(counts.userID, counts);
+			else total.addAll(counts);
+			finishChunk(counts.userID);
+		}
+
+		/**
+		 * Marks one of a user's chunks as done, writing the user out if it was the last
+		 */
+		private void finishChunk(long userID) throws SQLException {
+			int remaining = unfinished.merge(userID, -1, Integer::sum);
+			if (remaining > 0) return;
+
+			unfinished.remove(userID);
+			UserCounts total = totals.remove(userID);
+			//Users without any messages have nothing to write
+			if (total != null) writer.write(total);
+		}
+	}
+
+	/**
+	 * @param sourceDatabaseDir directory of the SQLite source database
+	 * @param markovDatabaseDir directory of the SQLite markov database
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 */
+	public ModelBuilder(@NotNull String sourceDatabaseDir, @NotNull String markovDatabaseDir, @NotNull Map<Long, Long> mergeUsers) {
+		this(sourceDatabaseDir, markovDatabaseDir, mergeUsers, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param sourceDatabaseDir directory of the SQLite source database
+	 * @param markovDatabaseDir directory of the SQLite markov database
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 * @param threads number of worker threads to count words and links with
+	 */
+	public ModelBuilder(@NotNull String sourceDatabaseDir, @NotNull String markovDatabaseDir,
+						@NotNull Map<Long, Long> mergeUsers, int threads) {
+		this(sourceDatabaseDir, markovDatabaseDir, mergeUsers, threads, new Object());
+	}
+
+	/**
+	 * @param sourceDatabaseDir directory of the SQLite source database
+	 * @param markovDatabaseDir directory of the SQLite markov database
+	 * @param mergeUsers user IDs mapped to the ID of another user whose messages should also count as theirs
+	 * @param threads number of worker threads to count words and links with
+	 * @param sourceLock lock held while messages are written to the source and added to the markov data.
+	 *                   Held briefly at the start of a rebuild, while it works out where it's starting from
+	 */
+	public ModelBuilder(@NotNull String sourceDatabaseDir, @NotNull String markovDatabaseDir,
+						@NotNull Map<Long, Long> mergeUsers, int threads, @NotNull Object sourceLock) {
+		if (sourceDatabaseDir.equals("") || markovDatabaseDir.equals("")) {
+			throw new IllegalArgumentException("Database directory cannot be empty String");
+		}
+		if (threads < 1) throw new IllegalArgumentException("Need at least 1 thread to build with");
+
+		this.sourceDatabaseDir = sourceDatabaseDir;
+		this.markovDatabaseDir = markovDatabaseDir;
+		this.mergeUsers = new HashMap<>(mergeUsers);
+		this.threads = threads;
+		this.sourceLock = sourceLock;
+	}
+
+	/**
+	 * Replaces all of the markov data with data rebuilt from the source
+	 * @return summary of the rebuild
+	 * @throws SQLException if a database access error occurs. Nothing in the markov database is changed if so
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 * @throws IOException if the rebuilt database couldn't be moved into place
+	 */
+	public Report build() throws SQLException, InterruptedException, IOException {
+		return build(false, (shadowDatabase, markovDatabase, baseVersion) -> replaceDatabase(shadowDatabase, markovDatabase));
+	}
+
+	/**
+	 * Replaces all of the markov data with data rebuilt from the source, letting the caller switch over to it
+	 * @param installer what to do with the rebuilt database once it's finished
+	 * @return summary of the rebuild
+	 * @throws SQLException if a database access error occurs. Nothing in the markov database is changed if so
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 * @throws IOException if the installer failed
+	 */
+	public Report build(@NotNull Installer installer) throws SQLException, InterruptedException, IOException {
+		return build(false, installer);
+	}
+
+	/**
+	 * Rebuilds the markov data of only the users whose messages have been added, edited or deleted since the
+	 * last rebuild, so the time taken depends on how much has changed rather than the size of the whole source
+	 * @return summary of the rebuild
+	 * @throws SQLException if a database access error occurs. Nothing in the markov database is changed if so
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 * @throws IOException if the rebuilt database couldn't be moved into place
+	 */
+	public Report buildChanges() throws SQLException, InterruptedException, IOException {
+		return build(true, (shadowDatabase, markovDatabase, baseVersion) -> replaceDatabase(shadowDatabase, markovDatabase));
+	}
+
+	/**
+	 * Rebuilds the markov data of only the users whose messages have changed since the last rebuild,
+	 * letting the caller switch over to it
+	 * @param installer what to do with the rebuilt database once it's finished
+	 * @return summary of the rebuild
+	 * @throws SQLException if a database access error occurs. Nothing in the markov database is changed if so
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 * @throws IOException if the installer failed
+	 */
+	public Report buildChanges(@NotNull Installer installer) throws SQLException, InterruptedException, IOException {
+		return build(true, installer);
+	}
+
+	/**
+	 * Switches over to a rebuilt markov database once it's finished
+	 */
+	public interface Installer {
+		/**
+		 * @param shadowDatabase the rebuilt database. Fully written and not open anywhere
+		 * @param markovDatabase the markov database it was built to replace
+		 * @param baseVersion version of the markov data the rebuild started from. Changes made to the markov
+		 *                    database after this version aren't in the rebuilt database, and neither are the
+		 *                    messages they came from
+		 * @throws IOException if the rebuilt database couldn't be switched over to. The change log is kept if so
+		 */
+		void install(@NotNull Path shadowDatabase, @NotNull Path markovDatabase, int baseVersion) throws IOException;
+	}
+
+	/**
+	 * Moves a rebuilt database over the markov database in one step, so anything opening the markov
+	 * database gets either all of the old data or all of the new data. The old file is removed
+	 * @param shadowDatabase the rebuilt database
+	 * @param markovDatabase the markov database to replace
+	 * @throws IOException if the database couldn't be moved
+	 */
+	public static void replaceDatabase(@NotNull Path shadowDatabase, @NotNull Path markovDatabase) throws IOException {
+		Files.move(shadowDatabase, markovDatabase, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Rebuilds the markov data into a new database next to the current one, installs it, then clears
+	 * the change log up to where the rebuild started. The current database is only read from, so
+	 * anything using it carries on as normal until the new one is installed. <br/>
+	 * The whole source is read in one transaction, which starts at the same point the markov data is copied
+	 * from. So every message is either read by the rebuild, or was added to the markov data after its base version
+	 * @param changesOnly if only users with logged changes should be rebuilt
+	 * @param installer what to do with the rebuilt database once it's finished
+	 * @return summary of the rebuild
+	 */
+	private Report build(boolean changesOnly, Installer installer) throws SQLException, InterruptedException, IOException {
+		long startTime = System.nanoTime();
+		Path markovDatabase = Paths.get(markovDatabaseDir), shadowDatabase = Paths.get(markovDatabaseDir +".new");
+
+		try (Connection source = DriverManager.getConnection("jdbc:sqlite:"+ sourceDatabaseDir)) {
+			SQLiteSourceHandler.ensureSchema(source);
+
+			long lastChange;
+			Report report;
+			int baseVersion;
+			try {
+				Map<Long, String> users;
+				synchronized (sourceLock) {
+					//The source is in WAL mode, so this doesn't hold up writes, they just aren't seen by the rebuild
+					source.setAutoCommit(false);
+
+					//Every change logged up to now is covered by this rebuild. Anything logged after is left for the next one
+					lastChange = getLastChange(source);
+					users = readUsers(source);
+					if (changesOnly) users.keySet().retainAll(readChangedUsers(source, lastChange));
+					baseVersion = createShadow(markovDatabase, shadowDatabase, changesOnly);
+				}
+				report = buildShadow(source, shadowDatabase, users, changesOnly, startTime);
+
+				//Ends the read transaction, so the change log can be cleared once it's installed
+				source.setAutoCommit(true);
+			} catch (SQLException | InterruptedException | IOException | RuntimeException e) {
+				Files.deleteIfExists(shadowDatabase);
+				throw e;
+			}
+			installer.install(shadowDatabase, markovDatabase, baseVersion);
+
+			//If this fails the same users are just rebuilt again next time
+			clearChanges(source, lastChange);
+			return report;
+		}
+	}
+
+	/**
+	 * Creates the database to rebuild into. When only some users are rebuilt it starts as a copy of the current
+	 * data, otherwise it starts empty (but carries on the same data version, so versions never go backwards)
+	 * @return version of the markov data the new database starts from
+	 */
+	private int createShadow(Path markovDatabase, Path shadowDatabase, boolean changesOnly) throws SQLException, IOException {
+		//Anything left over is from a rebuild that didn't finish
+		Files.deleteIfExists(shadowDatabase);
+
+		int baseVersion;
+		try (Connection markov = DriverManager.getConnection("jdbc:sqlite:"+ markovDatabase)) {
+			SQLiteDataHandler.ensureSchema(markov);
+			if (changesOnly) {
+				//Copied with SQLite's online backup (an sqlite-jdbc command), which reads a consistent copy even while the bot is writing
+				try (Statement statement = markov.createStatement()) {
+					statement.executeUpdate("backup to \""+ shadowDatabase +"\"");
+				}
+			}
+			baseVersion = SQLiteDataHandler.getDataVersion(markov);
+		}
+
+		try (Connection shadow = DriverManager.getConnection("jdbc:sqlite:"+ shadowDatabase)) {
+			SQLiteDataHandler.ensureSchema(shadow);
+			if (changesOnly) {
+				baseVersion = SQLiteDataHandler.getDataVersion(shadow);
+			} else {
+				SQLiteDataHandler.setDataVersion(shadow, baseVersion);
+			}
+		}
+		return baseVersion;
+	}
+
+	/**
+	 * Rebuilds the markov data of the given users into the new database, in one transaction
+	 * @return summary of the rebuild
+	 */
+	private Report buildShadow(Connection source, Path shadowDatabase, Map<Long, String> users, boolean changesOnly,
+							   long startTime) throws SQLException, InterruptedException {
+		StripedDictionary dictionary = new StripedDictionary(threads);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+
+		try (Connection markov = DriverManager.getConnection("jdbc:sqlite:"+ shadowDatabase)) {
+			//Nobody else uses the new database, and it's deleted if the rebuild fails, so it doesn't need a rollback journal
+			try (Statement statement = markov.createStatement()) {
+				statement.executeUpdate("PRAGMA journal_mode = OFF");
+			}
+			markov.setAutoCommit(false);
+
+			try (Writer writer = new Writer(markov, dictionary, !changesOnly)) {
+				writer.replaceUsers(users);
+
+				//Keep a few chunks queued up for the workers, writing out each user once all their chunks are counted
+				Counting counting = new Counting(dictionary, writer, workers, threads * 2);
+				for (long userID : users.keySet()) {
+					if (changesOnly) {
+						//The user's old counts come out of the all-users tables now, and their new ones go in once written
+						SQLiteDataHandler.changeAllUsers(markov, userID, -1);
+						writer.clearUser(userID);
+					}
+					counting.startUser(userID);
+					readMessages(source, userID, counting);
+					counting.finishUser(userID);
+				}
+				counting.finishAll();
+
+				writer.flush();
+				if (changesOnly) {
+					for (long userID : users.keySet()) SQLiteDataHandler.changeAllUsers(markov, userID, 1);
+					SQLiteDataHandler.cleanAllUsers(markov);
+				} else {
+					SQLiteDataHandler.rebuildAllUsers(markov);
+					SQLiteDataHandler.markMessageEnds(markov);
+				}
+				SQLiteDataHandler.bumpDataVersion(markov, changesOnly? users.keySet() : null);
+				markov.commit();
+				return new Report(users.size(), writer.messages, writer.words, writer.linkCount, writer.ngramCount,
+						writer.rows, System.nanoTime() - startTime);
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gets the counts from a finished worker, passing on anything the worker threw
+	 */
+	private static UserCounts getCounts(Future<UserCounts> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to count words", e.getCause());
+		}
+	}
+
+	/**
+	 * Reads in every user from the source
+	 * @return each user's ID mapped to their name
+	 */
+	private Map<Long, String> readUsers(Connection source) throws SQLException {
+		Map<Long, String> users = new LinkedHashMap<>();
+		try (PreparedStatement prepState = source.prepareStatement("SELECT userID, username FROM users");
+			 ResultSet rs = prepState.executeQuery()) {
+			while (rs.next()) users.put(rs.getLong(1), rs.getString(2));
+		}
+		return users;
+	}
+
+	/**
+	 * @return ID of the most recent entry in the change log, or <code>0</code> if it's empty
+	 */
+	private long getLastChange(Connection source) throws SQLException {
+		try (PreparedStatement prepState = source.prepareStatement("SELECT max(changeID) FROM change_log");
+			 ResultSet rs = prepState.executeQuery()) {
+			return rs.next()? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Finds every user with messages in the change log up to a given entry, along with any users who
+	 * have those users merged into them
+	 * @return IDs of the users whose markov data needs rebuilding
+	 */
+	private Set<Long> readChangedUsers(Connection source, long lastChange) throws SQLException {
+		Set<Long> changedUsers = new HashSet<>();
+		try (PreparedStatement prepState = source.prepareStatement("SELECT DISTINCT userID FROM change_log WHERE changeID <= ?")) {
+			prepState.setLong(1, lastChange);
+			try (ResultSet rs = prepState.executeQuery()) {
+				while (rs.next()) changedUsers.add(rs.getLong(1));
+			}
+		}
+
+		for (Map.Entry<Long, Long> pair : mergeUsers.entrySet()) {
+			if (changedUsers.contains(pair.getValue())) changedUsers.add(pair.getKey());
+		}
+		return changedUsers;
+	}
+
+	/**
+	 * Removes the entries in the change log up to a given entry, now that they've been rebuilt
+	 */
+	private void clearChanges(Connection source, long lastChange) throws SQLException {
+		try (PreparedStatement prepState = source.prepareStatement("DELETE FROM change_log WHERE changeID <= ?")) {
+			prepState.setLong(1, lastChange);
+			prepState.executeUpdate();
+		}
+	}
+
+	/**
+	 * Reads the content of every message for a user, including those from any user merged with them,
+	 * and hands it to be counted a chunk at a time
+	 */
+	private void readMessages(Connection source, long userID, Counting counting) throws SQLException, InterruptedException {
+		String blankQuery = "SELECT messages.content FROM user_messages " +
+				"JOIN messages ON user_messages.messageID = messages.messageID " +
+				"WHERE user_messages.userID = ? OR user_messages.userID = ?";
+
+		try (PreparedStatement prepState = source.prepareStatement(blankQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			prepState.setFetchSize(FETCH_SIZE);
+			prepState.setLong(1, userID);
+			prepState.setLong(2, mergeUsers.getOrDefault(userID, userID));
+
+			try (ResultSet rs = prepState.executeQuery()) {
+				List<String> chunk = new ArrayList<>();
+				while (rs.next()) {
+					String content = rs.getString(1);
+					if (content == null) continue;
+					chunk.add(content);
+
+					if (chunk.size() == CHUNK_MESSAGES) {
+						counting.submit(userID, chunk);
+						chunk = new ArrayList<>();
+					}
+				}
+				if (!chunk.isEmpty()) counting.submit(userID, chunk);
+			}
+		}
+	}
+
+	/**
+	 * Counts the words, links and higher order links in a chunk of a user's messages. Run on the worker threads
+	 */
+	private static UserCounts count(StripedDictionary dictionary, long userID, List<String> messages) {
+		UserCounts counts = new UserCounts(userID);
+		Tokenizer words = new Tokenizer();
+		int[] wordIDs = new int[64], lowerCaseIDs = new int[64];
+
+		for (String message : messages) {
+			int wordCount = words.split(message);
+			if (wordCount > wordIDs.length) {
+				wordIDs = new int[wordCount];
+				lowerCaseIDs = new int[wordCount];
+			}
+			counts.messages++;
+
+			for (int i = 0; i < wordCount; i++) {
+				wordIDs[i] = words.getWordID(dictionary, i);
+				lowerCaseIDs[i] = words.getLowerCaseID(dictionary, i);
+
+				//Empty words aren't part of the lexicon
+				if (!words.isEmpty(i)) {
+					counts.lexicon.add(wordIDs[i], 1);
+					counts.words++;
+				}
+				if (i == 0) continue;
+
+				counts.links.add(LongIntMap.pack(lowerCaseIDs[i - 1], wordIDs[i]), 1);
+
+				//Contexts are stored as a single word in the dictionary, so they can be keyed the same way as links
+				for (int order = 2; order <= Core.MAX_CHAIN_ORDER && order <= i; order++) {
+					counts.ngrams[order].add(LongIntMap.pack(words.getContextID(dictionary, i - order, i), wordIDs[i]), 1);
+				}
+			}
+			if (wordCount > 0) counts.links.add(LongIntMap.pack(lowerCaseIDs[wordCount - 1], END_OF_MESSAGE), 1);
+		}
+		return counts;
+	}
+
+	/**
+	 * Writes counts to the markov database in batches, giving each new link an ID as it's first seen. <br/>
+	 * When replacing everything, IDs are handed out in order. Otherwise the existing links are kept,
+	 * so each link's ID is looked up (or the link inserted) the first time it's written
+	 */
+	private static class Writer implements AutoCloseable {
+		private final StripedDictionary dictionary;
+		private final boolean replaceAll;
+		private final PreparedStatement usersPrep, lexiconPrep, linksPrep, user_linksPrep, ngramsPrep, user_ngramsPrep;
+		private final PreparedStatement findLinkPrep, findNGramPrep, insertLinkPrep, insertNGramPrep;
+		private final PreparedStatement[] clearUserPreps;
+
+		/**
+		 * IDs (plus one) of the links written so far, keyed the same as in {@link UserCounts}
+		 */
+		private final LongIntMap linkIDs = new LongIntMap(1 << 16), ngramIDs = new LongIntMap(1 << 16);
+
+		private int linkCount = 0, ngramCount = 0;
+		private long messages = 0, words = 0, rows = 0;
+
+		/**
+		 * Number of rows added to the batches since they were last sent
+		 */
+		private int batchedRows = 0;
+
+		/**
+		 * @param markov connection to the markov database, with a transaction open
+		 * @param dictionary dictionary the word IDs in the counts belong to
+		 * @param replaceAll if all of the existing markov data should be cleared first
+		 */
+		Writer(Connection markov, StripedDictionary dictionary, boolean replaceAll) throws SQLException {
+			this.dictionary = dictionary;
+			this.replaceAll = replaceAll;
+
+			//Clear previous data to ensure it's accurate to the source
+			if (replaceAll) try (Statement statement = markov.createStatement()) {
+				statement.executeUpdate("DELETE FROM user_links");
+				statement.executeUpdate("DELETE FROM links");
+				statement.executeUpdate("DELETE FROM user_lexicons");
+				statement.executeUpdate("DELETE FROM user_ngrams");
+				statement.executeUpdate("DELETE FROM ngrams");
+			}
+
+			findLinkPrep = markov.prepareStatement("SELECT linkID FROM links WHERE startWord = ? AND endWord IS ?");
+			insertLinkPrep = markov.prepareStatement("INSERT INTO links (startWord, endWord) VALUES (?,?)");
+			findNGramPrep = markov.prepareStatement("SELECT ngramID FROM ngrams WHERE chainOrder = ? AND context = ? AND endWord = ?");
+			insertNGramPrep = markov.prepareStatement("INSERT INTO ngrams (chainOrder, context, endWord) VALUES (?,?,?)");
+			clearUserPreps = new PreparedStatement[] {
+					markov.prepareStatement("DELETE FROM user_lexicons WHERE userID = ?"),
+					markov.prepareStatement("DELETE FROM user_links WHERE userID = ?"),
+					markov.prepareStatement("DELETE FROM user_ngrams WHERE userID = ?")
+			};
+
+			usersPrep = markov.prepareStatement("REPLACE INTO users (userID, username) VALUES (?,?)");
+			lexiconPrep = markov.prepareStatement("INSERT INTO user_lexicons (userID, word, frequency) VALUES (?,?,?)");
+			linksPrep = markov.prepareStatement("INSERT INTO links (linkID, startWord, endWord) VALUES (?,?,?)");
+			user_linksPrep = markov.prepareStatement("INSERT INTO user_links (userID, linkID, frequency) VALUES (?,?,?)");
+			ngramsPrep = markov.prepareStatement("INSERT INTO ngrams (ngramID, chainOrder, context, endWord) VALUES (?,?,?,?)");
+			user_ngramsPrep = markov.prepareStatement("INSERT INTO user_ngrams (userID, ngramID, frequency) VALUES (?,?,?)");
+		}
+
+		/**
+		 * Ensures all users are in the markov database, and they're all up to date
+		 */
+		void replaceUsers(Map<Long, String> users) throws SQLException {
+			for (Map.Entry<Long, String> user : users.entrySet()) {
+				usersPrep.setLong(1, user.getKey());
+				usersPrep.setString(2, user.getValue());
+				usersPrep.addBatch();
+				countRow();
+			}
+		}
+
+		/**
+		 * Removes all of a user's existing markov data, ready for it to be written again
+		 */
+		void clearUser(long userID) throws SQLException {
+			for (PreparedStatement prepState : clearUserPreps) {
+				prepState.setLong(1, userID);
+				prepState.executeUpdate();
+			}
+		}
+
+		/**
+		 * Writes all the counts for one user
+		 */
+		void write(UserCounts counts) throws SQLException {
+			messages += counts.messages;
+			words += counts.words;
+
+			LongIntMap lexicon = counts.lexicon;
+			for (int slot = 0; slot < lexicon.capacity(); slot++) {
+				if (!lexicon.isUsed(slot)) continue;
+				lexiconPrep.setLong(1, counts.userID);
+				lexiconPrep.setString(2, dictionary.getWord((int) lexicon.keyAt(slot)));
+				lexiconPrep.setInt(3, lexicon.valueAt(slot));
+				lexiconPrep.addBatch();
+				countRow();
+			}
+
+			LongIntMap links = counts.links;
+			for (int slot = 0; slot < links.capacity(); slot++) {
+				if (!links.isUsed(slot)) continue;
+				long key = links.keyAt(slot);
+
+				int linkID = linkIDs.get(key) - 1;
+				if (linkID < 0) {
+					String startWord = dictionary.getWord(LongIntMap.first(key));
+					String endWord = (LongIntMap.second(key) == END_OF_MESSAGE)? null : dictionary.getWord(LongIntMap.second(key));
+					if (replaceAll) {
+						linkID = linkCount;
+						linksPrep.setInt(1, linkID);
+						linksPrep.setString(2, startWord);
+						linksPrep.setString(3, endWord);
+						linksPrep.addBatch();
+						countRow();
+					} else {
+						linkID = SQLiteDataHandler.findOrInsert(findLinkPrep, insertLinkPrep, startWord, endWord);
+					}
+					linkCount++;
+					linkIDs.add(key, linkID + 1);
+				}
+
+				user_linksPrep.setLong(1, counts.userID);
+				user_linksPrep.setInt(2, linkID);
+				user_linksPrep.setInt(3, links.valueAt(slot));
+				user_linksPrep.addBatch();
+				countRow();
+			}
+
+			for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) {
+				LongIntMap ngrams = counts.ngrams[order];
+				for (int slot = 0; slot < ngrams.capacity(); slot++) {
+					if (!ngrams.isUsed(slot)) continue;
+					long key = ngrams.keyAt(slot);
+
+					int ngramID = ngramIDs.get(key) - 1;
+					if (ngramID < 0) {
+						String context = dictionary.getWord(LongIntMap.first(key)), endWord = dictionary.getWord(LongIntMap.second(key));
+						if (replaceAll) {
+							ngramID = ngramCount;
+							ngramsPrep.setInt(1, ngramID);
+							ngramsPrep.setInt(2, order);
+							ngramsPrep.setString(3, context);
+							ngramsPrep.setString(4, endWord);
+							ngramsPrep.addBatch();
+							countRow();
+						} else {
+							ngramID = SQLiteDataHandler.findOrInsert(findNGramPrep, insertNGramPrep, order, context, endWord);
+						}
+						ngramCount++;
+						ngramIDs.add(key, ngramID + 1);
+					}
+
+					user_ngramsPrep.setLong(1, counts.userID);
+					user_ngramsPrep.setInt(2, ngramID);
+					user_ngramsPrep.setInt(3, ngrams.valueAt(slot));
+					user_ngramsPrep.addBatch();
+					countRow();
+				}
+			}
+		}
+
+		/**
+		 * Counts a row added to the batches, sending them once there are enough
+		 */
+		private void countRow() throws SQLException {
+			rows++;
+			if (++batchedRows >= BATCH_SIZE) flush();
+		}
+
+		/**
+		 * Sends all the batched rows to the database
+		 */
+		void flush() throws SQLException {
+			usersPrep.executeBatch();
+			lexiconPrep.executeBatch();
+			linksPrep.executeBatch();
+			user_linksPrep.executeBatch();
+			ngramsPrep.executeBatch();
+			user_ngramsPrep.executeBatch();
+			batchedRows = 0;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			for (PreparedStatement prepState : new PreparedStatement[] { usersPrep, lexiconPrep, linksPrep, user_linksPrep,
+					ngramsPrep, user_ngramsPrep, findLinkPrep, insertLinkPrep, findNGramPrep, insertNGramPrep }) {
+				prepState.close();
+			}
+			for (PreparedStatement prepState : clearUserPreps) prepState.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the markov database from the command line, printing a summary once it's done. The rebuilt database
+	 * replaces the old file, so the bot should be stopped first (it would keep using the old one otherwise)
+	 * @param args <code>--full</code> to rebuild every user instead of only those with changes, then the source
+	 *             database, the markov database, and any users to merge as <code>userID=mergedUserID</code>
+	 */
+	public static void main(String[] args) throws SQLException, InterruptedException, IOException {
+		boolean full = args.length > 0 && args[0].equals("--full");
+		int first = full? 1 : 0;
+		if (args.length - first < 2) {
+			System.err.println("Usage: ModelBuilder [--full] <source database> <markov database> [<userID>=<mergedUserID> ...]");
+			System.exit(1);
+		}
+
+		Map<Long, Long> mergeUsers = new HashMap<>();
+		for (int i = first + 2; i < args.length; i++) {
+			String[] pair = args[i].split("(\\s+)?=(\\s+)?");
+			if (pair.length != 2) throw new IllegalArgumentException("Invalid merge user pair: "+ args[i]);
+			mergeUsers.put(Long.parseUnsignedLong(pair[0]), Long.parseUnsignedLong(pair[1]));
+		}
+
+		ModelBuilder builder = new ModelBuilder(args[first], args[first + 1], mergeUsers);
+		System.out.println(full? builder.build() : builder.buildChanges());
+	}
+}
@@ -0,0 +1,165 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.*;
+
+/**
+ * Cache of compiled markov models, keyed by user ID. <p/>
+ * Models are evicted least recently used first whenever the total size of the cached
+ * models goes over the byte budget. The most recently added model is always kept, even
+ * if it's larger than the whole budget by itself, and so are pinned models.
+ */
+class ModelCache {
+	/**
+	 * Key used for the model of all users ({@value}), since no user has an ID of 0
+	 */
+	static final long ALL_USERS = 0;
+
+	/**
+	 * Maximum total size (in bytes) of the models held in the cache
+	 */
+	private final long byteBudget;
+
+	/**
+	 * Cached models, in order of least to most recently used. Kept in insertion order, with models moved to the
+	 * end when they're used, so they can be looked at without counting as a use
+	 */
+	private final LinkedHashMap<Long, MarkovModel> models = new LinkedHashMap<>();
+
+	/**
+	 * Total size (in bytes) of the models currently held in the cache
+	 */
+	private long usedBytes = 0;
+
+	/**
+	 * Keys of the models which are never evicted
+	 */
+	private Set<Long> pinned = Collections.emptySet();
+
+	private long hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * @param byteBudget maximum total size (in bytes) of the models held in the cache
+	 */
+	ModelCache(long byteBudget) {
+		if (byteBudget < 0) throw new IllegalArgumentException("Byte budget cannot be negative");
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * Gets the key used for a specified user's model
+	 * @param user specified user. <code>null</code> for all users
+	 * @return key for the user's model
+	 */
+	static long keyFor(User user) { return (user == null)? ALL_USERS : user.getIdLong(); }
+
+	/**
+	 * Gets a cached model, marking it as the most recently used
+	 * @param key key of the model (see {@link #keyFor(User)})
+	 * @return the cached model, or <code>null</code> if it isn't in the cache
+	 */
+	synchronized MarkovModel get(long key) {
+		MarkovModel model = models.remove(key);
+		if (model == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		models.put(key, model);
+		return model;
+	}
+
+	/**
+	 * Checks if a model is in the cache, without counting it as a use of the model
+	 * @param key key of the model (see {@link #keyFor(User)})
+	 * @return if the model is cached
+	 */
+	synchronized boolean contains(long key) { return models.containsKey(key); }
+
+	/**
+	 * Gets a cached model without counting it as a use of the model
+	 * @param key key of the model (see {@link #keyFor(User)})
+	 * @return the cached model, or <code>null</code> if it isn't in the cache
+	 */
+	synchronized MarkovModel peek(long key) { return models.get(key); }
+
+	/**
+	 * Sets which models are never evicted, replacing any pinned before. The models don't have to be cached yet
+	 * @param keys keys of the models (see {@link #keyFor(User)})
+	 */
+	synchronized void pin(@NotNull Collection<Long> keys) { pinned = new HashSet<>(keys); }
+
+	/**
+	 * Adds a model to the cache, replacing any model already cached with the same key.
+	 * Evicts the least recently used models until the cache is back within its budget
+	 * @param key key of the model (see {@link #keyFor(User)})
+	 * @param model model to add
+	 */
+	synchronized void put(long key, @NotNull MarkovModel model) {
+		models.remove(key);
+		models.put(key, model);
+		evictToBudget();
+	}
+
+	/**
+	 * Evicts the least recently used models until the cache is within its budget.
+	 * Sizes are counted fresh each time, since a model can replace an older version of itself with a different size
+	 */
+	private void evictToBudget() {
+		usedBytes = 0;
+		for (MarkovModel model : models.values()) usedBytes += model.getSizeInBytes();
+
+		Iterator<Map.Entry<Long, MarkovModel>> leastRecent = models.entrySet().iterator();
+		//The last entry is the most recently added model, so it's never reached
+		for (int remaining = models.size(); usedBytes > byteBudget && remaining > 1; remaining--) {
+			Map.Entry<Long, MarkovModel> evicted = leastRecent.next();
+			if (pinned.contains(evicted.getKey())) continue;
+			usedBytes -= evicted.getValue().getSizeInBytes();
+			leastRecent.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes a model from the cache, so it gets compiled again the next time it's used
+	 * @param key key of the model (see {@link #keyFor(User)})
+	 */
+	synchronized void remove(long key) {
+		MarkovModel removed = models.remove(key);
+		if (removed != null) evictToBudget();
+	}
+
+	/**
+	 * Removes every model from the cache
+	 */
+	synchronized void clear() {
+		models.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * @return number of times a model was found in the cache
+	 */
+	synchronized long getHits() { return hits; }
+
+	/**
+	 * @return number of times a model wasn't found in the cache
+	 */
+	synchronized long getMisses() { return misses; }
+
+	/**
+	 * @return number of models evicted to keep within the byte budget
+	 */
+	synchronized long getEvictions() { return evictions; }
+
+	/**
+	 * @return total size (in bytes) of the models currently held in the cache
+	 */
+	synchronized long getUsedBytes() { return usedBytes; }
+
+	/**
+	 * @return number of models currently held in the cache
+	 */
+	synchronized int size() { return models.size(); }
+}
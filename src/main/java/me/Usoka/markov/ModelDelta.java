@@ -0,0 +1,156 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.*;
+
+/**
+ * Changes to the markov data from a group of messages: how much the frequency of each word,
+ * link and higher order link goes up (for new messages) or down (for deleted messages) by.
+ * Anything whose changes cancel out, such as from an edit that didn't change a word, is left out. <p/>
+ * Messages are split into words by a {@link Tokenizer}, the same way the markov builder splits them, so
+ * adding the changes to existing data gives the same counts as a full rebuild would.
+ */
+public class ModelDelta {
+	/**
+	 * Change in frequency of each word said
+	 */
+	private final Map<String, Integer> wordChanges = new HashMap<>();
+
+	/**
+	 * Change in frequency of each link, from the lower case start word to the end word.
+	 * The end word is <code>null</code> for the end of a message
+	 */
+	private final Map<String, Map<String, Integer>> linkChanges = new HashMap<>();
+
+	/**
+	 * Change in frequency of each higher order link, indexed by the order of the link. Contexts are
+	 * the lower case words separated by single spaces, the same as in the markov database
+	 */
+	private final List<Map<String, Map<String, Integer>>> ngramChanges = new ArrayList<>();
+
+	/**
+	 * Splits messages into words, the same way the markov builder does
+	 */
+	private final Tokenizer words = new Tokenizer();
+
+	ModelDelta() {
+		for (int order = 0; order <= Core.MAX_CHAIN_ORDER; order++) ngramChanges.add(new HashMap<>());
+	}
+
+	/**
+	 * Adds the words and links of a new message to the changes
+	 * @param content cleaned content of the message
+	 */
+	void addMessage(@NotNull String content) { changeMessage(content, 1); }
+
+	/**
+	 * Takes the words and links of a deleted message away in the changes
+	 * @param content cleaned content of the message
+	 */
+	void removeMessage(@NotNull String content) { changeMessage(content, -1); }
+
+	/**
+	 * Changes the frequency of every word and link in a message by a given amount
+	 */
+	private void changeMessage(String content, int change) {
+		int wordCount = words.split(content);
+		for (int i = 0; i < wordCount; i++) {
+			String word = words.getWord(i);
+
+			//Empty words aren't part of the lexicon
+			if (!words.isEmpty(i)) wordChanges.merge(word, change, ModelDelta::sum);
+			if (i == 0) continue;
+
+			changeLink(linkChanges, words.getLowerCase(i - 1), word, change);
+
+			//Each higher order link uses the lower case forms of the words before it as its context
+			for (int order = 2; order <= Core.MAX_CHAIN_ORDER && order <= i; order++) {
+				changeLink(ngramChanges.get(order), words.getContext(i - order, i), word, change);
+			}
+		}
+
+		//Record where the message ended, so sentences can end in the same places
+		if (wordCount > 0) changeLink(linkChanges, words.getLowerCase(wordCount - 1), null, change);
+	}
+
+	/**
+	 * Adds all the changes from another delta to this one
+	 * @param other delta to add the changes of
+	 */
+	void addAll(@NotNull ModelDelta other) {
+		other.wordChanges.forEach((word, change) -> wordChanges.merge(word, change, ModelDelta::sum));
+		addLinks(linkChanges, other.linkChanges);
+		for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) addLinks(ngramChanges.get(order), other.ngramChanges.get(order));
+	}
+
+	/**
+	 * Adds the link changes from one map onto another
+	 */
+	private static void addLinks(Map<String, Map<String, Integer>> links, Map<String, Map<String, Integer>> otherLinks) {
+		otherLinks.forEach((startWord, endWords) ->
+				endWords.forEach((endWord, change) -> changeLink(links, startWord, endWord, change)));
+	}
+
+	/**
+	 * Changes the frequency of one link, removing it from the map if the change comes to nothing
+	 */
+	private static void changeLink(Map<String, Map<String, Integer>> links, String startWord, String endWord, int change) {
+		Map<String, Integer> startLinks = links.computeIfAbsent(startWord, k -> new HashMap<>());
+		startLinks.merge(endWord, change, ModelDelta::sum);
+		if (startLinks.isEmpty()) links.remove(startWord);
+	}
+
+	/**
+	 * Adds two changes together, giving <code>null</code> (so the entry is removed) if they cancel out
+	 */
+	private static Integer sum(Integer change, Integer otherChange) {
+		int total = change + otherChange;
+		return (total == 0)? null : total;
+	}
+
+	/**
+	 * @return if there are no changes
+	 */
+	public boolean isEmpty() {
+		for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) if (!ngramChanges.get(order).isEmpty()) return false;
+		return wordChanges.isEmpty() && linkChanges.isEmpty();
+	}
+
+	/**
+	 * @return if any word or link has its frequency go down, so counts may need removing
+	 */
+	public boolean hasRemovals() {
+		if (wordChanges.values().stream().anyMatch(change -> change < 0)) return true;
+		if (hasRemovals(linkChanges)) return true;
+		for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) if (hasRemovals(ngramChanges.get(order))) return true;
+		return false;
+	}
+
+	private static boolean hasRemovals(Map<String, Map<String, Integer>> links) {
+		return links.values().stream().anyMatch(endWords -> endWords.values().stream().anyMatch(change -> change < 0));
+	}
+
+	/**
+	 * @return each word mapped to how much its frequency changes (negative if it goes down)
+	 */
+	public Map<String, Integer> getWordChanges() { return Collections.unmodifiableMap(wordChanges); }
+
+	/**
+	 * @return each lower case start word mapped to its end words (<code>null</code> for the end of a message),
+	 * and how much the frequency of each link changes
+	 */
+	public Map<String, Map<String, Integer>> getLinkChanges() { return Collections.unmodifiableMap(linkChanges); }
+
+	/**
+	 * Gets the changes to higher order links of a given order
+	 * @param order number of context words in each link, from 2 up to {@value Core#MAX_CHAIN_ORDER}
+	 * @return each context mapped to its end words, and how much the frequency of each link changes
+	 */
+	public Map<String, Map<String, Integer>> getNGramChanges(int order) {
+		if (order < 2 || order > Core.MAX_CHAIN_ORDER) {
+			throw new IllegalArgumentException("Higher order links must be between order 2 and "+ Core.MAX_CHAIN_ORDER);
+		}
+		return Collections.unmodifiableMap(ngramChanges.get(order));
+	}
+}
@@ -0,0 +1,297 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary file holding the word dictionary and a compiled model for every user, so models can be opened straight
+ * from disk instead of being compiled from the markov database. <p/>
+ * The file is memory mapped read only and models read their arrays straight out of it, so opening one takes
+ * the same time no matter how big the corpus is, nothing is copied onto the heap, and several processes opening
+ * the same file share the same pages. <p/>
+ * Layout (big endian, with every section starting on an 8 byte boundary): <br/>
+ * <code>header</code> magic number, format version, version of the markov data every model was up to date with
+ * when the snapshot was written, number of models, then the offset and length of the dictionary and the offset of
+ * the directory <br/>
+ * <code>models</code> each model, as written by {@link MarkovModel#writeTo(DataOutput)} <br/>
+ * <code>dictionary</code> as written by {@link WordDictionary#writeTo(DataOutput)}. It's written after the models
+ * since compiling them adds to it <br/>
+ * <code>directory</code> the key (see {@link ModelCache#keyFor(User)}), version of the markov data it was read at
+ * (see {@link DataHandler#getDataVersion()}), offset and length of each model, sorted by key. Each model is used
+ * until its own markov data changes, whenever the rest of the snapshot was written
+ */
+class ModelSnapshot implements Closeable {
+	/**
+	 * Number every snapshot file starts with ({@value}, "MKVS")
+	 */
+	private static final int MAGIC = 0x4D4B5653;
+
+	/**
+	 * Version of the file layout ({@value}). Snapshots with a different version can't be opened
+	 */
+	private static final int FORMAT_VERSION = 3;
+
+	private static final int HEADER_BYTES = 40;
+
+	/**
+	 * Numbers in each directory entry: the model's key, data version, offset and length
+	 */
+	private static final int ENTRY_LONGS = 4;
+
+	private static final int ENTRY_BYTES = ENTRY_LONGS * Long.BYTES;
+
+	private final FileChannel channel;
+	private final int dataVersion;
+	private final WordDictionary dictionary;
+
+	/**
+	 * Key, data version, offset and length of each model, sorted by key
+	 */
+	private final LongBuffer directory;
+
+	private ModelSnapshot(FileChannel channel, int dataVersion, WordDictionary dictionary, LongBuffer directory) {
+		this.channel = channel;
+		this.dataVersion = dataVersion;
+		this.dictionary = dictionary;
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens a snapshot file. Only the header, dictionary and directory are mapped straight away,
+	 * each model is mapped the first time it's asked for
+	 * @param file snapshot file to open
+	 * @return the opened snapshot
+	 * @throws IOException if the file couldn't be read, isn't a snapshot this version can read, or is corrupt
+	 */
+	static ModelSnapshot open(@NotNull Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER_BYTES) throw new IOException("Not a model snapshot: "+ file);
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt(0) != MAGIC) throw new IOException("Not a model snapshot: "+ file);
+			if (header.getInt(4) != FORMAT_VERSION) {
+				throw new IOException("Unsupported model snapshot format "+ header.getInt(4) +" (expected "+ FORMAT_VERSION +")");
+			}
+
+			//Every section has to be inside the file, so nothing is ever mapped past the end of it
+			int modelCount = header.getInt(12);
+			long dictionaryOffset = header.getLong(16), dictionaryLength = header.getLong(24), directoryOffset = header.getLong(32);
+			if (modelCount < 0 || !isInFile(dictionaryOffset, dictionaryLength, channel.size())
+					|| !isInFile(directoryOffset, (long) modelCount * ENTRY_BYTES, channel.size())) {
+				throw new IOException("Model snapshot is truncated: "+ file);
+			}
+
+			LongBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, (long) modelCount * ENTRY_BYTES).asLongBuffer();
+			for (int entry = 0; entry < modelCount; entry++) {
+				boolean sorted = entry == 0 || directory.get(entry * ENTRY_LONGS) > directory.get((entry - 1) * ENTRY_LONGS);
+				if (!sorted || !isInFile(directory.get(entry * ENTRY_LONGS + 2), directory.get(entry * ENTRY_LONGS + 3), channel.size())) {
+					throw new IOException("Model snapshot has a corrupt directory: "+ file);
+				}
+			}
+
+			WordDictionary dictionary = WordDictionary.fromSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, dictionaryLength));
+			return new ModelSnapshot(channel, header.getInt(8), dictionary, directory);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			//Thrown by a section that doesn't hold what its header says it does
+			channel.close();
+			throw new IOException("Model snapshot is corrupt: "+ file, e);
+		}
+	}
+
+	/**
+	 * Checks if a section lies within the file, after the header
+	 * @param offset position of the section's first byte
+	 * @param length number of bytes in the section
+	 * @param fileSize size of the whole file
+	 * @return if all of the section is in the file
+	 */
+	private static boolean isInFile(long offset, long length, long fileSize) {
+		return offset >= HEADER_BYTES && length >= 0 && length <= fileSize - offset;
+	}
+
+	/**
+	 * @return version of the markov data (see {@link DataHandler#getDataVersion()}) every model in the snapshot
+	 * was up to date with when it was written
+	 */
+	int getDataVersion() { return dataVersion; }
+
+	/**
+	 * @return the dictionary from the snapshot, which the IDs in its models belong to
+	 */
+	WordDictionary getDictionary() { return dictionary; }
+
+	/**
+	 * Opens the model for a specified target from the snapshot, as long as the target's markov data hasn't
+	 * changed since the model was read
+	 * @param dictionary dictionary for the model to use. Must be either {@link #getDictionary()}, or the dictionary
+	 *                   the snapshot was written from (as long as no words have been removed from it since)
+	 * @param markovData data handler to check the target's markov data against
+	 * @param user specified user to get the model for. <code>null</code> for all users
+	 * @return the model, or <code>null</code> if the snapshot doesn't have an up to date one for the target
+	 * @throws IOException if the model couldn't be mapped, or is corrupt
+	 */
+	MarkovModel getModel(@NotNull WordDictionary dictionary, @NotNull DataHandler markovData, User user) throws IOException {
+		int entry = findEntry(ModelCache.keyFor(user));
+		if (entry < 0) return null;
+
+		int modelVersion = getModelVersion(entry);
+		if (!isUpToDate(markovData, user, modelVersion)) return null;
+
+		ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, directory.get(entry * ENTRY_LONGS + 2), directory.get(entry * ENTRY_LONGS + 3));
+		try {
+			return MarkovModel.fromSnapshot(dictionary, user, section, markovData.hasMessageEnds(), modelVersion);
+		} catch (RuntimeException e) {
+			throw new IOException("Model snapshot has a corrupt model for "+ ModelCache.keyFor(user), e);
+		}
+	}
+
+	/**
+	 * Finds a model's entry in the directory
+	 * @param key key of the model (see {@link ModelCache#keyFor(User)})
+	 * @return index of the entry, or <code>-1</code> if the snapshot doesn't have the model
+	 */
+	private int findEntry(long key) {
+		int low = 0, high = directory.limit() / ENTRY_LONGS - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleKey = directory.get(middle * ENTRY_LONGS);
+			if (middleKey < key) low = middle + 1;
+			else if (middleKey > key) high = middle - 1;
+			else return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param entry index of the model's entry in the directory
+	 * @return version of the markov data the model was read at
+	 */
+	private int getModelVersion(int entry) { return (int) directory.get(entry * ENTRY_LONGS + 1); }
+
+	/**
+	 * Checks if a model read at a given version of the markov data is still up to date. The model for all users is
+	 * out of date if anyone's data has changed since, a single user's only if theirs has
+	 * @param markovData data handler to check against
+	 * @param user user the model is for. <code>null</code> for all users
+	 * @param modelVersion version of the markov data the model was read at
+	 * @return if the model is up to date. <code>false</code> if the markov data couldn't be read
+	 */
+	private static boolean isUpToDate(@NotNull DataHandler markovData, User user, int modelVersion) {
+		if (user == null) return markovData.getDataVersion() == modelVersion;
+		int lastChange = markovData.getDataVersionFor(user);
+		return lastChange >= 0 && lastChange <= modelVersion;
+	}
+
+	/**
+	 * Copies a model's section of the file, as is, to the end of another file
+	 * @param entry index of the model's entry in the directory
+	 * @param target channel to write the section to, at its current position
+	 * @throws IOException if the section couldn't be copied
+	 */
+	private void copySection(int entry, @NotNull FileChannel target) throws IOException {
+		long offset = directory.get(entry * ENTRY_LONGS + 2), length = directory.get(entry * ENTRY_LONGS + 3);
+		for (long copied = 0; copied < length; ) {
+			long transferred = channel.transferTo(offset + copied, length - copied, target);
+			if (transferred <= 0) throw new IOException("Model snapshot is truncated");
+			copied += transferred;
+		}
+	}
+
+	/**
+	 * Closes the file. Models already opened from the snapshot can still be used
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException { channel.close(); }
+
+	/**
+	 * Writes a snapshot of the model for all users and every single user. Models in the previous snapshot whose markov
+	 * data hasn't changed since are copied straight across, and the rest are compiled from the markov data one at a
+	 * time, so only one is ever in memory. Each model records the version of the markov data it was read at,
+	 * so the snapshot is still usable if the markov data changes while it's being written
+	 * @param file file to write the snapshot to. Should be a temporary file, moved into place once it's been written,
+	 *             so a snapshot being opened is never half written
+	 * @param dictionary dictionary to give the words their IDs. Must contain every word the previous snapshot's did
+	 * @param markovData data handler to read the markov data from
+	 * @param previous snapshot to copy the models which are still up to date from. <code>null</code> if there isn't one
+	 * @throws IOException if the snapshot couldn't be written, or the markov data couldn't be read
+	 */
+	static void write(@NotNull Path file, @NotNull WordDictionary dictionary, @NotNull DataHandler markovData,
+					  ModelSnapshot previous) throws IOException {
+		//Every model is at least this up to date, since each is checked or read after it
+		int dataVersion = markovData.getDataVersion();
+		if (dataVersion < 0) throw new IOException("Failed to read the markov data version");
+
+		List<User> targets = new ArrayList<>();
+		targets.add(null);
+		targets.addAll(markovData.getUsers());
+		targets.sort((a, b) -> Long.compare(ModelCache.keyFor(a), ModelCache.keyFor(b)));
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			channel.position(HEADER_BYTES);
+
+			long[] entries = new long[targets.size() * ENTRY_LONGS];
+			for (int i = 0; i < targets.size(); i++) {
+				User target = targets.get(i);
+				long key = ModelCache.keyFor(target), offset = channel.position();
+				int previousEntry = (previous == null)? -1 : previous.findEntry(key);
+
+				int modelVersion;
+				if (previousEntry >= 0 && isUpToDate(markovData, target, previous.getModelVersion(previousEntry))) {
+					//The word IDs in it are still the same, since words are never removed from the dictionary
+					modelVersion = previous.getModelVersion(previousEntry);
+					previous.copySection(previousEntry, channel);
+				} else {
+					MarkovModel model = MarkovModel.build(dictionary, markovData, target);
+					if (model.getDataVersion() < 0) throw new IOException("Failed to read the markov data");
+					modelVersion = model.getDataVersion();
+					model.writeTo(out);
+				}
+
+				entries[i * ENTRY_LONGS] = key;
+				entries[i * ENTRY_LONGS + 1] = modelVersion;
+				entries[i * ENTRY_LONGS + 2] = offset;
+				entries[i * ENTRY_LONGS + 3] = endSection(out, channel) - offset;
+			}
+
+			long dictionaryOffset = channel.position();
+			dictionary.writeTo(out);
+			long dictionaryLength = endSection(out, channel) - dictionaryOffset;
+
+			long directoryOffset = channel.position();
+			for (long entry : entries) out.writeLong(entry);
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(dataVersion).putInt(targets.size())
+					.putLong(dictionaryOffset).putLong(dictionaryLength).putLong(directoryOffset).flip();
+			channel.write(header, 0);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Flushes a section out to the channel, padding it so the next section starts on an 8 byte boundary
+	 * @return position of the end of the section, including the padding
+	 */
+	private static long endSection(DataOutputStream out, FileChannel channel) throws IOException {
+		out.flush();
+		for (long padding = (8 - channel.position() % 8) % 8; padding > 0; padding--) out.writeByte(0);
+		out.flush();
+		return channel.position();
+	}
+}
@@ -0,0 +1,222 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.*;
+
+/**
+ * Higher order markov links, where the next word depends on more than just the previous word. <p/>
+ * The context words (the previous words, in lower case) are stored as a prefix trie, with each level
+ * of the trie held in flat sorted arrays. A context is found with one binary search per word, and the
+ * words that can follow it are picked from running totals the same way as in {@link MarkovModel}.
+ * Everything is stored as <code>int</code> word IDs from the shared {@link WordDictionary}.
+ */
+class NGramTable {
+	/**
+	 * Number of context words used to pick the next word
+	 */
+	private final int order;
+
+	/**
+	 * Word ID for each node of each level of the trie. The nodes under a parent are sorted by word ID
+	 */
+	private final int[][] levelWords;
+
+	/**
+	 * For each node of each level, where its children start in the next level down.
+	 * For the last level, where its links start in {@link #linkTargets}. Each array has one
+	 * extra entry on the end, so a node's children end where the next node's start
+	 */
+	private final int[][] childOffsets;
+
+	/**
+	 * Word ID of the end word for each link
+	 */
+	private final int[] linkTargets;
+
+	/**
+	 * Running total of the link frequencies for each context. The last entry for a context is its total
+	 */
+	private final int[] linkWeights;
+
+	/**
+	 * @param order number of context words used to pick the next word
+	 * @param levelWords word IDs for each node of each level
+	 * @param childOffsets where each node's children (or links) start
+	 * @param linkTargets word ID of the end word for each link
+	 * @param linkWeights running total of the link frequencies
+	 */
+	private NGramTable(int order, int[][] levelWords, int[][] childOffsets, int[] linkTargets, int[] linkWeights) {
+		this.order = order;
+		this.levelWords = levelWords;
+		this.childOffsets = childOffsets;
+		this.linkTargets = linkTargets;
+		this.linkWeights = linkWeights;
+	}
+
+	/**
+	 * Compiles a table of higher order links as they're read in (see {@link DataHandler.NGramReader}). Each context is
+	 * turned into the IDs of its words as soon as it's read, and kept in flat arrays along with its end word and
+	 * frequency, so nothing is held onto as a <code>String</code>. The joined contexts are never added to the dictionary
+	 */
+	static class Builder implements DataHandler.NGramReader {
+		private final WordDictionary dictionary;
+		private final int order;
+
+		/**
+		 * Each link's context word IDs then end word ID, <code>order + 1</code> values per link
+		 */
+		private int[] links = new int[64];
+
+		/**
+		 * Frequency of each link
+		 */
+		private int[] frequencies = new int[16];
+		private int linkCount = 0;
+
+		/**
+		 * @param dictionary dictionary to give the words their IDs
+		 * @param order number of context words in each link
+		 */
+		Builder(@NotNull WordDictionary dictionary, int order) {
+			if (order < 2) throw new IllegalArgumentException("Higher order links need at least 2 context words");
+			this.dictionary = dictionary;
+			this.order = order;
+		}
+
+		@Override
+		public void read(@NotNull String context, @NotNull String endWord, int frequency) {
+			int stride = order + 1, position = linkCount * stride;
+			links = grow(links, position + stride);
+
+			//Look up each context word straight from the context, rather than splitting it into new Strings
+			int words = 0, start = 0;
+			for (int i = 0; i <= context.length(); i++) {
+				if (i < context.length() && context.charAt(i) != ' ') continue;
+				if (words == order) return;
+				links[position + words++] = dictionary.add(context, start, i);
+				start = i + 1;
+			}
+			if (words != order) return;
+
+			links[position + order] = dictionary.add(endWord);
+			frequencies = grow(frequencies, linkCount + 1);
+			frequencies[linkCount++] = frequency;
+		}
+
+		/**
+		 * @return the table of every link read so far
+		 */
+		NGramTable build() {
+			int stride = order + 1;
+
+			//Sort the links by context, one word at a time from the last, so each level of the trie comes out in order.
+			//Each pass is stable since ties keep their position from the pass before
+			int[] sorted = new int[linkCount];
+			for (int i = 0; i < linkCount; i++) sorted[i] = i;
+			long[] keys = new long[linkCount];
+			for (int level = order - 1; level >= 0; level--) {
+				for (int i = 0; i < linkCount; i++) keys[i] = ((long) links[sorted[i] * stride + level] << 32) | i;
+				Arrays.sort(keys);
+				int[] previousOrder = sorted;
+				sorted = new int[linkCount];
+				for (int i = 0; i < linkCount; i++) sorted[i] = previousOrder[(int) keys[i]];
+			}
+
+			int[][] levelWords = new int[order][], childOffsets = new int[order][];
+			int[] levelSizes = new int[order];
+			for (int level = 0; level < order; level++) {
+				levelWords[level] = new int[16];
+				childOffsets[level] = new int[17];
+			}
+			int[] linkTargets = new int[linkCount], linkWeights = new int[linkCount];
+
+			int total = 0;
+			for (int i = 0; i < linkCount; i++) {
+				int link = sorted[i] * stride;
+
+				//Find the first level where this link's context differs from the one before it
+				int firstNew = 0;
+				if (i > 0) {
+					int previous = sorted[i - 1] * stride;
+					while (firstNew < order && links[link + firstNew] == links[previous + firstNew]) firstNew++;
+				}
+
+				//Add a new node at that level and every level below it, unless it's the same context
+				for (int level = firstNew; level < order; level++) {
+					int node = levelSizes[level]++;
+					levelWords[level] = grow(levelWords[level], node + 1);
+					childOffsets[level] = grow(childOffsets[level], node + 2);
+					levelWords[level][node] = links[link + level];
+					childOffsets[level][node] = (level < order - 1)? levelSizes[level + 1] : i;
+				}
+
+				//Keep a running total of the frequencies within each context
+				if (firstNew < order) total = 0;
+				total += frequencies[sorted[i]];
+				linkTargets[i] = links[link + order];
+				linkWeights[i] = total;
+			}
+
+			//Close off the last node of each level, then trim all the arrays down to size
+			for (int level = 0; level < order; level++) {
+				childOffsets[level][levelSizes[level]] = (level < order - 1)? levelSizes[level + 1] : linkCount;
+				levelWords[level] = Arrays.copyOf(levelWords[level], levelSizes[level]);
+				childOffsets[level] = Arrays.copyOf(childOffsets[level], levelSizes[level] + 1);
+			}
+			return new NGramTable(order, levelWords, childOffsets, linkTargets, linkWeights);
+		}
+	}
+
+	/**
+	 * Makes sure an array can hold at least a given number of values
+	 * @return the array given, or a copy twice as large if it wasn't big enough
+	 */
+	private static int[] grow(int[] array, int size) {
+		return (size <= array.length)? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+	}
+
+	/**
+	 * @return number of context words used to pick the next word
+	 */
+	int getOrder() { return order; }
+
+	/**
+	 * Picks the next word following a context, weighted by the frequency of each link
+	 * @param context word IDs of the lower case forms of the previous words, oldest first
+	 * @param end position in <code>context</code> after the most recent word. The last
+	 *            {@link #getOrder()} words before this are used as the context
+	 * @param random source of randomness for picking the link
+	 * @return ID of the linked word, or <code>-1</code> if the context has never been seen
+	 */
+	int getRandomLink(@NotNull int[] context, int end, @NotNull Random random) {
+		if (end < order) return -1;
+
+		//Walk down the trie, one context word per level
+		int start = 0, stop = levelWords[0].length;
+		for (int level = 0; level < order; level++) {
+			int node = Arrays.binarySearch(levelWords[level], start, stop, context[end - order + level]);
+			if (node < 0) return -1;
+			start = childOffsets[level][node];
+			stop = childOffsets[level][node + 1];
+		}
+
+		//Find the first link whose running total is past the chosen point
+		int target = random.nextInt(linkWeights[stop - 1]);
+		int low = start, high = stop - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (linkWeights[middle] > target) high = middle; else low = middle + 1;
+		}
+		return linkTargets[low];
+	}
+
+	/**
+	 * @return approximate size of the table in bytes
+	 */
+	long getSizeInBytes() {
+		long size = 4L * (linkTargets.length + linkWeights.length);
+		for (int level = 0; level < order; level++) size += 4L * (levelWords[level].length + childOffsets[level].length);
+		return size;
+	}
+}
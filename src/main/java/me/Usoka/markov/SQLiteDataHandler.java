@@ -6,24 +6,313 @@ import java.sql.*;
 import java.util.*;
 
 public class SQLiteDataHandler implements DataHandler {
-	private Connection sqlDatabase;
+	/**
+	 * Feature recorded once every message's end is in the markov data (see {@link #markMessageEnds(Connection)})
+	 */
+	private static final String MESSAGE_ENDS = "message_ends";
+
+	private final SQLiteDatabase database;
 
 	/**
 	 * @param databaseDirectory directory of the SQLite database
 	 * @throws SQLException if a database access error occurs when establishing the connection
 	 */
 	public SQLiteDataHandler(@NotNull String databaseDirectory) throws SQLException{
-		if (databaseDirectory.equals("")) throw new IllegalArgumentException("Database directory cannot be empty String");
-		sqlDatabase = DriverManager.getConnection("jdbc:sqlite:"+ databaseDirectory);
-		if (sqlDatabase == null) throw new IllegalArgumentException("Could not open connection: connection was null");
+		database = new SQLiteDatabase(databaseDirectory);
+		try {
+			database.write(session -> {
+				ensureSchema(session.getConnection());
+				return null;
+			});
+		} catch (SQLException e) {
+			database.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes sure the database has every table and index the markov data needs, so a new empty database can be
+	 * used and one made before higher order links and incremental updates gets what they need. Without the
+	 * indexes, finding an existing link means scanning the whole table. <br/>
+	 * The all-users tables (<code>all_lexicon</code>, <code>all_links</code> and <code>all_ngrams</code>) hold every
+	 * user's counts already added together, so reading the data for all users doesn't have to sum across users each
+	 * time. If they're missing they're created and filled from the existing counts. <br/>
+	 * A new database is recorded as having the ends of messages (see {@link #markMessageEnds(Connection)}),
+	 * since every message it will ever have is learned with its end
+	 * @param sqlDatabase connection to the markov database
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void ensureSchema(@NotNull Connection sqlDatabase) throws SQLException {
+		boolean newDatabase;
+		try (ResultSet rs = sqlDatabase.getMetaData().getTables(null, null, "links", null)) {
+			newDatabase = !rs.next();
+		}
+
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS users (userID INTEGER PRIMARY KEY, username text NOT NULL)");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS links (linkID INTEGER PRIMARY KEY, startWord text NOT NULL, endWord text)");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_links (userID INTEGER, linkID INTEGER, frequency INTEGER, " +
+					"PRIMARY KEY (userID, linkID), FOREIGN KEY (userID) REFERENCES users (userID), " +
+					"FOREIGN KEY (linkID) REFERENCES links (linkID))");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_lexicons (userID INTEGER, word NOT NULL, frequency INTEGER, " +
+					"PRIMARY KEY (userID, word), FOREIGN KEY (userID) REFERENCES users (userID))");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS ngrams (ngramID INTEGER PRIMARY KEY, " +
+					"chainOrder INTEGER NOT NULL, context text NOT NULL, endWord text)");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_ngrams (userID INTEGER, ngramID INTEGER, " +
+					"frequency INTEGER, PRIMARY KEY (userID, ngramID), FOREIGN KEY (userID) REFERENCES users (userID), " +
+					"FOREIGN KEY (ngramID) REFERENCES ngrams (ngramID))");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_versions (userID INTEGER PRIMARY KEY, dataVersion INTEGER NOT NULL)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS links_words ON links (startWord, endWord)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS ngrams_words ON ngrams (chainOrder, context, endWord)");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS features (feature text PRIMARY KEY NOT NULL)");
+		}
+		if (newDatabase) markMessageEnds(sqlDatabase);
+
+		try (ResultSet rs = sqlDatabase.getMetaData().getTables(null, null, "all_lexicon", null)) {
+			if (rs.next()) return;
+		}
+
+		//Create and fill the all-users tables together, so they're never left half filled
+		boolean autoCommit = sqlDatabase.getAutoCommit();
+		sqlDatabase.setAutoCommit(false);
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("CREATE TABLE all_lexicon (word text PRIMARY KEY NOT NULL, frequency INTEGER)");
+			statement.executeUpdate("CREATE TABLE all_links (linkID INTEGER PRIMARY KEY, frequency INTEGER, " +
+					"FOREIGN KEY (linkID) REFERENCES links (linkID))");
+			statement.executeUpdate("CREATE TABLE all_ngrams (ngramID INTEGER PRIMARY KEY, frequency INTEGER, " +
+					"FOREIGN KEY (ngramID) REFERENCES ngrams (ngramID))");
+			rebuildAllUsers(sqlDatabase);
+			sqlDatabase.commit();
+		} catch (SQLException e) {
+			sqlDatabase.rollback();
+			throw e;
+		} finally {
+			sqlDatabase.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Fills the all-users tables from scratch, by adding up every user's counts. Only needed after every user's counts
+	 * have been written in bulk (such as by a full rebuild), since {@link #applyChanges(Map)} keeps them up to date as it goes
+	 * @param sqlDatabase connection to the markov database
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void rebuildAllUsers(@NotNull Connection sqlDatabase) throws SQLException {
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("DELETE FROM all_lexicon");
+			statement.executeUpdate("DELETE FROM all_links");
+			statement.executeUpdate("DELETE FROM all_ngrams");
+			statement.executeUpdate("INSERT INTO all_lexicon (word, frequency) " +
+					"SELECT word, sum(frequency) FROM user_lexicons GROUP BY word HAVING sum(frequency) > 0");
+			statement.executeUpdate("INSERT INTO all_links (linkID, frequency) " +
+					"SELECT linkID, sum(frequency) FROM user_links GROUP BY linkID HAVING sum(frequency) > 0");
+			statement.executeUpdate("INSERT INTO all_ngrams (ngramID, frequency) " +
+					"SELECT ngramID, sum(frequency) FROM user_ngrams GROUP BY ngramID HAVING sum(frequency) > 0");
+		}
+	}
+
+	/**
+	 * Adds one user's counts to the all-users tables, or takes them away. Used when only some users' counts are
+	 * written in bulk, by taking away their old counts before they're replaced and adding the new ones after, so
+	 * the all-users tables don't have to be added up again from every user. Rows which drop to nothing are left
+	 * until {@link #cleanAllUsers(Connection)}
+	 * @param sqlDatabase connection to the markov database
+	 * @param userID ID of the user whose counts to add or take away
+	 * @param sign <code>1</code> to add the user's counts, <code>-1</code> to take them away
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void changeAllUsers(@NotNull Connection sqlDatabase, long userID, int sign) throws SQLException {
+		String[][] tables = {
+				{"all_lexicon", "user_lexicons", "word"},
+				{"all_links", "user_links", "linkID"},
+				{"all_ngrams", "user_ngrams", "ngramID"}
+		};
+		for (String[] table : tables) {
+			String allTable = table[0], userTable = table[1], key = table[2];
+			try (PreparedStatement insertPrep = sqlDatabase.prepareStatement("INSERT OR IGNORE INTO "+ allTable +" ("+ key +
+					", frequency) SELECT "+ key +", 0 FROM "+ userTable +" WHERE userID = ?");
+				 PreparedStatement updatePrep = sqlDatabase.prepareStatement("UPDATE "+ allTable +" SET frequency = frequency + ? * " +
+					"(SELECT frequency FROM "+ userTable +" WHERE userID = ? AND "+ userTable +"."+ key +" = "+ allTable +"."+ key +") " +
+					"WHERE "+ key +" IN (SELECT "+ key +" FROM "+ userTable +" WHERE userID = ?)")) {
+				insertPrep.setLong(1, userID);
+				insertPrep.executeUpdate();
+
+				updatePrep.setInt(1, sign);
+				updatePrep.setLong(2, userID);
+				updatePrep.setLong(3, userID);
+				updatePrep.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * Removes the rows of the all-users tables which have dropped to nothing
+	 * @param sqlDatabase connection to the markov database
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void cleanAllUsers(@NotNull Connection sqlDatabase) throws SQLException {
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("DELETE FROM all_lexicon WHERE frequency <= 0");
+			statement.executeUpdate("DELETE FROM all_links WHERE frequency <= 0");
+			statement.executeUpdate("DELETE FROM all_ngrams WHERE frequency <= 0");
+		}
+	}
+
+	/**
+	 * Records that the end of every message is in the markov data, as it is once the data has been built from scratch.
+	 * Data built before the ends of messages were recorded only has the ends of messages learned since, so the chance
+	 * of a sentence ending after a word can't be worked out from it until it's rebuilt
+	 * @param sqlDatabase connection to the markov database
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void markMessageEnds(@NotNull Connection sqlDatabase) throws SQLException {
+		try (PreparedStatement prepState = sqlDatabase.prepareStatement("INSERT OR IGNORE INTO features (feature) VALUES (?)")) {
+			prepState.setString(1, MESSAGE_ENDS);
+			prepState.executeUpdate();
+		}
+	}
+
+	/**
+	 * @param sqlDatabase connection to the markov database
+	 * @return if the end of every message is in the markov data (see {@link #markMessageEnds(Connection)})
+	 * @throws SQLException if a database access error occurs
+	 */
+	static boolean hasMessageEnds(@NotNull Connection sqlDatabase) throws SQLException {
+		try (PreparedStatement prepState = sqlDatabase.prepareStatement("SELECT 1 FROM features WHERE feature = ?")) {
+			prepState.setString(1, MESSAGE_ENDS);
+			try (ResultSet rs = prepState.executeQuery()) {
+				return rs.next();
+			}
+		}
+	}
+
+	/**
+	 * Reads the version of the markov data, which is kept in the database header as its <code>user_version</code>
+	 * @param sqlDatabase connection to the markov database
+	 * @return current version of the markov data
+	 * @throws SQLException if a database access error occurs
+	 */
+	static int getDataVersion(@NotNull Connection sqlDatabase) throws SQLException {
+		try (Statement statement = sqlDatabase.createStatement();
+			 ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+			return rs.next()? rs.getInt(1) : 0;
+		}
+	}
+
+	/**
+	 * Moves the version of the markov data on by one, and records it as the version the given users' data last
+	 * changed in. Should be done in the same transaction as the change it's for, so the version can't change
+	 * without the data changing and vice versa
+	 * @param sqlDatabase connection to the markov database
+	 * @param userIDs IDs of the users whose data changed. <code>null</code> if every user's data did
+	 * @return the new version
+	 * @throws SQLException if a database access error occurs
+	 */
+	static int bumpDataVersion(@NotNull Connection sqlDatabase, Collection<Long> userIDs) throws SQLException {
+		int version = getDataVersion(sqlDatabase) + 1;
+		setDataVersion(sqlDatabase, version);
+		try (Statement statement = sqlDatabase.createStatement()) {
+			if (userIDs == null) {
+				statement.executeUpdate("UPDATE user_versions SET dataVersion = "+ version);
+				statement.executeUpdate("INSERT OR REPLACE INTO user_versions (userID, dataVersion) SELECT userID, "+ version +" FROM users");
+				return version;
+			}
+		}
+
+		try (PreparedStatement prepState = sqlDatabase.prepareStatement("INSERT OR REPLACE INTO user_versions (userID, dataVersion) VALUES (?,?)")) {
+			for (long userID : userIDs) {
+				prepState.setLong(1, userID);
+				prepState.setInt(2, version);
+				prepState.addBatch();
+			}
+			prepState.executeBatch();
+		}
+		return version;
+	}
+
+	/**
+	 * Sets the version of the markov data, without recording it against any users
+	 * @param sqlDatabase connection to the markov database
+	 * @param version the new version
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void setDataVersion(@NotNull Connection sqlDatabase, int version) throws SQLException {
+		try (Statement statement = sqlDatabase.createStatement()) {
+			//Pragmas can't take parameters
+			statement.executeUpdate("PRAGMA user_version = "+ version);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			database.close();
+		} catch (SQLException e) {
+			System.err.println("SQLException in close: "+ e);
+		}
+	}
+
+	@Override
+	public List<User> getUsers() {
+		List<User> users = new ArrayList<>();
+
+		try {
+			database.read(session -> {
+				try (ResultSet rs = session.prepare("SELECT userID, username FROM users").executeQuery()) {
+					while (rs.next()) users.add(new User(rs.getLong(1), rs.getString(2)));
+				}
+				return null;
+			});
+		} catch (SQLException e) {
+			System.err.println("SQLException in getUsers: "+ e);
+		}
+		return users;
+	}
+
+	@Override
+	public int getDataVersion() {
+		try {
+			return database.read(session -> getDataVersion(session.getConnection()));
+		} catch (SQLException e) {
+			System.err.println("SQLException in getDataVersion: "+ e);
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean hasMessageEnds() {
+		try {
+			return database.read(session -> hasMessageEnds(session.getConnection()));
+		} catch (SQLException e) {
+			System.err.println("SQLException in hasMessageEnds: "+ e);
+		}
+		return false;
+	}
+
+	@Override
+	public int getDataVersionFor(@NotNull User user) {
+		String blankQuery = "SELECT dataVersion FROM user_versions WHERE userID = ?";
+
+		try {
+			return database.read(session -> {
+				PreparedStatement prepState = session.prepare(blankQuery);
+				prepState.setLong(1, user.getIdLong());
+				try (ResultSet rs = prepState.executeQuery()) {
+					return rs.next()? rs.getInt(1) : 0;
+				}
+			});
+		} catch (SQLException e) {
+			System.err.println("SQLException in getDataVersionFor: "+ e);
+		}
+		return -1;
 	}
 
 	@Override
 	public int getLexiconSizeAll() {
-		String query = "SELECT count(DISTINCT word) FROM user_lexicons";
+		String query = "SELECT count(word) FROM all_lexicon";
 
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(query)) {
-			return prepState.executeQuery().getInt(1);
+		try {
+			return database.read(session -> getInt(session.prepare(query)));
 		} catch (SQLException e) {
 			System.err.println("SQLException in getLexiconSizeAll: "+ e);
 		}
@@ -34,9 +323,12 @@ public class SQLiteDataHandler implements DataHandler {
 	public int getLexiconSizeFor(@NotNull User user) {
 		String blankQuery = "SELECT count(word) FROM user_lexicons WHERE userID = ?";
 
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setLong(1, user.getIdLong());
-			return prepState.executeQuery().getInt(1);
+		try {
+			return database.read(session -> {
+				PreparedStatement prepState = session.prepare(blankQuery);
+				prepState.setLong(1, user.getIdLong());
+				return getInt(prepState);
+			});
 		} catch (SQLException e) {
 			System.err.println("SQLException in getLexiconSizeFor: "+ e);
 		}
@@ -45,165 +337,381 @@ public class SQLiteDataHandler implements DataHandler {
 
 	@Override
 	public int getWordFrequencyAll(@NotNull String word) {
-		String blankQuery = "SELECT sum(frequency) FROM user_lexicons WHERE word LIKE ?";
-
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setString(1, word);
-			return prepState.executeQuery().getInt(1);
+		String blankQuery = "SELECT sum(frequency) FROM all_lexicon WHERE word LIKE ?";
+
+		try {
+			return database.read(session -> {
+				PreparedStatement prepState = session.prepare(blankQuery);
+				prepState.setString(1, word);
+				return getInt(prepState);
+			});
 		} catch (SQLException e) {
 			System.err.println("SQLException in getWordFrequencyAll: "+ e);
 		}
 		return 0;
 	}
 
-	@Override
-	public int getWordFrequencyFor(@NotNull String word, @NotNull User user) {
-		String blankQuery = "SELECT frequency FROM user_lexicons WHERE userID = ? AND word LIKE ?";
-
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setLong(1, user.getIdLong());
-			prepState.setString(2, word);
-			return prepState.executeQuery().getInt(1);
-		} catch (SQLException e) {
-			System.err.println("SQLException in getWordFrequencyFor: "+ e);
+	/**
+	 * Runs a query for a single number, closing its result set afterwards
+	 * @param prepState query to run, with its parameters already set
+	 * @return the first column of the first row, <code>0</code> if there are no rows or it's null
+	 * @throws SQLException if an exception is thrown running the query
+	 */
+	private static int getInt(@NotNull PreparedStatement prepState) throws SQLException {
+		try (ResultSet rs = prepState.executeQuery()) {
+			return rs.next()? rs.getInt(1) : 0;
 		}
-		return 0;
 	}
 
 	@Override
-	public Set<String> getLexiconAll() {
-		String query = "SELECT DISTINCT word FROM user_lexicons";
-
-		Set<String> lexicon = new HashSet<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(query)) {
-			ResultSet rs = prepState.executeQuery();
-			while (rs.next()) {
-				String item = rs.getString(1);
-				//Make sure to not add empty strings
-				if (!item.matches("^(\\s+)?$")) lexicon.add(item);
-			}
-			rs.close();
+	public int readModelData(User user, @NotNull Map<String, Integer> wordFrequencies,
+							 @NotNull Map<String, Map<String, Integer>> links) {
+		String wordsQuery = (user == null)? "SELECT word, frequency FROM all_lexicon" :
+				"SELECT word, frequency FROM user_lexicons WHERE userID = ?";
+		String linksQuery = (user == null)?
+				"SELECT links.startWord, links.endWord, all_links.frequency FROM all_links " +
+				"LEFT JOIN links ON all_links.linkID = links.linkID" :
+				"SELECT links.startWord, links.endWord, sum(user_links.frequency) FROM user_links " +
+				"LEFT JOIN links ON user_links.linkID = links.linkID " +
+				"WHERE user_links.userID = ? GROUP BY links.startWord, links.endWord";
+
+		try {
+			return database.read(session -> {
+				Connection connection = session.getConnection();
+				//One transaction, so the version and both maps all come from the same snapshot of the database
+				connection.setAutoCommit(false);
+				try {
+					PreparedStatement wordsPrep = session.prepare(wordsQuery);
+					if (user != null) wordsPrep.setLong(1, user.getIdLong());
+					wordFrequencies.putAll(getMapFromResultSet(wordsPrep.executeQuery()));
+					//Read after the first query, which is what starts the read transaction
+					int version = getDataVersion(connection);
+
+					PreparedStatement linksPrep = session.prepare(linksQuery);
+					if (user != null) linksPrep.setLong(1, user.getIdLong());
+					links.putAll(getLinkMapFromResultSet(linksPrep.executeQuery()));
+					return version;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			});
 		} catch (SQLException e) {
-			System.err.println("SQLException in getLexiconAll: "+ e);
+			System.err.println("SQLException in readModelData: "+ e);
 		}
-
-		return lexicon;
+		return -1;
 	}
 
-	@Override
-	public Set<String> getLexiconFor(@NotNull User user) {
-		String query = "SELECT word FROM user_lexicons WHERE userID = ?";
-
-		Set<String> lexicon = new HashSet<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(query)) {
-			prepState.setLong(1, user.getIdLong());
-			ResultSet rs = prepState.executeQuery();
-			while (rs.next()) {
-				String item = rs.getString(1);
+	/**
+	 * Gets a <code>String</code> to <code>Integer</code> {@link Map} from a given <code>ResultSet</code>, and closes it.
+	 * Empty strings are left out of the map
+	 * @param rs The result set which the map should be built from. <br/>
+	 *           <code>ResultSet</code> should be in the format:<ul>
+	 *           <li>Column 1: <code>String</code> key</li>
+	 *           <li>Column 2: <code>int</code> value</li></ul>
+	 *           Any other columns will be ignored.
+	 * @return <code>Map</code> built from the result set
+	 * @throws SQLException if an exception is thrown by a method called on the result set
+	 */
+	private Map<String, Integer> getMapFromResultSet(@NotNull ResultSet rs) throws SQLException {
+		Map<String, Integer> returnMap = new HashMap<>();
+
+		try (ResultSet results = rs) {
+			while (results.next()) {
+				String item = results.getString(1);
 				//Make sure to not add empty strings
-				if (!item.matches("^(\\s+)?$")) lexicon.add(item);
+				if (item != null && !isBlank(item)) returnMap.put(item, results.getInt(2));
 			}
-			rs.close();
-		} catch (SQLException e) {
-			System.err.println("SQLException in getLexiconFor: "+ e);
 		}
+		return returnMap;
+	}
 
-		return lexicon;
+	/**
+	 * Checks if a string is empty or only whitespace, without the cost of a regex match
+	 */
+	private static boolean isBlank(@NotNull String item) {
+		for (int i = 0; i < item.length(); i++) {
+			char c = item.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') return false;
+		}
+		return true;
 	}
 
 	@Override
-	public List<String> getAllWordsAll() {
-		String query = "SELECT word, frequency FROM user_lexicons";
-
-		List<String> allWords = new ArrayList<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(query)) {
-			allWords = getListFromResultSet(prepState.executeQuery());
+	public boolean readNGramsAll(int order, int maxLinks, @NotNull NGramReader reader) {
+		String blankQuery = "SELECT ngrams.context, ngrams.endWord, all_ngrams.frequency FROM all_ngrams " +
+				"JOIN ngrams ON all_ngrams.ngramID = ngrams.ngramID WHERE ngrams.chainOrder = ? " +
+				"ORDER BY all_ngrams.frequency DESC LIMIT ?";
+
+		try {
+			return database.read(session -> {
+				PreparedStatement prepState = session.prepare(blankQuery);
+				prepState.setInt(1, order);
+				prepState.setInt(2, maxLinks);
+				return readNGramsFromResultSet(prepState.executeQuery(), reader);
+			});
 		} catch (SQLException e) {
-			System.err.println("SQLException in getAllWordsAll: "+ e);
+			System.err.println("SQLException in readNGramsAll: "+ e);
 		}
-
-		return allWords;
+		return false;
 	}
 
 	@Override
-	public List<String> getAllWordsFor(User user) {
-		String blankQuery = "SELECT word, frequency FROM user_lexicons WHERE userID = ?";
-
-		List<String> allWords = new ArrayList<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setLong(1, user.getIdLong());
-			allWords = getListFromResultSet(prepState.executeQuery());
+	public boolean readNGramsFor(@NotNull User user, int order, int maxLinks, @NotNull NGramReader reader) {
+		String blankQuery = "SELECT ngrams.context, ngrams.endWord, sum(user_ngrams.frequency) AS total FROM user_ngrams " +
+				"JOIN ngrams ON user_ngrams.ngramID = ngrams.ngramID " +
+				"WHERE user_ngrams.userID = ? AND ngrams.chainOrder = ? GROUP BY ngrams.context, ngrams.endWord " +
+				"ORDER BY total DESC LIMIT ?";
+
+		try {
+			return database.read(session -> {
+				PreparedStatement prepState = session.prepare(blankQuery);
+				prepState.setLong(1, user.getIdLong());
+				prepState.setInt(2, order);
+				prepState.setInt(3, maxLinks);
+				return readNGramsFromResultSet(prepState.executeQuery(), reader);
+			});
 		} catch (SQLException e) {
-			System.err.println("SQLException in getAllWordsFor: "+ e);
+			System.err.println("SQLException in readNGramsFor: "+ e);
 		}
+		return false;
+	}
 
-		return allWords;
+	/**
+	 * Hands each higher order link in a <code>ResultSet</code> to a reader, and closes it
+	 * @param rs result set in the format: context, end word, frequency
+	 * @param reader what each link is handed to
+	 * @return <code>true</code>, once every link has been read
+	 * @throws SQLException if an exception is thrown by a method called on the result set
+	 */
+	private boolean readNGramsFromResultSet(@NotNull ResultSet rs, @NotNull NGramReader reader) throws SQLException {
+		try (ResultSet results = rs) {
+			while (results.next()) {
+				String context = results.getString(1), endWord = results.getString(2);
+				if (context == null || endWord == null || results.getInt(3) <= 0) continue;
+				reader.read(context, endWord, results.getInt(3));
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Gets a <code>String</code> {@link List} from a given <code>ResultSet</code>. Adds each given string to
-	 * the list as many times as is specified.
-	 * @param rs The result set which the list should be built from. <br/>
+	 * Gets a nested {@link Map} of start words to their linked words and frequencies from a given <code>ResultSet</code>,
+	 * and closes it
+	 * @param rs The result set which the map should be built from. <br/>
 	 *           <code>ResultSet</code> should be in the format:<ul>
-	 *           <li>Column 1: <code>String</code> to be added to list</li>
-	 *           <li>Column 2: <code>int</code> representing how many times it should be added</li></ul>
+	 *           <li>Column 1: <code>String</code> start word</li>
+	 *           <li>Column 2: <code>String</code> end word, <code>null</code> for the end of a message</li>
+	 *           <li>Column 3: <code>int</code> frequency of the link</li></ul>
 	 *           Any other columns will be ignored.
-	 * @return <code>List</code> built from the result set
+	 * @return <code>Map</code> built from the result set
 	 * @throws SQLException if an exception is thrown by a method called on the result set
 	 */
-	private List<String> getListFromResultSet(@NotNull ResultSet rs) throws SQLException {
-		List<String> returnList = new ArrayList<>();
-
-		while (rs.next()) for (int i = 0; i < rs.getInt(2); i++) {
-			String item = rs.getString(1);
-			//Make sure to not add empty strings
-			if (!item.matches("^(\\s+)?$")) returnList.add(item);
+	private Map<String, Map<String, Integer>> getLinkMapFromResultSet(@NotNull ResultSet rs) throws SQLException {
+		Map<String, Map<String, Integer>> returnMap = new HashMap<>();
+
+		try (ResultSet results = rs) {
+			while (results.next()) {
+				String startWord = results.getString(1), endWord = results.getString(2);
+				//Skip links whose start word has gone missing
+				if (startWord == null) continue;
+				returnMap.computeIfAbsent(startWord, k -> new HashMap<>()).put(endWord, results.getInt(3));
+			}
 		}
-		rs.close();
-		return returnList;
+		return returnMap;
 	}
 
 	@Override
-	public Map<String, Integer> getLinksAll(@NotNull String word) {
-		String blankQuery = "SELECT links.endWord, sum(user_links.frequency) FROM user_links " +
-				"LEFT JOIN links ON user_links.linkID = links.linkID " +
-				"WHERE links.startWord = ? GROUP BY links.endWord";
-
-		Map<String, Integer> markovLinks = new HashMap<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setString(1, word.toLowerCase());
-
-			ResultSet rs = prepState.executeQuery();
-			while (rs.next()) {
-				markovLinks.put(rs.getString(1), rs.getInt(2));
-			}
+	public int applyChanges(@NotNull Map<User, ModelDelta> changes) {
+		String usersBlank = "INSERT OR IGNORE INTO users (userID, username) VALUES (?,?)";
+		//IS rather than = so the end of message links (with a null end word) can be found too
+		String findLinkBlank = "SELECT linkID FROM links WHERE startWord = ? AND endWord IS ?";
+		String linksBlank = "INSERT INTO links (startWord, endWord) VALUES (?,?)";
+		String findNGramBlank = "SELECT ngramID FROM ngrams WHERE chainOrder = ? AND context = ? AND endWord = ?";
+		String ngramsBlank = "INSERT INTO ngrams (chainOrder, context, endWord) VALUES (?,?,?)";
+
+		//SQLite here has no upsert, so make sure each row exists with a frequency of 0 and then add to it
+		String lexiconInsertBlank = "INSERT OR IGNORE INTO user_lexicons (userID, word, frequency) VALUES (?,?,0)";
+		String lexiconUpdateBlank = "UPDATE user_lexicons SET frequency = frequency + ? WHERE userID = ? AND word = ?";
+		String user_linksInsertBlank = "INSERT OR IGNORE INTO user_links (userID, linkID, frequency) VALUES (?,?,0)";
+		String user_linksUpdateBlank = "UPDATE user_links SET frequency = frequency + ? WHERE userID = ? AND linkID = ?";
+		String user_ngramsInsertBlank = "INSERT OR IGNORE INTO user_ngrams (userID, ngramID, frequency) VALUES (?,?,0)";
+		String user_ngramsUpdateBlank = "UPDATE user_ngrams SET frequency = frequency + ? WHERE userID = ? AND ngramID = ?";
+		String all_lexiconInsertBlank = "INSERT OR IGNORE INTO all_lexicon (word, frequency) VALUES (?,0)";
+		String all_lexiconUpdateBlank = "UPDATE all_lexicon SET frequency = frequency + ? WHERE word = ?";
+		String all_linksInsertBlank = "INSERT OR IGNORE INTO all_links (linkID, frequency) VALUES (?,0)";
+		String all_linksUpdateBlank = "UPDATE all_links SET frequency = frequency + ? WHERE linkID = ?";
+		String all_ngramsInsertBlank = "INSERT OR IGNORE INTO all_ngrams (ngramID, frequency) VALUES (?,0)";
+		String all_ngramsUpdateBlank = "UPDATE all_ngrams SET frequency = frequency + ? WHERE ngramID = ?";
+
+		//Counts taken down to nothing by deleted messages are removed, the same as a rebuild would leave them
+		String lexiconCleanBlank = "DELETE FROM user_lexicons WHERE userID = ? AND frequency <= 0";
+		String user_linksCleanBlank = "DELETE FROM user_links WHERE userID = ? AND frequency <= 0";
+		String user_ngramsCleanBlank = "DELETE FROM user_ngrams WHERE userID = ? AND frequency <= 0";
+		String all_lexiconCleanBlank = "DELETE FROM all_lexicon WHERE frequency <= 0";
+		String all_linksCleanBlank = "DELETE FROM all_links WHERE frequency <= 0";
+		String all_ngramsCleanBlank = "DELETE FROM all_ngrams WHERE frequency <= 0";
+
+		try {
+			return database.transaction(session -> {
+				PreparedStatement usersPrep = session.prepare(usersBlank);
+				PreparedStatement findLinkPrep = session.prepare(findLinkBlank);
+				PreparedStatement linksPrep = session.prepare(linksBlank);
+				PreparedStatement findNGramPrep = session.prepare(findNGramBlank);
+				PreparedStatement ngramsPrep = session.prepare(ngramsBlank);
+				PreparedStatement lexiconInsertPrep = session.prepare(lexiconInsertBlank);
+				PreparedStatement lexiconUpdatePrep = session.prepare(lexiconUpdateBlank);
+				PreparedStatement user_linksInsertPrep = session.prepare(user_linksInsertBlank);
+				PreparedStatement user_linksUpdatePrep = session.prepare(user_linksUpdateBlank);
+				PreparedStatement user_ngramsInsertPrep = session.prepare(user_ngramsInsertBlank);
+				PreparedStatement user_ngramsUpdatePrep = session.prepare(user_ngramsUpdateBlank);
+				PreparedStatement all_lexiconInsertPrep = session.prepare(all_lexiconInsertBlank);
+				PreparedStatement all_lexiconUpdatePrep = session.prepare(all_lexiconUpdateBlank);
+				PreparedStatement all_linksInsertPrep = session.prepare(all_linksInsertBlank);
+				PreparedStatement all_linksUpdatePrep = session.prepare(all_linksUpdateBlank);
+				PreparedStatement all_ngramsInsertPrep = session.prepare(all_ngramsInsertBlank);
+				PreparedStatement all_ngramsUpdatePrep = session.prepare(all_ngramsUpdateBlank);
+				PreparedStatement lexiconCleanPrep = session.prepare(lexiconCleanBlank);
+				PreparedStatement user_linksCleanPrep = session.prepare(user_linksCleanBlank);
+				PreparedStatement user_ngramsCleanPrep = session.prepare(user_ngramsCleanBlank);
+
+				boolean hasRemovals = false;
+				for (Map.Entry<User, ModelDelta> userChanges : changes.entrySet()) {
+					long userID = userChanges.getKey().getIdLong();
+					ModelDelta delta = userChanges.getValue();
+
+					usersPrep.setLong(1, userID);
+					usersPrep.setString(2, userChanges.getKey().getName());
+					usersPrep.addBatch();
+
+					if (delta.hasRemovals()) {
+						hasRemovals = true;
+						lexiconCleanPrep.setLong(1, userID);
+						lexiconCleanPrep.addBatch();
+						user_linksCleanPrep.setLong(1, userID);
+						user_linksCleanPrep.addBatch();
+						user_ngramsCleanPrep.setLong(1, userID);
+						user_ngramsCleanPrep.addBatch();
+					}
+
+					for (Map.Entry<String, Integer> word : delta.getWordChanges().entrySet()) {
+						addCountChange(lexiconInsertPrep, lexiconUpdatePrep, userID, word.getKey(), word.getValue());
+						addCountChange(all_lexiconInsertPrep, all_lexiconUpdatePrep, word.getKey(), word.getValue());
+					}
+
+					for (Map.Entry<String, Map<String, Integer>> row : delta.getLinkChanges().entrySet()) {
+						for (Map.Entry<String, Integer> link : row.getValue().entrySet()) {
+							int linkID = findOrInsert(findLinkPrep, linksPrep, row.getKey(), link.getKey());
+							addCountChange(user_linksInsertPrep, user_linksUpdatePrep, userID, linkID, link.getValue());
+							addCountChange(all_linksInsertPrep, all_linksUpdatePrep, linkID, link.getValue());
+						}
+					}
+
+					for (int order = 2; order <= Core.MAX_CHAIN_ORDER; order++) {
+						for (Map.Entry<String, Map<String, Integer>> row : delta.getNGramChanges(order).entrySet()) {
+							for (Map.Entry<String, Integer> link : row.getValue().entrySet()) {
+								int ngramID = findOrInsert(findNGramPrep, ngramsPrep, order, row.getKey(), link.getKey());
+								addCountChange(user_ngramsInsertPrep, user_ngramsUpdatePrep, userID, ngramID, link.getValue());
+								addCountChange(all_ngramsInsertPrep, all_ngramsUpdatePrep, ngramID, link.getValue());
+							}
+						}
+					}
+				}
+
+				//Rows need to exist before they can be added to
+				usersPrep.executeBatch();
+				lexiconInsertPrep.executeBatch();
+				lexiconUpdatePrep.executeBatch();
+				user_linksInsertPrep.executeBatch();
+				user_linksUpdatePrep.executeBatch();
+				user_ngramsInsertPrep.executeBatch();
+				user_ngramsUpdatePrep.executeBatch();
+				all_lexiconInsertPrep.executeBatch();
+				all_lexiconUpdatePrep.executeBatch();
+				all_linksInsertPrep.executeBatch();
+				all_linksUpdatePrep.executeBatch();
+				all_ngramsInsertPrep.executeBatch();
+				all_ngramsUpdatePrep.executeBatch();
+				lexiconCleanPrep.executeBatch();
+				user_linksCleanPrep.executeBatch();
+				user_ngramsCleanPrep.executeBatch();
+				if (hasRemovals) {
+					session.prepare(all_lexiconCleanBlank).executeUpdate();
+					session.prepare(all_linksCleanBlank).executeUpdate();
+					session.prepare(all_ngramsCleanBlank).executeUpdate();
+				}
+
+				List<Long> userIDs = new ArrayList<>();
+				for (User user : changes.keySet()) userIDs.add(user.getIdLong());
+				return bumpDataVersion(session.getConnection(), userIDs);
+			});
 		} catch (SQLException e) {
-			System.err.println("SQLException in getLinksAll: "+ e);
+			System.err.println("SQLException in applyChanges: "+ e);
+			return -1;
 		}
+	}
 
-		return markovLinks;
+	/**
+	 * Adds the statements for changing a user's frequency count to their batches
+	 * @param insertPrep statement making sure the row exists, taking the user ID and key
+	 * @param updatePrep statement adding to the frequency, taking the change, user ID and key
+	 * @param userID ID of the user the count is for
+	 * @param key word or ID the count is for
+	 * @param change how much to change the count by
+	 * @throws SQLException if an exception is thrown adding to either batch
+	 */
+	private static void addCountChange(PreparedStatement insertPrep, PreparedStatement updatePrep,
+									   long userID, Object key, int change) throws SQLException {
+		insertPrep.setLong(1, userID);
+		insertPrep.setObject(2, key);
+		insertPrep.addBatch();
+
+		updatePrep.setInt(1, change);
+		updatePrep.setLong(2, userID);
+		updatePrep.setObject(3, key);
+		updatePrep.addBatch();
 	}
 
-	@Override
-	public Map<String, Integer> getLinksFor(@NotNull User user, @NotNull String word) {
-		String blankQuery = "SELECT links.endWord, sum(user_links.frequency) FROM users " +
-				"LEFT JOIN user_links ON users.userID = user_links.userID " +
-				"LEFT JOIN links ON user_links.linkID = links.linkID " +
-				"WHERE users.userID = ? AND links.startWord = ? GROUP BY links.endWord";
+	/**
+	 * Adds the statements for changing an all-users frequency count to their batches
+	 * @param insertPrep statement making sure the row exists, taking the key
+	 * @param updatePrep statement adding to the frequency, taking the change and key
+	 * @param key word or ID the count is for
+	 * @param change how much to change the count by
+	 * @throws SQLException if an exception is thrown adding to either batch
+	 */
+	private static void addCountChange(PreparedStatement insertPrep, PreparedStatement updatePrep,
+									   Object key, int change) throws SQLException {
+		insertPrep.setObject(1, key);
+		insertPrep.addBatch();
+
+		updatePrep.setInt(1, change);
+		updatePrep.setObject(2, key);
+		updatePrep.addBatch();
+	}
 
-		Map<String, Integer> markovLinks = new HashMap<>();
-		try (PreparedStatement prepState = sqlDatabase.prepareStatement(blankQuery)) {
-			prepState.setLong(1, user.getIdLong());
-			prepState.setString(2, word.toLowerCase());
+	/**
+	 * Finds the ID of a row, inserting the row if it doesn't exist yet. Both statements must take
+	 * the same parameters, in the same order
+	 * @param findPrep statement selecting the ID of the row
+	 * @param insertPrep statement inserting the row
+	 * @param values values of the row's columns
+	 * @return ID of the row
+	 * @throws SQLException if an exception is thrown by either statement
+	 */
+	static int findOrInsert(PreparedStatement findPrep, PreparedStatement insertPrep, Object... values) throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			findPrep.setObject(i + 1, values[i]);
+			insertPrep.setObject(i + 1, values[i]);
+		}
 
-			ResultSet rs = prepState.executeQuery();
-			while (rs.next()) {
-				markovLinks.put(rs.getString(1), rs.getInt(2));
-			}
-		} catch (SQLException e) {
-			System.err.println("SQLException in getLinksFor: "+ e);
+		try (ResultSet rs = findPrep.executeQuery()) {
+			if (rs.next()) return rs.getInt(1);
 		}
 
-		return markovLinks;
+		insertPrep.executeUpdate();
+		try (ResultSet keys = insertPrep.getGeneratedKeys()) {
+			if (!keys.next()) throw new SQLException("No ID generated for new row");
+			return keys.getInt(1);
+		}
 	}
 }
@@ -0,0 +1,276 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Connections to one SQLite database, shared by everything that reads from or writes to it. <p/>
+ * The database is opened in WAL mode, so reads don't wait for writes to finish and writes don't wait for reads.
+ * Queries run on a pool of read-only connections, so several threads can read at once. Changes all go through
+ * a single writer connection, one at a time, since SQLite only allows one writer anyway. <p/>
+ * Each connection keeps the statements prepared on it (see {@link Session#prepare(String)}), so each query
+ * is only compiled once per connection instead of on every call
+ */
+class SQLiteDatabase implements AutoCloseable {
+	/**
+	 * How much of the database file each connection can memory map ({@value} bytes), so reads
+	 * come straight from the page cache instead of being copied through SQLite's own cache
+	 */
+	private static final long MMAP_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Size of each connection's page cache ({@value} KiB)
+	 */
+	private static final int CACHE_KIB = 16 * 1024;
+
+	/**
+	 * How long to wait for a lock held by another process, such as the model builder ({@value} ms)
+	 */
+	private static final int BUSY_TIMEOUT_MILLIS = 5_000;
+
+	/**
+	 * Work to run on one of the database's connections
+	 * @param <T> type of the result
+	 */
+	interface Work<T> {
+		T run(@NotNull Session session) throws SQLException;
+	}
+
+	/**
+	 * A connection, along with the statements that have been prepared on it. Only used by one thread at a time
+	 */
+	static class Session {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+		private Session(Connection connection) { this.connection = connection; }
+
+		/**
+		 * Gets a statement for a query, only preparing it the first time it's used on this connection. The statement
+		 * is kept for next time, so it mustn't be closed (but any <code>ResultSet</code> from it should be)
+		 * @param sql query for the statement
+		 * @return the prepared statement, with no parameters set and an empty batch
+		 * @throws SQLException if the query couldn't be prepared
+		 */
+		PreparedStatement prepare(@NotNull String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			} else {
+				statement.clearParameters();
+				statement.clearBatch();
+			}
+			return statement;
+		}
+
+		/**
+		 * @return the connection itself, for anything that can't use a cached statement
+		 */
+		Connection getConnection() { return connection; }
+
+		private void close() throws SQLException {
+			for (PreparedStatement statement : statements.values()) statement.close();
+			statements.clear();
+			connection.close();
+		}
+	}
+
+	private final String databaseDirectory;
+	private final Session writer;
+
+	/**
+	 * Most read-only connections that can be open at once
+	 */
+	private final int maxReaders;
+
+	/**
+	 * Read-only connections not currently in use
+	 */
+	private final BlockingQueue<Session> idleReaders;
+
+	/**
+	 * Every read-only connection that has been opened
+	 */
+	private final List<Session> readers = new ArrayList<>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens a database, allowing up to one read-only connection for each processor
+	 * @param databaseDirectory directory of the SQLite database
+	 * @throws SQLException if a database access error occurs when establishing the connection
+	 */
+	SQLiteDatabase(@NotNull String databaseDirectory) throws SQLException {
+		this(databaseDirectory, Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Opens a database. Read-only connections are opened as they're needed, up to the given number
+	 * @param databaseDirectory directory of the SQLite database
+	 * @param maxReaders most read-only connections to open
+	 * @throws SQLException if a database access error occurs when establishing the connection
+	 */
+	SQLiteDatabase(@NotNull String databaseDirectory, int maxReaders) throws SQLException {
+		if (databaseDirectory.equals("")) throw new IllegalArgumentException("Database directory cannot be empty String");
+		if (maxReaders < 1) throw new IllegalArgumentException("Need at least 1 connection to read with");
+
+		this.databaseDirectory = databaseDirectory;
+		this.maxReaders = maxReaders;
+		this.idleReaders = new ArrayBlockingQueue<>(maxReaders);
+		this.writer = new Session(open(false));
+	}
+
+	/**
+	 * Opens a connection to the database and sets it up
+	 * @param readOnly if the connection should only be able to read
+	 */
+	private Connection open(boolean readOnly) throws SQLException {
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:"+ databaseDirectory);
+		if (connection == null) throw new IllegalArgumentException("Could not open connection: connection was null");
+
+		try (Statement statement = connection.createStatement()) {
+			//Pragmas can't take parameters
+			statement.execute("PRAGMA busy_timeout = "+ BUSY_TIMEOUT_MILLIS);
+			//WAL mode is kept in the database file, so only needs setting once
+			if (!readOnly) statement.execute("PRAGMA journal_mode = WAL");
+			//In WAL mode, this can only lose the most recent commits on a power cut, never corrupt the database
+			statement.execute("PRAGMA synchronous = NORMAL");
+			statement.execute("PRAGMA mmap_size = "+ MMAP_BYTES);
+			statement.execute("PRAGMA cache_size = -"+ CACHE_KIB);
+			if (readOnly) statement.execute("PRAGMA query_only = ON");
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Runs a query on one of the read-only connections, waiting for one to be free if they're all in use.
+	 * Only sees changes which have been committed
+	 * @param work query to run
+	 * @return the result of the query
+	 * @throws SQLException if a database access error occurs
+	 */
+	<T> T read(@NotNull Work<T> work) throws SQLException {
+		Session reader = borrowReader();
+		try {
+			return work.run(reader);
+		} finally {
+			idleReaders.offer(reader);
+		}
+	}
+
+	/**
+	 * Takes a read-only connection which isn't in use, opening a new one if there's room for it
+	 */
+	private Session borrowReader() throws SQLException {
+		if (closed) throw new SQLException("Database has been closed");
+		Session reader = idleReaders.poll();
+		if (reader != null) return reader;
+
+		synchronized (readers) {
+			//Checked again here, so no reader is opened once close has counted them
+			if (closed) throw new SQLException("Database has been closed");
+			if (readers.size() < maxReaders) {
+				reader = new Session(open(true));
+				readers.add(reader);
+				return reader;
+			}
+		}
+
+		try {
+			reader = idleReaders.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to read from the database", e);
+		}
+
+		//Whatever was closing the database is waiting for this reader to come back
+		if (closed) {
+			idleReaders.offer(reader);
+			throw new SQLException("Database has been closed");
+		}
+		return reader;
+	}
+
+	/**
+	 * Runs work on the writer connection, with nothing else able to write until it's done. Each statement is
+	 * committed on its own, use {@link #transaction(Work)} to commit several together
+	 * @param work work to run
+	 * @return the result of the work
+	 * @throws SQLException if a database access error occurs
+	 */
+	<T> T write(@NotNull Work<T> work) throws SQLException {
+		synchronized (writer) {
+			if (closed) throw new SQLException("Database has been closed");
+			return work.run(writer);
+		}
+	}
+
+	/**
+	 * Runs work on the writer connection in a single transaction, with nothing else able to write until it's done.
+	 * The transaction is committed if the work finishes, and rolled back if it throws
+	 * @param work work to run
+	 * @return the result of the work
+	 * @throws SQLException if a database access error occurs. Nothing is changed if so
+	 */
+	<T> T transaction(@NotNull Work<T> work) throws SQLException {
+		synchronized (writer) {
+			if (closed) throw new SQLException("Database has been closed");
+
+			Connection connection = writer.getConnection();
+			connection.setAutoCommit(false);
+			try {
+				T result = work.run(writer);
+				connection.commit();
+				return result;
+			} catch (SQLException | RuntimeException e) {
+				try {
+					connection.rollback();
+				} catch (SQLException rollbackException) {
+					e.addSuppressed(rollbackException);
+				}
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Closes every connection, once any read or write in progress has finished. Nothing else can be run afterwards
+	 */
+	@Override
+	public void close() throws SQLException {
+		int openReaders;
+		synchronized (readers) {
+			closed = true;
+			openReaders = readers.size();
+		}
+
+		//Readers still in use are closed as they're given back, so nothing is closed part way through a query
+		try {
+			for (; openReaders > 0; openReaders--) idleReaders.take().close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			synchronized (readers) {
+				for (Session reader : readers) reader.close();
+			}
+		}
+		synchronized (readers) {
+			readers.clear();
+		}
+		idleReaders.clear();
+
+		//The writer goes last, so it's the one to move everything from the WAL into the database file as it closes
+		synchronized (writer) {
+			writer.close();
+		}
+	}
+}
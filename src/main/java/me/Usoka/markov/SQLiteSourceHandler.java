@@ -4,99 +4,293 @@ import com.sun.istack.internal.NotNull;
 
 import java.io.IOException;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
 
 public class SQLiteSourceHandler implements SourceHandler {
-	private Connection sqlDatabase;
+	/**
+	 * Statement adding a word to the index for a message
+	 */
+	private static final String INDEX_INSERT_BLANK = "INSERT OR IGNORE INTO message_words (word, messageID) VALUES (?,?)";
+
+	/**
+	 * Statement taking a message out of the word index
+	 */
+	private static final String INDEX_DELETE_BLANK = "DELETE FROM message_words WHERE messageID = ?";
+
+	private final SQLiteDatabase database;
+
+	/**
+	 * IDs of every user and message in the source, so checking if one is there doesn't need to read from the database.
+	 * Loaded when the source is opened, and kept up to date as each change is committed. Each is locked on itself
+	 */
+	private final LongHashSet knownUserIDs = new LongHashSet(1024), knownMessageIDs = new LongHashSet(1 << 16);
 
 	/**
 	 * @param databaseDirectory directory for the SQLite database
 	 * @throws SQLException if a database access error occurs when establishing the connection
 	 */
 	public SQLiteSourceHandler(@NotNull String databaseDirectory) throws SQLException{
-		if (databaseDirectory.equals("")) throw new IllegalArgumentException("Database directory cannot be empty String");
-		sqlDatabase = DriverManager.getConnection("jdbc:sqlite:"+ databaseDirectory);
-		if (sqlDatabase == null) throw new IllegalArgumentException("Could not open connection: connection was null");
+		database = new SQLiteDatabase(databaseDirectory);
+		try {
+			database.write(session -> {
+				ensureSchema(session.getConnection());
+				return null;
+			});
+			loadKnownIDs();
+		} catch (SQLException e) {
+			database.close();
+			throw e;
+		}
 	}
 
-	@Override
-	public boolean saveMessage(Message message) {
-		if (message == null) return false;
-		String blankMessagesQuery = "INSERT OR IGNORE INTO messages (messageID, content) VALUES (?,?)";
-		String blankLinkQuery = "INSERT OR IGNORE INTO user_messages (userID, messageID) VALUES (?,?)";
+	/**
+	 * Reads the ID of every user and message in the source into the sets of known IDs
+	 * @throws SQLException if a database access error occurs
+	 */
+	private void loadKnownIDs() throws SQLException {
+		database.read(session -> {
+			try (ResultSet rs = session.prepare("SELECT userID FROM users").executeQuery()) {
+				synchronized (knownUserIDs) {
+					while (rs.next()) knownUserIDs.add(rs.getLong(1));
+				}
+			}
+			try (ResultSet rs = session.prepare("SELECT messageID FROM messages").executeQuery()) {
+				synchronized (knownMessageIDs) {
+					while (rs.next()) knownMessageIDs.add(rs.getLong(1));
+				}
+			}
+			return null;
+		});
+	}
 
-		try {
-			PreparedStatement messagesPrepState = sqlDatabase.prepareStatement(blankMessagesQuery);
-			PreparedStatement linkPrepState = sqlDatabase.prepareStatement(blankLinkQuery);
-
-			//Set values in query
-			messagesPrepState.setLong(1, message.getIdLong());
-			messagesPrepState.setString(2, message.getContentCleaned());
-			linkPrepState.setLong(1, message.getAuthor().getIdLong());
-			linkPrepState.setLong(2, message.getIdLong());
-
-			//Execute the queries
-			messagesPrepState.executeUpdate();
-			linkPrepState.executeUpdate();
+	/**
+	 * @return if a user is in the source, going by the known IDs
+	 */
+	private boolean isKnownUser(long userID) {
+		synchronized (knownUserIDs) {
+			return knownUserIDs.contains(userID);
+		}
+	}
+
+	/**
+	 * Records that a user has been committed to the source
+	 */
+	private void addKnownUser(long userID) {
+		synchronized (knownUserIDs) {
+			knownUserIDs.add(userID);
+		}
+	}
+
+	/**
+	 * Records that a message has been committed to the source
+	 */
+	private void addKnownMessage(long messageID) {
+		synchronized (knownMessageIDs) {
+			knownMessageIDs.add(messageID);
+		}
+	}
+
+	/**
+	 * Records that a message has been deleted from the source
+	 */
+	private void removeKnownMessage(long messageID) {
+		synchronized (knownMessageIDs) {
+			knownMessageIDs.remove(messageID);
+		}
+	}
+
+	/**
+	 * Makes sure a database made before the change log or word index were added has their tables. <br/>
+	 * The word index (<code>message_words</code>) lists the messages each word has been said in, so finding the
+	 * messages with a word only reads the messages that have it. If it's missing it's created and filled from the
+	 * existing messages
+	 * @param sqlDatabase connection to the source database
+	 * @throws SQLException if a database access error occurs
+	 */
+	static void ensureSchema(@NotNull Connection sqlDatabase) throws SQLException {
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS change_log (changeID INTEGER PRIMARY KEY, " +
+					"userID INTEGER NOT NULL, messageID INTEGER NOT NULL, change text NOT NULL)");
+		}
+
+		try (ResultSet rs = sqlDatabase.getMetaData().getTables(null, null, "message_words", null)) {
+			if (rs.next()) return;
+		}
+
+		//Create and fill the index together, so it's never left half filled
+		boolean autoCommit = sqlDatabase.getAutoCommit();
+		sqlDatabase.setAutoCommit(false);
+		try (Statement statement = sqlDatabase.createStatement()) {
+			statement.executeUpdate("CREATE TABLE message_words (word text NOT NULL, messageID INTEGER NOT NULL, " +
+					"PRIMARY KEY (word, messageID)) WITHOUT ROWID");
+			statement.executeUpdate("CREATE INDEX message_words_message ON message_words (messageID)");
+
+			try (PreparedStatement insertPrep = sqlDatabase.prepareStatement(INDEX_INSERT_BLANK);
+				 ResultSet rs = statement.executeQuery("SELECT messageID, content FROM messages")) {
+				int batched = 0;
+				while (rs.next()) {
+					indexMessage(insertPrep, rs.getLong(1), rs.getString(2));
+					if (++batched % 1_000 == 0) insertPrep.executeBatch();
+				}
+				insertPrep.executeBatch();
+			}
+			sqlDatabase.commit();
 		} catch (SQLException e) {
-			System.err.println("SQLException in saveMessage: "+ e);
-			return false;
+			sqlDatabase.rollback();
+			throw e;
+		} finally {
+			sqlDatabase.setAutoCommit(autoCommit);
 		}
+	}
 
-		return true;
+	/**
+	 * Adds a message to the word index, under each word in it
+	 * @param insertPrep statement adding a word to the index (see {@link #INDEX_INSERT_BLANK}). Added to its batch
+	 * @param messageID ID of the message
+	 * @param content cleaned content of the message
+	 * @throws SQLException if an exception is thrown adding to the batch
+	 */
+	private static void indexMessage(@NotNull PreparedStatement insertPrep, long messageID, @NotNull String content) throws SQLException {
+		for (String word : getIndexWords(content)) {
+			insertPrep.setString(1, word);
+			insertPrep.setLong(2, messageID);
+			insertPrep.addBatch();
+		}
 	}
 
-	@Override
-	public boolean updateMessage(Message message) {
-		if (message == null) return false;
-		String blankQuery = "REPLACE INTO messages (messageID, content) VALUES (?,?)";
+	/**
+	 * Splits text into the words it's indexed under (see {@link Tokenizer#splitIndexWords(CharSequence)}), in lower case.
+	 * These are the same as the words matched by {@link #getMessagesWithWord(String)}
+	 * @param content text to split
+	 * @return each word in the text, once
+	 */
+	static Set<String> getIndexWords(@NotNull String content) {
+		Tokenizer tokenizer = new Tokenizer();
+		int wordCount = tokenizer.splitIndexWords(content);
 
+		Set<String> words = new HashSet<>();
+		for (int i = 0; i < wordCount; i++) words.add(tokenizer.getLowerCase(i));
+		return words;
+	}
+
+	/**
+	 * Records in the change log that a message has changed, so the markov data for its author can be rebuilt.
+	 * Should be run in the same transaction as the change itself
+	 * @param session writer session the change is being made in
+	 * @param userID ID of the author of the message
+	 * @param messageID ID of the message
+	 * @param change what happened to the message (<code>insert</code>, <code>update</code> or <code>delete</code>)
+	 * @throws SQLException if a database access error occurs
+	 */
+	private static void logChange(@NotNull SQLiteDatabase.Session session, long userID, long messageID, @NotNull String change) throws SQLException {
+		String blankQuery = "INSERT INTO change_log (userID, messageID, change) VALUES (?,?,?)";
+
+		PreparedStatement prepStatement = session.prepare(blankQuery);
+		prepStatement.setLong(1, userID);
+		prepStatement.setLong(2, messageID);
+		prepStatement.setString(3, change);
+		prepStatement.executeUpdate();
+	}
+
+	/**
+	 * Records in the change log that a message has changed, looking up its author from the source.
+	 * Does nothing if the message isn't in the source
+	 * @param session writer session the change is being made in
+	 * @param messageID ID of the message
+	 * @param change what happened to the message (<code>update</code> or <code>delete</code>)
+	 * @throws SQLException if a database access error occurs
+	 */
+	private static void logChange(@NotNull SQLiteDatabase.Session session, long messageID, @NotNull String change) throws SQLException {
+		String blankQuery = "INSERT INTO change_log (userID, messageID, change) " +
+				"SELECT userID, messageID, ? FROM user_messages WHERE messageID = ?";
+
+		PreparedStatement prepStatement = session.prepare(blankQuery);
+		prepStatement.setString(1, change);
+		prepStatement.setLong(2, messageID);
+		prepStatement.executeUpdate();
+	}
+
+	@Override
+	public void close() {
 		try {
-			PreparedStatement prepStatement = sqlDatabase.prepareStatement(blankQuery);
-			prepStatement.setLong(1, message.getIdLong());
-			prepStatement.setString(2, message.getContentCleaned());
-			prepStatement.executeUpdate();
+			database.close();
 		} catch (SQLException e) {
-			System.err.println("SQLException in updateMessage: "+ e);
-			return false;
+			System.err.println("SQLException in close: "+ e);
 		}
-
-		return true;
 	}
 
 	@Override
 	public boolean updateMessages(List<Message> messages) {
 		if (messages == null) return false;
+		String usersBlank = "INSERT OR IGNORE INTO users (userID, username) VALUES (?,?)";
 		String messagesBlank = "REPLACE INTO messages (messageID, content) VALUES (?,?)";
 		String user_messagesBlank = "REPLACE INTO user_messages (userID, messageID) VALUES (?,?)";
+		String change_logBlank = "INSERT INTO change_log (userID, messageID, change) VALUES (?,?,'update')";
 
+		//Only added to the known IDs once they've been committed
+		List<Message> savedMessages = new ArrayList<>();
 		try {
-			sqlDatabase.setAutoCommit(false);
-
-			//Create the prepared statements for each of the messages
-			for (Message message : messages) {
-				if (message == null || message.getContentCleaned().equals("")) continue;
-				PreparedStatement messagesPrep = sqlDatabase.prepareStatement(messagesBlank);
-				messagesPrep.setLong(1, message.getIdLong());
-				messagesPrep.setString(2, message.getContentCleaned());
-
-				messagesPrep.executeUpdate();
-
-				PreparedStatement user_messagesPrep = sqlDatabase.prepareStatement(user_messagesBlank);
-				user_messagesPrep.setLong(1, message.getAuthor().getIdLong());
-				user_messagesPrep.setLong(2, message.getIdLong());
-
-				user_messagesPrep.executeUpdate();
-			}
-
-			sqlDatabase.commit();
-			sqlDatabase.setAutoCommit(true);
+			database.transaction(session -> {
+				savedMessages.clear();
+				PreparedStatement usersPrep = session.prepare(usersBlank);
+				PreparedStatement messagesPrep = session.prepare(messagesBlank);
+				PreparedStatement user_messagesPrep = session.prepare(user_messagesBlank);
+				PreparedStatement change_logPrep = session.prepare(change_logBlank);
+				PreparedStatement unindexPrep = session.prepare(INDEX_DELETE_BLANK);
+				PreparedStatement indexPrep = session.prepare(INDEX_INSERT_BLANK);
+
+				//Each author only needs adding once, however many of the messages are theirs
+				Set<Long> authorIDs = new HashSet<>();
+				for (Message message : messages) {
+					if (message == null) continue;
+					String content = message.getContentCleaned();
+					if (content.equals("")) continue;
+					long userID = message.getAuthor().getIdLong(), messageID = message.getIdLong();
+
+					if (authorIDs.add(userID) && !isKnownUser(userID)) {
+						usersPrep.setLong(1, userID);
+						usersPrep.setString(2, message.getAuthor().getName());
+						usersPrep.addBatch();
+					}
+
+					messagesPrep.setLong(1, messageID);
+					messagesPrep.setString(2, content);
+					messagesPrep.addBatch();
+
+					user_messagesPrep.setLong(1, userID);
+					user_messagesPrep.setLong(2, messageID);
+					user_messagesPrep.addBatch();
+
+					change_logPrep.setLong(1, userID);
+					change_logPrep.setLong(2, messageID);
+					change_logPrep.addBatch();
+
+					//Any message being replaced is indexed again under the words it has now
+					unindexPrep.setLong(1, messageID);
+					unindexPrep.addBatch();
+					indexMessage(indexPrep, messageID, content);
+					savedMessages.add(message);
+				}
+
+				usersPrep.executeBatch();
+				messagesPrep.executeBatch();
+				user_messagesPrep.executeBatch();
+				change_logPrep.executeBatch();
+				unindexPrep.executeBatch();
+				indexPrep.executeBatch();
+				return null;
+			});
 		} catch (SQLException e) {
 			System.err.println("SQLException in updateMessages: "+ e);
 			return false;
 		}
 
+		for (Message message : savedMessages) {
+			addKnownUser(message.getAuthor().getIdLong());
+			addKnownMessage(message.getIdLong());
+		}
 		return true;
 	}
 
@@ -107,37 +301,138 @@ public class SQLiteSourceHandler implements SourceHandler {
 		String user_messagesBlank = "DELETE FROM user_messages WHERE messageID = ?";
 
 		try {
-			sqlDatabase.setAutoCommit(false);
-
-			//Create the prep statements
-			PreparedStatement messagesPrep = sqlDatabase.prepareStatement(messagesBlank);
-			PreparedStatement user_messagesPrep = sqlDatabase.prepareStatement(user_messagesBlank);
+			database.transaction(session -> {
+				PreparedStatement messagesPrep = session.prepare(messagesBlank);
+				PreparedStatement user_messagesPrep = session.prepare(user_messagesBlank);
 
-			messagesPrep.setLong(1, Long.parseUnsignedLong(messageID));
-			user_messagesPrep.setLong(1, Long.parseUnsignedLong(messageID));
+				messagesPrep.setLong(1, Long.parseUnsignedLong(messageID));
+				user_messagesPrep.setLong(1, Long.parseUnsignedLong(messageID));
 
-			messagesPrep.executeUpdate();
-			user_messagesPrep.executeUpdate();
+				//Log the change while the message's author can still be found
+				logChange(session, Long.parseUnsignedLong(messageID), "delete");
+				messagesPrep.executeUpdate();
+				user_messagesPrep.executeUpdate();
 
-			sqlDatabase.commit();
-			sqlDatabase.setAutoCommit(true);
+				PreparedStatement unindexPrep = session.prepare(INDEX_DELETE_BLANK);
+				unindexPrep.setLong(1, Long.parseUnsignedLong(messageID));
+				unindexPrep.executeUpdate();
+				return null;
+			});
 		} catch (SQLException e) {
 			System.err.println("SQLException in deleteMessage: "+ e);
 			return false;
 		}
 
-		return false;
+		removeKnownMessage(Long.parseUnsignedLong(messageID));
+		return true;
 	}
 
 	@Override
-	public boolean containsMessageID(String messageID) throws IOException {
+	public boolean writeMessages(@NotNull List<Message> messages, @NotNull List<String> deletedMessageIDs) {
+		String usersBlank = "INSERT OR IGNORE INTO users (userID, username) VALUES (?,?)";
+		String messagesInsertBlank = "INSERT OR IGNORE INTO messages (messageID, content) VALUES (?,?)";
+		String messagesReplaceBlank = "REPLACE INTO messages (messageID, content) VALUES (?,?)";
+		String user_messagesBlank = "INSERT OR IGNORE INTO user_messages (userID, messageID) VALUES (?,?)";
+		String messagesDeleteBlank = "DELETE FROM messages WHERE messageID = ?";
+		String user_messagesDeleteBlank = "DELETE FROM user_messages WHERE messageID = ?";
+
+		try {
+			database.transaction(session -> {
+				PreparedStatement usersPrep = session.prepare(usersBlank);
+				PreparedStatement messagesInsertPrep = session.prepare(messagesInsertBlank);
+				PreparedStatement messagesReplacePrep = session.prepare(messagesReplaceBlank);
+				PreparedStatement user_messagesPrep = session.prepare(user_messagesBlank);
+				PreparedStatement unindexPrep = session.prepare(INDEX_DELETE_BLANK);
+				PreparedStatement indexPrep = session.prepare(INDEX_INSERT_BLANK);
+
+				for (Message message : messages) {
+					long userID = message.getAuthor().getIdLong(), messageID = message.getIdLong();
+					//Most messages are from users already in the source, so don't need anything written for them
+					if (!isKnownUser(userID)) {
+						usersPrep.setLong(1, userID);
+						usersPrep.setString(2, message.getAuthor().getName());
+						usersPrep.executeUpdate();
+					}
+
+					//A message that's already saved is replaced, and logged as an update instead
+					String content = message.getContentCleaned();
+					messagesInsertPrep.setLong(1, messageID);
+					messagesInsertPrep.setString(2, content);
+					if (messagesInsertPrep.executeUpdate() > 0) {
+						logChange(session, userID, messageID, "insert");
+					} else {
+						messagesReplacePrep.setLong(1, messageID);
+						messagesReplacePrep.setString(2, content);
+						messagesReplacePrep.executeUpdate();
+						logChange(session, userID, messageID, "update");
+
+						unindexPrep.setLong(1, messageID);
+						unindexPrep.executeUpdate();
+					}
+					indexMessage(indexPrep, messageID, content);
+
+					user_messagesPrep.setLong(1, userID);
+					user_messagesPrep.setLong(2, messageID);
+					user_messagesPrep.executeUpdate();
+				}
+				indexPrep.executeBatch();
+
+				PreparedStatement messagesDeletePrep = session.prepare(messagesDeleteBlank);
+				PreparedStatement user_messagesDeletePrep = session.prepare(user_messagesDeleteBlank);
+				for (String deletedID : deletedMessageIDs) {
+					long messageID = Long.parseUnsignedLong(deletedID);
+					//Log the change while the message's author can still be found
+					logChange(session, messageID, "delete");
+
+					messagesDeletePrep.setLong(1, messageID);
+					messagesDeletePrep.executeUpdate();
+					user_messagesDeletePrep.setLong(1, messageID);
+					user_messagesDeletePrep.executeUpdate();
+					unindexPrep.setLong(1, messageID);
+					unindexPrep.executeUpdate();
+				}
+				return null;
+			});
+		} catch (SQLException e) {
+			System.err.println("SQLException in writeMessages: "+ e);
+			return false;
+		}
+
+		for (Message message : messages) {
+			addKnownUser(message.getAuthor().getIdLong());
+			addKnownMessage(message.getIdLong());
+		}
+		for (String deletedID : deletedMessageIDs) removeKnownMessage(Long.parseUnsignedLong(deletedID));
+		return true;
+	}
+
+	@Override
+	public boolean containsMessageID(String messageID) {
 		if (messageID == null) return false;
-		String blankQuery = "SELECT EXISTS ( SELECT * FROM messages WHERE messageID = ?)";
+		long id = Long.parseUnsignedLong(messageID);
 
-		try (PreparedStatement prepStatement = sqlDatabase.prepareStatement(blankQuery)) {
-			prepStatement.setLong(1, Long.parseLong(messageID));
+		synchronized (knownMessageIDs) {
+			return knownMessageIDs.contains(id);
+		}
+	}
+
+	@Override
+	public Message getMessage(String messageID) throws IOException {
+		if (messageID == null) return null;
+		String blankQuery = "SELECT users.userID, users.username, messages.messageID, messages.content " +
+				"FROM messages JOIN user_messages ON messages.messageID = user_messages.messageID " +
+				"JOIN users ON user_messages.userID = users.userID WHERE messages.messageID = ?";
 
-			return prepStatement.executeQuery().getBoolean(1);
+		try {
+			return database.read(session -> {
+				PreparedStatement prepStatement = session.prepare(blankQuery);
+				prepStatement.setLong(1, Long.parseUnsignedLong(messageID));
+
+				try (ResultSet rs = prepStatement.executeQuery()) {
+					if (!rs.next()) return null;
+					return new Message(rs.getLong(3), rs.getString(4), new User(rs.getLong(1), rs.getString(2)));
+				}
+			});
 		} catch (SQLException e) {
 			throw new IOException("Database read failed", e);
 		}
@@ -149,71 +444,211 @@ public class SQLiteSourceHandler implements SourceHandler {
 		String blankQuery = "REPLACE INTO users (userID, username) VALUES (?,?)";
 
 		try {
-			PreparedStatement prepStatement = sqlDatabase.prepareStatement(blankQuery);
+			database.write(session -> {
+				PreparedStatement prepStatement = session.prepare(blankQuery);
 
-			prepStatement.setLong(1, user.getIdLong());
-			prepStatement.setString(2, user.getName());
+				prepStatement.setLong(1, user.getIdLong());
+				prepStatement.setString(2, user.getName());
 
-			prepStatement.executeUpdate();
+				return prepStatement.executeUpdate();
+			});
 		} catch (SQLException e) {
 			System.err.println("SQLException in saveUser: "+ e);
 			return false;
 		}
 
+		addKnownUser(user.getIdLong());
 		return true;
 	}
 
 	@Override
-	public boolean containsUserByID(String userID) throws IOException {
+	public boolean containsUserByID(String userID) {
 		if (userID == null) return false;
-		String blankQuery = "SELECT EXISTS ( SELECT * FROM users WHERE userID = ?)";
+		return isKnownUser(Long.parseUnsignedLong(userID));
+	}
 
-		try (PreparedStatement prepStatement = sqlDatabase.prepareStatement(blankQuery)) {
-			prepStatement.setLong(1, Long.parseLong(userID));
+	@Override
+	public String getMostRecentMessageID() throws IOException {
+		String query = "SELECT max(messageID) FROM messages";
 
-			return prepStatement.executeQuery().getBoolean(1);
+		try {
+			return database.read(session -> {
+				try (ResultSet rs = session.prepare(query).executeQuery()) {
+					return rs.next()? rs.getString(1) : null;
+				}
+			});
 		} catch (SQLException e) {
 			throw new IOException("Database read failed", e);
 		}
 	}
 
+	/**
+	 * Gets the <code>LIKE</code> pattern matching any text with a given sub string, escaping its wild-card characters
+	 * with a backslash
+	 * @param subString sub string to match
+	 * @return the pattern
+	 */
+	private static String getLikePattern(@NotNull String subString) {
+		//Escape wild-card characters from the substring
+		String escaped = subString.replaceAll("\\\\", "\\\\\\\\");
+		return "%"+ escaped.replaceAll("%", "\\\\%").replaceAll("_", "\\\\_") +"%";
+	}
+
 	@Override
-	public String getMostRecentMessageID() throws IOException {
-		String query = "SELECT max(messageID) FROM messages";
-		try (PreparedStatement prepStatement = sqlDatabase.prepareStatement(query)) {
-			return prepStatement.executeQuery().getString(1);
+	public List<Message> getMessagesWithWord(String word, MessageOrder order, int offset, int limit) throws IOException {
+		if (offset < 0 || limit < 0) throw new IllegalArgumentException("Offset and limit cannot be negative");
+		if (limit == 0) return new ArrayList<>();
+		String columns = "SELECT users.userID, users.username, messages.messageID, messages.content ";
+		String joins = "JOIN user_messages ON messages.messageID = user_messages.messageID " +
+				"JOIN users ON user_messages.userID = users.userID ";
+		String direction = (order == MessageOrder.NEWEST)? "DESC" : "ASC";
+
+		//Look up the longest word from the index, since it'll be in the fewest messages
+		String indexWord = null;
+		for (String part : getIndexWords(word)) {
+			if (indexWord == null || part.length() > indexWord.length()) indexWord = part;
+		}
+		//If the word is exactly one indexed word, every message found has it. Otherwise they still need checking
+		Pattern wordPattern = (indexWord != null && word.toLowerCase(Locale.ROOT).equals(indexWord))? null :
+				Pattern.compile("(?:^|[^a-zA-Z0-9])(?i:"+ Pattern.quote(word) +")(?:[^a-zA-Z0-9]|$)");
+
+		String lookup = indexWord;
+		try {
+			return database.read(session -> {
+				PreparedStatement prepStatement;
+				if (lookup == null) {
+					//Without any letters or digits there's nothing to look up, so every message has to be searched
+					prepStatement = session.prepare(columns +"FROM messages "+ joins +
+							"WHERE messages.content LIKE ? ESCAPE '\\' ORDER BY messages.messageID "+ direction);
+					prepStatement.setString(1, getLikePattern(word));
+				} else if (wordPattern == null && order == MessageOrder.RANDOM) {
+					return sampleIndexedMessages(session, lookup, limit);
+				} else if (wordPattern == null) {
+					//Every message found has the word, so the database can skip straight to the page
+					prepStatement = session.prepare(columns +"FROM message_words " +
+							"JOIN messages ON message_words.messageID = messages.messageID "+ joins +
+							"WHERE message_words.word = ? ORDER BY message_words.messageID "+ direction +" LIMIT ? OFFSET ?");
+					prepStatement.setString(1, lookup);
+					prepStatement.setInt(2, limit);
+					prepStatement.setInt(3, offset);
+				} else {
+					prepStatement = session.prepare(columns +"FROM message_words " +
+							"JOIN messages ON message_words.messageID = messages.messageID "+ joins +
+							"WHERE message_words.word = ? ORDER BY message_words.messageID "+ direction);
+					prepStatement.setString(1, lookup);
+				}
+
+				try (ResultSet rs = prepStatement.executeQuery()) {
+					return (order == MessageOrder.RANDOM)? samplePage(rs, wordPattern, limit) : readPage(rs, wordPattern, offset, limit);
+				}
+			});
 		} catch (SQLException e) {
 			throw new IOException("Database read failed", e);
 		}
 	}
 
-	@Override
-	public List<Message> getMessagesContaining(String subString) throws IOException{
-		String queryBlank = "SELECT users.userID, users.username, messages.messageID, messages.content " +
-				"FROM users LEFT JOIN user_messages ON users.userID = user_messages.userID " +
-				"LEFT JOIN messages ON user_messages.messageID = messages.messageID " +
-				"WHERE content LIKE ? ESCAPE '\\' ORDER BY messages.messageID";
+	/**
+	 * Reads a page of messages from a result set, stopping as soon as the page is full
+	 * @param rs result set of messages, in the order the page should be in. Column format as {@link #readMessage(ResultSet)}
+	 * @param wordPattern pattern the content of each message has to have, <code>null</code> to keep every message
+	 * @param offset how many of the kept messages to skip before the page starts
+	 * @param limit most messages on the page
+	 * @return the messages on the page
+	 * @throws SQLException if an exception is thrown by a method called on the result set
+	 */
+	private static List<Message> readPage(@NotNull ResultSet rs, Pattern wordPattern, int offset, int limit) throws SQLException {
+		List<Message> page = new ArrayList<>(Math.min(limit, 64));
+		int skipped = 0;
+		while (page.size() < limit && rs.next()) {
+			if (wordPattern != null && !wordPattern.matcher(rs.getString(4)).find()) continue;
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			page.add(readMessage(rs));
+		}
+		return page;
+	}
 
-		List<Message> compiledList = new ArrayList<>();
-		try (PreparedStatement prepStatement = sqlDatabase.prepareStatement(queryBlank)) {
-			//Escape wild-card characters from the substring
-			subString = subString.replaceAll("\\\\", "\\\\\\\\");
-			subString = subString.replaceAll("%", "\\\\%").replaceAll("_", "\\\\_");
-			prepStatement.setString(1,"%"+ subString +"%");
+	/**
+	 * Picks a random page of messages from a result set with reservoir sampling, so only the picked messages are kept
+	 * @param rs result set of messages. Column format as {@link #readMessage(ResultSet)}
+	 * @param wordPattern pattern the content of each message has to have, <code>null</code> to keep every message
+	 * @param limit most messages on the page
+	 * @return the picked messages, in a random order
+	 * @throws SQLException if an exception is thrown by a method called on the result set
+	 */
+	private static List<Message> samplePage(@NotNull ResultSet rs, Pattern wordPattern, int limit) throws SQLException {
+		Random random = ThreadLocalRandom.current();
+		List<Message> page = new ArrayList<>(Math.min(limit, 64));
+		int seen = 0;
+		while (rs.next()) {
+			if (wordPattern != null && !wordPattern.matcher(rs.getString(4)).find()) continue;
+			seen++;
+			if (page.size() < limit) {
+				page.add(readMessage(rs));
+				continue;
+			}
+			//Each message seen so far has the same chance of being on the page
+			int slot = random.nextInt(seen);
+			if (slot < limit) page.set(slot, readMessage(rs));
+		}
+		Collections.shuffle(page, random);
+		return page;
+	}
 
-			ResultSet rs = prepStatement.executeQuery();
+	/**
+	 * Picks a random page of the messages indexed under a word, sampling only their IDs from the index
+	 * and then reading just the picked messages
+	 * @param session session to read with
+	 * @param indexWord word from the index
+	 * @param limit most messages on the page
+	 * @return the picked messages, in a random order
+	 * @throws SQLException if a database access error occurs
+	 */
+	private static List<Message> sampleIndexedMessages(@NotNull SQLiteDatabase.Session session, @NotNull String indexWord,
+													   int limit) throws SQLException {
+		Random random = ThreadLocalRandom.current();
+		long[] picked = new long[limit];
+		int seen = 0;
+
+		PreparedStatement idsPrep = session.prepare("SELECT messageID FROM message_words WHERE word = ?");
+		idsPrep.setString(1, indexWord);
+		try (ResultSet rs = idsPrep.executeQuery()) {
 			while (rs.next()) {
-				compiledList.add(new Message(
-						rs.getLong(3),
-						rs.getString(4),
-						new User(rs.getLong(1), rs.getString(2))
-				));
+				int slot = (seen < limit)? seen : random.nextInt(seen + 1);
+				if (slot < limit) picked[slot] = rs.getLong(1);
+				seen++;
+			}
+		}
+
+		List<Message> page = new ArrayList<>(Math.min(seen, limit));
+		PreparedStatement messagePrep = session.prepare("SELECT users.userID, users.username, messages.messageID, " +
+				"messages.content FROM messages JOIN user_messages ON messages.messageID = user_messages.messageID " +
+				"JOIN users ON user_messages.userID = users.userID WHERE messages.messageID = ?");
+		for (int i = 0; i < Math.min(seen, limit); i++) {
+			messagePrep.setLong(1, picked[i]);
+			try (ResultSet rs = messagePrep.executeQuery()) {
+				if (rs.next()) page.add(readMessage(rs));
 			}
-		} catch (SQLException e) {
-			throw new IOException("Database read failed", e);
 		}
+		Collections.shuffle(page, random);
+		return page;
+	}
 
-		return compiledList;
+	/**
+	 * Reads the message at the current row of a result set
+	 * @param rs The result set to read from. <br/>
+	 *           <code>ResultSet</code> should be in the format:<ul>
+	 *           <li>Column 1: <code>long</code> user ID of the author</li>
+	 *           <li>Column 2: <code>String</code> username of the author</li>
+	 *           <li>Column 3: <code>long</code> message ID</li>
+	 *           <li>Column 4: <code>String</code> content of the message</li></ul>
+	 * @return the message
+	 * @throws SQLException if an exception is thrown by a method called on the result set
+	 */
+	private static Message readMessage(@NotNull ResultSet rs) throws SQLException {
+		return new Message(rs.getLong(3), rs.getString(4), new User(rs.getLong(1), rs.getString(2)));
 	}
 
 	@Override
@@ -223,9 +658,15 @@ public class SQLiteSourceHandler implements SourceHandler {
 				"LEFT JOIN messages ON user_messages.messageID = messages.messageID " +
 				"WHERE users.userID = ?";
 
-		try (PreparedStatement prepStatement = sqlDatabase.prepareStatement(blankQuery)) {
-			prepStatement.setLong(1, user.getIdLong());
-			return prepStatement.executeQuery().getInt(1);
+		try {
+			return database.read(session -> {
+				PreparedStatement prepStatement = session.prepare(blankQuery);
+				prepStatement.setLong(1, user.getIdLong());
+
+				try (ResultSet rs = prepStatement.executeQuery()) {
+					return rs.next()? rs.getInt(1) : 0;
+				}
+			});
 		} catch (SQLException e) {
 			throw new IOException("Database read failed", e);
 		}
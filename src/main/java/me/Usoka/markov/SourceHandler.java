@@ -6,25 +6,15 @@ import java.io.IOException;
 import java.util.List;
 
 public interface SourceHandler {
-
-	/**
-	 * Save a message to the source
-	 * @param message message to be saved
-	 * @return if it was saved successfully
-	 */
-	boolean saveMessage(Message message);
-
 	/**
-	 * Update a specified message in the source.
-	 * Will also add the message if it didn't actually exist
-	 * @param message updated version of the message
-	 * @return if it was successfully updated
+	 * Closes the connection to the source. Nothing else can be called afterwards
 	 */
-	boolean updateMessage(Message message);
+	void close();
 
 	/**
 	 * Update multiple messages in the source at once.
-	 * Will add any messages which didn't previously exist
+	 * Will add any messages which didn't previously exist, along with any of their authors who aren't in the source.
+	 * Messages with nothing left once cleaned are skipped
 	 * @param messages List of messages that should be updated
 	 * @return if updating messages was successful
 	 */
@@ -37,6 +27,15 @@ public interface SourceHandler {
 	 */
 	boolean deleteMessage(String messageID);
 
+	/**
+	 * Saves, replaces and deletes several messages together, as a single change to the source.
+	 * The author of each saved message is added to the source if they aren't already in it
+	 * @param messages messages to save, replacing any already saved with the same ID
+	 * @param deletedMessageIDs IDs (as String) of messages to delete
+	 * @return if every change was made. Nothing is changed if not
+	 */
+	boolean writeMessages(@NotNull List<Message> messages, @NotNull List<String> deletedMessageIDs);
+
 	/**
 	 * Identify if a message, by given ID, already existing in the source
 	 * @param messageID ID (as String) of message to check for
@@ -45,6 +44,15 @@ public interface SourceHandler {
 	 */
 	boolean containsMessageID(String messageID) throws IOException;
 
+	/**
+	 * Gets a message, by given ID, as it's currently stored in the source. The content of
+	 * the returned message is the cleaned content that was saved
+	 * @param messageID ID (as String) of the message to get
+	 * @return the stored message, or <code>null</code> if the source doesn't contain it
+	 * @throws IOException if there is an error reading from the source
+	 */
+	Message getMessage(String messageID) throws IOException;
+
 	/**
 	 * Saves a specified user to the source data.
 	 * Will also replace an existing user if ID matches
@@ -69,12 +77,17 @@ public interface SourceHandler {
 	String getMostRecentMessageID() throws IOException;
 
 	/**
-	 * Compiles a list of all messages in the source that include a given sub string
-	 * @param subString sub string to check messages for
-	 * @return <code>List</code> of messages containing that sub string
+	 * Finds a page of the messages in the source that have a given word in them, as a whole word rather than as part
+	 * of a longer one (so without a letter or digit directly either side of it). Case is ignored. Only as many
+	 * messages are read as are needed to fill the page
+	 * @param word word to look for
+	 * @param order which messages come first
+	 * @param offset how many messages to skip before the page starts. Ignored for {@link MessageOrder#RANDOM}
+	 * @param limit most messages on the page
+	 * @return <code>List</code> of the messages on the page
 	 * @throws IOException if there is an error reading from the source
 	 */
-	List<Message> getMessagesContaining(String subString) throws IOException;
+	List<Message> getMessagesWithWord(String word, @NotNull MessageOrder order, int offset, int limit) throws IOException;
 
 	/**
 	 * Counts the number of messages in the source data for a specified user
@@ -0,0 +1,55 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+/**
+ * Dictionary split by hash into several {@link WordDictionary}s, each with its own lock, so many threads can add
+ * words at once and only wait on each other when they want a word from the same stripe. <p/>
+ * The lower bits of an ID are the word's stripe and the upper bits are its ID within that stripe, so IDs are
+ * unique but not contiguous. Used while rebuilding the markov data, where the IDs only key the counts.
+ */
+class StripedDictionary {
+	private final WordDictionary[] stripes;
+
+	/**
+	 * Number of bits of an ID giving the word's stripe
+	 */
+	private final int stripeBits;
+
+	/**
+	 * @param threads number of threads expected to add words at once
+	 */
+	StripedDictionary(int threads) {
+		//Enough stripes that any two threads rarely want the same one
+		stripeBits = 32 - Integer.numberOfLeadingZeros(Math.min(Math.max(threads, 1) * 4, 256) - 1);
+		stripes = new WordDictionary[1 << stripeBits];
+		for (int stripe = 0; stripe < stripes.length; stripe++) stripes[stripe] = new WordDictionary();
+	}
+
+	/**
+	 * Gets the ID of part of some text, adding it to the dictionary if it isn't already in it.
+	 * Nothing is copied unless the word is new
+	 * @param text text containing the word
+	 * @param start index of the first character of the word
+	 * @param end index just after the last character of the word
+	 * @return ID of the word
+	 */
+	int add(@NotNull CharSequence text, int start, int end) {
+		int hash = WordDictionary.hash(text, start, end);
+		//Stripes are picked with the upper bits of the hash, since each stripe's index uses the lower ones
+		int stripe = (stripeBits == 0)? 0 : (hash * 0x9E3779B9) >>> (32 - stripeBits);
+
+		int id = stripes[stripe].add(text, start, end, hash);
+		if (id >= 1 << (31 - stripeBits)) throw new IllegalStateException("Too many words in stripe "+ stripe);
+		return (id << stripeBits) | stripe;
+	}
+
+	/**
+	 * Gets a word from its ID
+	 * @param id ID of the word
+	 * @return the word
+	 */
+	String getWord(int id) {
+		return stripes[id & (stripes.length - 1)].getWord(id >>> stripeBits);
+	}
+}
@@ -0,0 +1,222 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Splits text into words, recording where each word starts and ends instead of making a <code>String</code>
+ * for each one. This is the one place words are defined, so learning new messages, rebuilding the markov
+ * data and the word index all split messages the same way. <p/>
+ * There are two kinds of words:
+ * <ul>
+ *     <li>Markov words ({@link #split(CharSequence)}), which are the parts of cleaned content between single
+ *     spaces, the same as <code>String.split(" ")</code> gives. These keep their punctuation and case, and are
+ *     what the markov chains are made of</li>
+ *     <li>Index words ({@link #splitIndexWords(CharSequence)}), which are the runs of ASCII letters and digits.
+ *     These are what messages are looked up by in the word index</li>
+ * </ul>
+ * The lower case form of each word is worked out as the text is split, and kept in one buffer with the words
+ * separated by single spaces. This way the context of a higher order link, which is the lower case words before
+ * it joined by spaces, is just a range of that buffer. <p/>
+ * A tokenizer is reused from one piece of text to the next, so splitting allocates nothing once its buffers
+ * are big enough. Not thread safe.
+ */
+class Tokenizer {
+	private CharSequence text = "";
+	private int count = 0;
+
+	/**
+	 * Start and end of each word in the text
+	 */
+	private int[] starts = new int[64], ends = new int[64];
+
+	/**
+	 * Start and end of the lower case form of each word in {@link #lowerCase}
+	 */
+	private int[] lowerStarts = new int[64], lowerEnds = new int[64];
+
+	/**
+	 * Lower case form of every word, separated by single spaces
+	 */
+	private final StringBuilder lowerCase = new StringBuilder();
+
+	/**
+	 * Splits cleaned message content into markov words, giving exactly the same words as
+	 * <code>content.split(" ")</code>: any empty words at the end are left out, but text without
+	 * a space in it is always one word, even when it's empty
+	 * @param content text to split
+	 * @return number of words
+	 */
+	int split(@NotNull CharSequence content) {
+		reset(content);
+		//Words are lower cased the same way as String.toLowerCase(), which only some locales change for ASCII
+		String language = Locale.getDefault().getLanguage();
+		boolean asciiLowerCase = !language.equals("tr") && !language.equals("az") && !language.equals("lt");
+
+		int length = content.length(), start = 0;
+		for (int i = 0; i < length; i++) {
+			if (content.charAt(i) != ' ') continue;
+			addWord(start, i, asciiLowerCase);
+			start = i + 1;
+		}
+		if (count == 0) {
+			addWord(0, length, asciiLowerCase);
+			return count;
+		}
+		addWord(start, length, asciiLowerCase);
+
+		while (count > 0 && starts[count - 1] == ends[count - 1]) count--;
+		return count;
+	}
+
+	/**
+	 * Splits text into index words, the runs of ASCII letters and digits in it. Their lower case forms
+	 * only change ASCII letters, whatever the locale
+	 * @param content text to split
+	 * @return number of words
+	 */
+	int splitIndexWords(@NotNull CharSequence content) {
+		reset(content);
+
+		int start = -1;
+		for (int i = 0; i <= content.length(); i++) {
+			boolean wordChar = i < content.length() && isIndexWordChar(content.charAt(i));
+			if (wordChar && start < 0) start = i;
+			if (!wordChar && start >= 0) {
+				addWord(start, i, true);
+				start = -1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return if a character is part of an index word, which only counts ASCII letters and digits
+	 */
+	static boolean isIndexWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	/**
+	 * @return number of words the last text split into
+	 */
+	int size() { return count; }
+
+	/**
+	 * @param i index of the word
+	 * @return if the word has no characters
+	 */
+	boolean isEmpty(int i) {
+		checkIndex(i);
+		return starts[i] == ends[i];
+	}
+
+	/**
+	 * @param i index of the word
+	 * @return the word as it is in the text
+	 */
+	String getWord(int i) {
+		checkIndex(i);
+		return text.subSequence(starts[i], ends[i]).toString();
+	}
+
+	/**
+	 * @param i index of the word
+	 * @return the lower case form of the word
+	 */
+	String getLowerCase(int i) { return getContext(i, i + 1); }
+
+	/**
+	 * Gets the lower case forms of a run of words, separated by single spaces
+	 * @param first index of the first word
+	 * @param end index just after the last word
+	 * @return the lower case words
+	 */
+	String getContext(int first, int end) {
+		checkRange(first, end);
+		return lowerCase.substring(lowerStarts[first], lowerEnds[end - 1]);
+	}
+
+	/**
+	 * Gets the dictionary ID of a word as it is in the text, adding it if needed
+	 * @param dictionary dictionary to get the ID from
+	 * @param i index of the word
+	 * @return ID of the word
+	 */
+	int getWordID(@NotNull StripedDictionary dictionary, int i) {
+		checkIndex(i);
+		return dictionary.add(text, starts[i], ends[i]);
+	}
+
+	/**
+	 * Gets the dictionary ID of the lower case form of a word, adding it if needed
+	 * @param dictionary dictionary to get the ID from
+	 * @param i index of the word
+	 * @return ID of the lower case word
+	 */
+	int getLowerCaseID(@NotNull StripedDictionary dictionary, int i) { return getContextID(dictionary, i, i + 1); }
+
+	/**
+	 * Gets the dictionary ID of the lower case forms of a run of words separated by single spaces,
+	 * adding it if needed
+	 * @param dictionary dictionary to get the ID from
+	 * @param first index of the first word
+	 * @param end index just after the last word
+	 * @return ID of the lower case words
+	 */
+	int getContextID(@NotNull StripedDictionary dictionary, int first, int end) {
+		checkRange(first, end);
+		return dictionary.add(lowerCase, lowerStarts[first], lowerEnds[end - 1]);
+	}
+
+	private void reset(CharSequence content) {
+		text = content;
+		count = 0;
+		lowerCase.setLength(0);
+	}
+
+	/**
+	 * Records a word, and adds its lower case form to the buffer
+	 * @param asciiLowerCase if ASCII letters can be lower cased on their own, rather than with <code>String</code>
+	 */
+	private void addWord(int start, int end, boolean asciiLowerCase) {
+		if (count == starts.length) {
+			int capacity = starts.length * 2;
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			lowerStarts = Arrays.copyOf(lowerStarts, capacity);
+			lowerEnds = Arrays.copyOf(lowerEnds, capacity);
+		}
+		starts[count] = start;
+		ends[count] = end;
+
+		if (count > 0) lowerCase.append(' ');
+		lowerStarts[count] = lowerCase.length();
+		if (asciiLowerCase && isAscii(start, end)) {
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				lowerCase.append((c >= 'A' && c <= 'Z')? (char) (c + ('a' - 'A')) : c);
+			}
+		} else {
+			//Anything else can change length or depend on the letters around it, so is left to String
+			lowerCase.append(text.subSequence(start, end).toString().toLowerCase());
+		}
+		lowerEnds[count] = lowerCase.length();
+		count++;
+	}
+
+	private boolean isAscii(int start, int end) {
+		for (int i = start; i < end; i++) if (text.charAt(i) >= 128) return false;
+		return true;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= count) throw new IndexOutOfBoundsException("No word at index "+ i);
+	}
+
+	private void checkRange(int first, int end) {
+		if (first < 0 || end > count || first >= end) throw new IndexOutOfBoundsException("No words from "+ first +" to "+ end);
+	}
+}
@@ -0,0 +1,353 @@
+package me.Usoka.markov;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Dictionary giving every word a permanent integer ID, shared between all the markov models
+ * so that each word is only stored once no matter how many models contain it. <p/>
+ * The characters of each word, the table of where each word starts and the hash index used to
+ * look words up are all kept in direct (off-heap) buffers, so they add nothing for the garbage
+ * collector to trace. Words are only ever added, never removed, so an ID stays valid forever. <p/>
+ * Adding and looking up words is synchronized. Reading a word back from an ID is not, since the
+ * storage for an existing ID never moves or changes once the ID has been handed out. <p/>
+ * A dictionary can also be opened straight from a {@link ModelSnapshot}, reading from the
+ * snapshot's read only buffers until words are added, when only the parts that change are copied.
+ */
+class WordDictionary {
+	/**
+	 * Number of bits of a word's position used for its start within a block ({@value})
+	 */
+	private static final int BLOCK_BITS = 19;
+
+	/**
+	 * Number of characters held in each block of word storage ({@value}). A word never spans two blocks
+	 */
+	private static final int BLOCK_CHARS = 1 << BLOCK_BITS;
+
+	/**
+	 * Starting number of words that can be held before the tables need to grow ({@value})
+	 */
+	private static final int INITIAL_CAPACITY = 1 << 12;
+
+	/**
+	 * Everything a reader needs to get a word from its ID. Replaced as a whole when any of it grows
+	 */
+	private static class Storage {
+		/**
+		 * Blocks of characters that words are stored in
+		 */
+		final CharBuffer[] blocks;
+
+		/**
+		 * Position of each word, as its block in the upper bits and its start within the block in the lower bits
+		 */
+		final IntBuffer positions;
+
+		/**
+		 * Length of each word
+		 */
+		final IntBuffer lengths;
+
+		Storage(CharBuffer[] blocks, IntBuffer positions, IntBuffer lengths) {
+			this.blocks = blocks;
+			this.positions = positions;
+			this.lengths = lengths;
+		}
+	}
+
+	/**
+	 * Current word storage. Readers take a copy of the reference and then read from it
+	 */
+	private volatile Storage storage;
+
+	/**
+	 * Number of words in the dictionary
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * Open addressing hash index. Each slot holds a word ID plus one, or <code>0</code> if empty
+	 */
+	private IntBuffer index;
+
+	/**
+	 * Position in the last block where the next word will be written
+	 */
+	private int blockPosition = 0;
+
+	WordDictionary() {
+		storage = new Storage(new CharBuffer[] { allocateChars(BLOCK_CHARS) },
+				allocateInts(INITIAL_CAPACITY), allocateInts(INITIAL_CAPACITY));
+		index = allocateInts(INITIAL_CAPACITY * 2);
+	}
+
+	/**
+	 * Opens a dictionary written by {@link #writeTo(DataOutput)}, using the buffer directly rather than copying it
+	 * @param section buffer holding the dictionary, starting from its first byte
+	 * @return the dictionary
+	 * @throws IllegalArgumentException if the section doesn't hold a dictionary
+	 */
+	static WordDictionary fromSnapshot(@NotNull ByteBuffer section) {
+		int size = section.getInt(0), blockCount = section.getInt(4), indexCapacity = section.getInt(8);
+		//Lookups go round the index until they find an empty slot, so it has to have room to spare
+		if (size < 0 || blockCount < 0 || Integer.bitCount(indexCapacity) != 1 || indexCapacity < 2L * size) {
+			throw new IllegalArgumentException("Dictionary section is corrupt");
+		}
+
+		int offset = 16;
+		IntBuffer positions = slice(section, offset, size * Integer.BYTES).asIntBuffer();
+		offset += size * Integer.BYTES;
+		IntBuffer lengths = slice(section, offset, size * Integer.BYTES).asIntBuffer();
+		offset += size * Integer.BYTES;
+		IntBuffer index = slice(section, offset, indexCapacity * Integer.BYTES).asIntBuffer();
+		offset += indexCapacity * Integer.BYTES;
+
+		//New words always go in a block of their own, since the snapshot's blocks can't be written to
+		CharBuffer[] blocks = new CharBuffer[blockCount + 1];
+		for (int block = 0; block < blockCount; block++) {
+			int chars = section.getInt(offset);
+			blocks[block] = slice(section, offset + Integer.BYTES, chars * Character.BYTES).asCharBuffer();
+			offset += Integer.BYTES + chars * Character.BYTES;
+		}
+		blocks[blockCount] = allocateChars(BLOCK_CHARS);
+
+		WordDictionary dictionary = new WordDictionary(new Storage(blocks, positions, lengths), index);
+		dictionary.size = size;
+		return dictionary;
+	}
+
+	private WordDictionary(Storage storage, IntBuffer index) {
+		this.storage = storage;
+		this.index = index;
+	}
+
+	/**
+	 * Gets part of a buffer as a buffer of its own, without copying it
+	 * @param buffer buffer to take the part from
+	 * @param offset position of the part's first byte
+	 * @param length number of bytes in the part
+	 * @return the part
+	 */
+	static ByteBuffer slice(@NotNull ByteBuffer buffer, int offset, int length) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.limit(offset + length).position(offset);
+		return duplicate.slice();
+	}
+
+	/**
+	 * Writes out the dictionary in the layout read by {@link #fromSnapshot(ByteBuffer)}: the number of words,
+	 * blocks and index slots, the position and length tables, the index, then the used part of each block
+	 * @param out output to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	synchronized void writeTo(@NotNull DataOutput out) throws IOException {
+		Storage current = storage;
+
+		//Blocks are left partly empty when a word doesn't fit, so only write up to the end of the last word in each
+		int[] blockEnds = new int[current.blocks.length];
+		for (int id = 0; id < size; id++) {
+			int position = current.positions.get(id);
+			int end = (position & (BLOCK_CHARS - 1)) + current.lengths.get(id);
+			blockEnds[position >>> BLOCK_BITS] = Math.max(blockEnds[position >>> BLOCK_BITS], end);
+		}
+
+		out.writeInt(size);
+		out.writeInt(current.blocks.length);
+		out.writeInt(index.capacity());
+		out.writeInt(0);
+		for (int id = 0; id < size; id++) out.writeInt(current.positions.get(id));
+		for (int id = 0; id < size; id++) out.writeInt(current.lengths.get(id));
+		for (int slot = 0; slot < index.capacity(); slot++) out.writeInt(index.get(slot));
+		for (int block = 0; block < current.blocks.length; block++) {
+			out.writeInt(blockEnds[block]);
+			for (int i = 0; i < blockEnds[block]; i++) out.writeChar(current.blocks[block].get(i));
+		}
+	}
+
+	private static IntBuffer allocateInts(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * Integer.BYTES).asIntBuffer();
+	}
+
+	private static CharBuffer allocateChars(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * Character.BYTES).asCharBuffer();
+	}
+
+	/**
+	 * @return number of words in the dictionary
+	 */
+	int size() { return size; }
+
+	/**
+	 * Gets the ID of a word, adding it to the dictionary if it isn't already in it
+	 * @param word word to get the ID of
+	 * @return ID of the word
+	 */
+	int add(@NotNull CharSequence word) { return add(word, 0, word.length()); }
+
+	/**
+	 * Gets the ID of part of some text, adding it to the dictionary if it isn't already in it.
+	 * Nothing is copied unless the word is new
+	 * @param text text containing the word
+	 * @param start index of the first character of the word
+	 * @param end index just after the last character of the word
+	 * @return ID of the word
+	 */
+	int add(@NotNull CharSequence text, int start, int end) { return add(text, start, end, hash(text, start, end)); }
+
+	/**
+	 * Gets the ID of part of some text, adding it to the dictionary if it isn't already in it
+	 * @param text text containing the word
+	 * @param start index of the first character of the word
+	 * @param end index just after the last character of the word
+	 * @param hash hash of the word, from {@link #hash(CharSequence, int, int)}
+	 * @return ID of the word
+	 */
+	synchronized int add(@NotNull CharSequence text, int start, int end, int hash) {
+		int slot = findSlot(text, start, end, hash);
+		if (index.get(slot) != 0) return index.get(slot) - 1;
+
+		int length = end - start;
+		if (length > BLOCK_CHARS) throw new IllegalArgumentException("Word is too long ("+ length +" chars)");
+		Storage current = storage;
+
+		//Start a new block if the word won't fit in what's left of the current one
+		CharBuffer[] blocks = current.blocks;
+		if (blockPosition + length > BLOCK_CHARS) {
+			CharBuffer[] grownBlocks = new CharBuffer[blocks.length + 1];
+			System.arraycopy(blocks, 0, grownBlocks, 0, blocks.length);
+			grownBlocks[blocks.length] = allocateChars(BLOCK_CHARS);
+			blocks = grownBlocks;
+			blockPosition = 0;
+		}
+
+		//Make room for another word in the position and length tables. Tables from a snapshot are always full
+		IntBuffer positions = current.positions, lengths = current.lengths;
+		if (size == positions.capacity()) {
+			positions = copyInts(positions, Math.max(size * 2, INITIAL_CAPACITY));
+			lengths = copyInts(lengths, Math.max(size * 2, INITIAL_CAPACITY));
+		}
+
+		//Write the word in before it's published, so readers never see a half written word
+		CharBuffer block = blocks[blocks.length - 1];
+		for (int i = 0; i < length; i++) block.put(blockPosition + i, text.charAt(start + i));
+		int id = size;
+		positions.put(id, ((blocks.length - 1) << BLOCK_BITS) | blockPosition);
+		lengths.put(id, length);
+		blockPosition += length;
+
+		if (blocks != current.blocks || positions != current.positions) storage = new Storage(blocks, positions, lengths);
+		if (index.isReadOnly()) index = copyInts(index, index.capacity());
+		index.put(slot, id + 1);
+		size = id + 1;
+
+		//Keep the index at most half full so probing stays short
+		if (size * 2 > index.capacity()) rehash(index.capacity() * 2);
+		return id;
+	}
+
+	/**
+	 * Gets the ID of a word without adding it
+	 * @param word word to get the ID of
+	 * @return ID of the word, or <code>-1</code> if the dictionary doesn't contain it
+	 */
+	synchronized int getID(@NotNull CharSequence word) {
+		return index.get(findSlot(word, 0, word.length(), hash(word))) - 1;
+	}
+
+	/**
+	 * Gets a word from its ID. Creates a new <code>String</code>, so prefer
+	 * {@link #appendTo(int, StringBuilder)} when building up text
+	 * @param id ID of the word
+	 * @return the word
+	 */
+	String getWord(int id) {
+		return appendTo(id, new StringBuilder()).toString();
+	}
+
+	/**
+	 * Appends a word onto a <code>StringBuilder</code> straight from storage
+	 * @param id ID of the word
+	 * @param builder builder to append the word to
+	 * @return the builder given
+	 */
+	StringBuilder appendTo(int id, @NotNull StringBuilder builder) {
+		if (id < 0 || id >= size) throw new IndexOutOfBoundsException("No word with ID "+ id);
+		Storage current = storage;
+
+		int position = current.positions.get(id), length = current.lengths.get(id);
+		CharBuffer block = current.blocks[position >>> BLOCK_BITS];
+		int start = position & (BLOCK_CHARS - 1);
+		for (int i = start; i < start + length; i++) builder.append(block.get(i));
+		return builder;
+	}
+
+	/**
+	 * Finds the slot in the index which either holds the given word, or is the empty slot it would go in
+	 */
+	private int findSlot(CharSequence text, int start, int end, int hash) {
+		int mask = index.capacity() - 1;
+		int slot = hash & mask;
+		while (index.get(slot) != 0 && !matches(index.get(slot) - 1, text, start, end)) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Checks if the word stored with a given ID is the same as the provided part of some text
+	 */
+	private boolean matches(int id, CharSequence text, int start, int end) {
+		Storage current = storage;
+		if (current.lengths.get(id) != end - start) return false;
+
+		int position = current.positions.get(id);
+		CharBuffer block = current.blocks[position >>> BLOCK_BITS];
+		int blockStart = position & (BLOCK_CHARS - 1);
+		for (int i = 0; i < end - start; i++) if (block.get(blockStart + i) != text.charAt(start + i)) return false;
+		return true;
+	}
+
+	/**
+	 * Rebuilds the hash index with a given capacity
+	 */
+	private void rehash(int capacity) {
+		Storage current = storage;
+		IntBuffer grownIndex = allocateInts(capacity);
+		int mask = capacity - 1;
+
+		for (int id = 0; id < size; id++) {
+			int position = current.positions.get(id);
+			CharBuffer block = current.blocks[position >>> BLOCK_BITS];
+			int start = position & (BLOCK_CHARS - 1);
+
+			int slot = hash(block, start, start + current.lengths.get(id)) & mask;
+			while (grownIndex.get(slot) != 0) slot = (slot + 1) & mask;
+			grownIndex.put(slot, id + 1);
+		}
+		index = grownIndex;
+	}
+
+	/**
+	 * Copies an <code>IntBuffer</code> into a new, larger one
+	 */
+	private static IntBuffer copyInts(IntBuffer source, int capacity) {
+		IntBuffer copy = allocateInts(capacity);
+		for (int i = 0; i < source.capacity(); i++) copy.put(i, source.get(i));
+		return copy;
+	}
+
+	private static int hash(CharSequence word) { return hash(word, 0, word.length()); }
+
+	/**
+	 * Hashes a range of characters, spreading the upper bits down since the index only uses the lower ones
+	 */
+	static int hash(CharSequence chars, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) hash = 31 * hash + chars.charAt(i);
+		return hash ^ (hash >>> 16);
+	}
+}
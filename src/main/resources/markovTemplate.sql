@@ -8,6 +8,22 @@ CREATE TABLE links (linkID INTEGER PRIMARY KEY, startWord text NOT NULL, endWord
 
 CREATE TABLE user_links (userID INTEGER, linkID INTEGER, frequency INTEGER, PRIMARY KEY (userID, linkID), FOREIGN KEY (userID) REFERENCES users (userID), FOREIGN KEY (linkID) REFERENCES links (linkID));
 
+CREATE TABLE ngrams (ngramID INTEGER PRIMARY KEY, chainOrder INTEGER NOT NULL, context text NOT NULL, endWord text);
+
+CREATE TABLE user_ngrams (userID INTEGER, ngramID INTEGER, frequency INTEGER, PRIMARY KEY (userID, ngramID), FOREIGN KEY (userID) REFERENCES users (userID), FOREIGN KEY (ngramID) REFERENCES ngrams (ngramID));
+
+CREATE TABLE user_versions (userID INTEGER PRIMARY KEY, dataVersion INTEGER NOT NULL);
+
+CREATE INDEX links_words ON links (startWord, endWord);
+
+CREATE INDEX ngrams_words ON ngrams (chainOrder, context, endWord);
+
 CREATE TABLE user_lexicons (userID INTEGER, word NOT NULL, frequency INTEGER, PRIMARY KEY (userID, word), FOREIGN KEY (userID) REFERENCES users (userID));
 
+CREATE TABLE all_lexicon (word text PRIMARY KEY NOT NULL, frequency INTEGER);
+
+CREATE TABLE all_links (linkID INTEGER PRIMARY KEY, frequency INTEGER, FOREIGN KEY (linkID) REFERENCES links (linkID));
+
+CREATE TABLE all_ngrams (ngramID INTEGER PRIMARY KEY, frequency INTEGER, FOREIGN KEY (ngramID) REFERENCES ngrams (ngramID));
+
 COMMIT;
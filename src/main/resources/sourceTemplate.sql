@@ -5,4 +5,7 @@ BEGIN TRANSACTION;
 CREATE TABLE users (userID INTEGER PRIMARY KEY, username text NOT NULL);
 CREATE TABLE messages (messageID INTEGER PRIMARY KEY, content text NOT NULL);
 CREATE TABLE user_messages (userID INTEGER, messageID INTEGER, PRIMARY KEY (userID, messageID), FOREIGN KEY (userID) REFERENCES users (userID), FOREIGN KEY (messageID) REFERENCES messages (messageID));
+CREATE TABLE change_log (changeID INTEGER PRIMARY KEY, userID INTEGER NOT NULL, messageID INTEGER NOT NULL, change text NOT NULL);
+CREATE TABLE message_words (word text NOT NULL, messageID INTEGER NOT NULL, PRIMARY KEY (word, messageID)) WITHOUT ROWID;
+CREATE INDEX message_words_message ON message_words (messageID);
 COMMIT;
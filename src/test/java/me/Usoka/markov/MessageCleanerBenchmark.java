@@ -0,0 +1,148 @@
+package me.Usoka.markov;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that {@link MessageCleaner} cleans messages exactly the same way as the regular expressions it replaced,
+ * then times the two against each other. Run from the command line after changing either of them. <p/>
+ * The comparison runs on random messages put together from pieces that commands and links are made of (and the
+ * characters either side of them), so the edge cases come up far more often than in real messages. The timing runs
+ * on messages more like real ones: mostly words, with the odd link and command.
+ */
+class MessageCleanerBenchmark {
+	/**
+	 * Links, as they were matched before the cleaner
+	 */
+	private static final Pattern LINK_PATTERN = Pattern.compile("((https?|http):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?!\\+-=\\\\\\.&]*)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Escaped links, as they were matched before the cleaner
+	 */
+	private static final Pattern ESCAPED_LINK_PATTERN = Pattern.compile("<((https?|http):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?!\\+-=\\\\\\.&]*)>", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Commands, as they were matched before the cleaner
+	 */
+	private static final Pattern COMMAND_WORDS = Pattern.compile("^!(" +
+			"(" + //Commands with parameters that follow it
+			"bet|" +										//Blackjack bot
+			"playlist|play playlist|" +						//Music bot
+			"quote|speak|count|markov|context|source|setuser" +	//Markov bot
+			")(\\s+.*|$)|" +
+			"(" + //Commands which are only the command
+			"start|hit|bet|login|check|logincreation|" +				//Blackjack bot
+			"queue|nowplaying|playlists|forceskip|skip|shuffle|stop|" +	//Music bot
+			"gethistory|word" +											//Markov bot
+			")$)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Pieces the random messages are put together from
+	 */
+	private static final String[] PIECES = {
+			"http", "HTTP", "https", "hTtPs", ":", "//", "/", "\\", "<", ">",
+			" ", "\t", "\n", "\r", "\r\n", "\u0085", "\u2028", "\u2029", "\u000B", "\f", " \t ",
+			"!", "bet", "quote", "play playlist", "playlist", "playlists", "login", "logincreation", "skip", "SKIP", "Word", "context",
+			"a", "Z", "0", "_", ".", "-", "=", "+", ",", ";", "*", "'", "\"", "\u00e9", "K", "\u017f", "x", "s", "S",
+			"&", "%", "?", "#", "~", "(", ")", "$", "@", "[", "|"
+	};
+
+	/**
+	 * Messages which have caught out the cleaner before, checked before any random ones
+	 */
+	private static final String[] KNOWN_CASES = {
+			"", " ", "!quote", "!quote\n", "!quote \n\nabc\ndef", "!skip\r\n", "!skip\n\n", "!skip\r",
+			"http:\\<http://x>", "a <https://b.c/d> e http://f.g h", "!play playlist x http://y <http://z>",
+			"HTTP://X.Y", "<http://a<http://b>", "http://a<http://b>c"
+	};
+
+	private MessageCleanerBenchmark() {}
+
+	/**
+	 * Cleans the content of a message with the regular expressions the cleaner replaced
+	 * @param content raw content of the message
+	 * @return the content without any command, links or extra whitespace
+	 */
+	static String cleanWithPatterns(String content) {
+		String cleanContent = content;
+
+		cleanContent = COMMAND_WORDS.matcher(cleanContent).replaceAll(" ");
+		cleanContent = ESCAPED_LINK_PATTERN.matcher(cleanContent).replaceAll(" ");
+		cleanContent = LINK_PATTERN.matcher(cleanContent).replaceAll("");
+
+		//Remove excess spaces and tabs
+		return cleanContent.replaceAll("[ \t]+", " ").trim();
+	}
+
+	/**
+	 * Compares the two ways of cleaning messages, then times them
+	 * @param args number of random messages to compare (default 1,000,000), then number of messages to time
+	 *             them on (default 200,000)
+	 */
+	public static void main(String[] args) {
+		int cases = (args.length > 0)? Integer.parseInt(args[0]) : 1_000_000;
+		int messageCount = (args.length > 1)? Integer.parseInt(args[1]) : 200_000;
+		Random random = new Random(24);
+
+		for (String content : KNOWN_CASES) compare(content);
+		for (int i = 0; i < cases; i++) {
+			StringBuilder content = new StringBuilder();
+			if (random.nextInt(3) == 0) content.append('!');
+			for (int pieces = random.nextInt(12); pieces > 0; pieces--) content.append(PIECES[random.nextInt(PIECES.length)]);
+			compare(content.toString());
+		}
+		System.out.println("Cleaned "+ (KNOWN_CASES.length + cases) +" messages the same both ways");
+
+		List<String> messages = new ArrayList<>();
+		for (int i = 0; i < messageCount; i++) {
+			StringBuilder content = new StringBuilder((i % 50 == 0)? "!quote " : "");
+			for (int words = 3 + random.nextInt(20), word = 0; word < words; word++) {
+				int kind = random.nextInt(40);
+				if (kind == 0) content.append("https://example.com/some/path?x=").append(word);
+				else if (kind == 1) content.append("<http://example.com/").append(word).append('>');
+				else content.append("word").append(random.nextInt(1000));
+				content.append((random.nextInt(10) == 0)? "  " : " ");
+			}
+			messages.add(content.toString());
+		}
+
+		//The first few rounds are only there to let the JIT compiler warm up
+		for (int round = 1; round <= 5; round++) {
+			long checksum = 0;
+			long start = System.nanoTime();
+			for (String message : messages) checksum += cleanWithPatterns(message).length();
+			long patternsDone = System.nanoTime();
+			for (String message : messages) checksum -= MessageCleaner.clean(message).length();
+			long cleanerDone = System.nanoTime();
+
+			if (checksum != 0) throw new IllegalStateException("Cleaned lengths differ by "+ checksum);
+			System.out.printf("Round %d: patterns %d ms, cleaner %d ms for %d messages%n", round,
+					(patternsDone - start) / 1_000_000, (cleanerDone - patternsDone) / 1_000_000, messages.size());
+		}
+	}
+
+	/**
+	 * Cleans a message both ways, stopping with the message and both results if they differ
+	 */
+	private static void compare(String content) {
+		String expected = cleanWithPatterns(content), actual = MessageCleaner.clean(content);
+		if (!expected.equals(actual)) {
+			throw new IllegalStateException("Cleaned differently: "+ escape(content) +"\n patterns: "+ escape(expected)
+					+"\n cleaner:  "+ escape(actual));
+		}
+	}
+
+	/**
+	 * @return the text in quotes, with any control or non-ASCII characters written as escapes so they can be seen
+	 */
+	private static String escape(String text) {
+		StringBuilder escaped = new StringBuilder("\"");
+		for (char c : text.toCharArray()) {
+			if (c < 32 || c > 126) escaped.append(String.format("\\u%04x", (int) c));
+			else escaped.append(c);
+		}
+		return escaped.append('"').toString();
+	}
+}